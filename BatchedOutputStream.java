@@ -0,0 +1,172 @@
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+// The outbound buffer of a connection. A command writes its enum, its acknowledgement and
+// its objects one by one, and written straight to the socket each of them would be a
+// system call and a TCP segment of its own. Here they are collected and go out together:
+//
+//   - when chat.writeBuffer bytes have been collected,
+//   - when the connection has nothing more to do for now and flushes, which is at the end
+//     of every round of commands, and before it waits to read anything,
+//   - or at the latest chat.writeLingerMicros after the first byte was collected, in case
+//     nobody flushes. The timer does not write itself, it wakes up the thread the stream
+//     was given to flush it, so one slow socket never holds up the timer for the others.
+//     A stream without one has no timer, and zero turns the timer off for all of them.
+//
+// The buffer is only held while there is something in it. It is taken from a free list on
+// the first write and given back when it is flushed, so an idle connection has none.
+//
+// Since the flushing is done here, Nagle's algorithm would only hold the batches back
+// further, so the sockets are set to TCP_NODELAY unless chat.tcpNoDelay is false.
+class BatchedOutputStream extends OutputStream {
+
+	static final int SIZE = Integer.getInteger("chat.writeBuffer", 64 * 1024);
+	static final long LINGER_MICROS = Long.getLong("chat.writeLingerMicros", 1000);
+	static final boolean TCP_NO_DELAY = Boolean.parseBoolean(System.getProperty("chat.tcpNoDelay", "true"));
+
+	static final ScheduledExecutorService linger = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "write_linger");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	// The buffers not in use by any stream. There are never more of them than were ever
+	// in use at once.
+	static final ConcurrentLinkedQueue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+
+	OutputStream out;
+	byte[] buf = null;
+	int count = 0;
+
+	ReentrantLock lock = new ReentrantLock();
+
+	// What wakes up the owner of the stream to flush it, and whether the timer is set.
+	Runnable wakeWriter;
+	AtomicBoolean lingerScheduled = new AtomicBoolean(false);
+
+	Runnable lingerFlush = new Runnable() {
+		public void run() {
+			lingerScheduled.set(false);
+			wakeWriter.run();
+		}
+	};
+
+	// A stream that is only flushed by whoever writes to it.
+	public BatchedOutputStream(OutputStream out) {
+		this(out, null);
+	}
+
+	// A stream whose owner flushes it when woken up by the timer.
+	public BatchedOutputStream(OutputStream out, Runnable wakeWriter) {
+		this.out = out;
+		this.wakeWriter = wakeWriter;
+	}
+
+	public static void configure(Socket socket) {
+
+		try {
+			socket.setTcpNoDelay(TCP_NO_DELAY);
+		}
+		catch (SocketException e) { }
+	}
+
+	public void write(int b) throws IOException {
+
+		lock.lock();
+		try {
+			if (buf != null && count == buf.length) {
+				flushBuffer();
+			}
+			if (buf == null) {
+				buf = take();
+			}
+			buf[count++] = (byte) b;
+			scheduleLinger();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+
+		lock.lock();
+		try {
+			if (count + len > SIZE) {
+				flushBuffer();
+			}
+
+			// What does not fit goes straight out, behind what was collected.
+			if (len >= SIZE) {
+				out.write(b, off, len);
+				Metrics.socketWrites.increment();
+				return;
+			}
+			if (buf == null) {
+				buf = take();
+			}
+			System.arraycopy(b, off, buf, count, len);
+			count += len;
+			scheduleLinger();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public void flush() throws IOException {
+
+		lock.lock();
+		try {
+			flushBuffer();
+			out.flush();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public void close() throws IOException {
+
+		try {
+			flush();
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	// Holding the lock. The buffer goes back to the free list once it is written out.
+	void flushBuffer() throws IOException {
+
+		if (count > 0) {
+			out.write(buf, 0, count);
+			count = 0;
+			Metrics.socketWrites.increment();
+		}
+		if (buf != null) {
+			free.add(buf);
+			buf = null;
+		}
+	}
+
+	static byte[] take() {
+
+		byte[] b = free.poll();
+		return b != null ? b : new byte[SIZE];
+	}
+
+	// Holding the lock.
+	void scheduleLinger() {
+
+		if (LINGER_MICROS > 0 && wakeWriter != null && count > 0 && lingerScheduled.compareAndSet(false, true)) {
+			linger.schedule(lingerFlush, LINGER_MICROS, TimeUnit.MICROSECONDS);
+		}
+	}
+}
@@ -0,0 +1,189 @@
+
+import java.lang.ref.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// The direct buffers the channels read into and write from. At a high message rate,
+// allocating a buffer for every read and every flush is most of what the young generation
+// has to collect, and a direct buffer is expensive to allocate on top of that. So they are
+// taken from here and given back once their bytes have been read or written.
+//
+// The buffers come in size classes, the powers of two from MIN_SIZE to MAX_SIZE; a request
+// gets the smallest class it fits in. The free buffers are kept in the arena, a lock-free
+// list per class, which is filled by cutting chunks of chat.bufferChunk bytes of direct
+// memory into buffers. There are no caches per thread: a buffer is mostly taken by one
+// thread and given back by another, the event loop and a connection's thread, so a thread
+// cache would only ever fill up on one side and run dry on the other. Memory is never given
+// back to the system; the arena is as big as the most that was ever in use at once.
+//
+// A buffer must be given back once, and not used after that. With chat.bufferDebug set,
+// every buffer handed out is tracked with where it was taken, and a buffer that is garbage
+// collected without having been given back is logged as a leak, as is one given back twice.
+class BufferPool {
+
+	static final int MIN_SHIFT = 10;
+	static final int MAX_SHIFT = 16;
+	static final int MIN_SIZE = 1 << MIN_SHIFT;
+	static final int MAX_SIZE = 1 << MAX_SHIFT;
+	static final int CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+	static final int CHUNK = Math.max(MAX_SIZE, Integer.getInteger("chat.bufferChunk", 1024 * 1024));
+	static final boolean DEBUG = Boolean.getBoolean("chat.bufferDebug");
+
+	// The free buffers of every class, shared by all the threads.
+	static final ArrayList<ConcurrentLinkedQueue<ByteBuffer>> arena = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>();
+
+	static final AtomicLong arenaBytes = new AtomicLong(0);
+	static final LongAdder inUse = new LongAdder();
+	static final LongAdder leaked = new LongAdder();
+
+	// The buffers handed out, by their identity hash, in debug mode only.
+	static final ConcurrentHashMap<Integer, List<Tracked>> tracked = new ConcurrentHashMap<Integer, List<Tracked>>();
+	static final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+
+	static {
+		for (int i=0; i<CLASSES; i++) {
+			arena.add(new ConcurrentLinkedQueue<ByteBuffer>());
+		}
+
+		Metrics.gauge("buffers.arenaBytes", new Gauge() {
+			public long value() {
+				return arenaBytes.get();
+			}
+		});
+		Metrics.gauge("buffers.inUse", new Gauge() {
+			public long value() {
+				return inUse.sum();
+			}
+		});
+		Metrics.gauge("buffers.leaked", new Gauge() {
+			public long value() {
+				return leaked.sum();
+			}
+		});
+	}
+
+	// Returns a cleared buffer of at least the given size. Anything bigger than the biggest
+	// class is allocated for the one use, and dropped when it is given back.
+	public static ByteBuffer acquire(int size) {
+
+		if (size > MAX_SIZE) {
+			return ByteBuffer.allocateDirect(size);
+		}
+
+		int c = classOf(size);
+		ByteBuffer buffer = arena.get(c).poll();
+		if (buffer == null) {
+			buffer = carve(c);
+		}
+		buffer.clear();
+		inUse.increment();
+
+		if (DEBUG) {
+			track(buffer);
+		}
+		return buffer;
+	}
+
+	// Gives the buffer back to the arena.
+	public static void release(ByteBuffer buffer) {
+
+		int c = classOf(buffer.capacity());
+		if (buffer.capacity() != MIN_SIZE << c || !buffer.isDirect() || buffer.isReadOnly()) {
+			return;
+		}
+		if (DEBUG && !untrack(buffer)) {
+			Log.warn( "Buffer given back twice, or not taken from the pool: ", buffer );
+			return;
+		}
+		inUse.decrement();
+		arena.get(c).add(buffer);
+	}
+
+	static int classOf(int size) {
+
+		if (size <= MIN_SIZE) {
+			return 0;
+		}
+		return Math.min(32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT, CLASSES - 1);
+	}
+
+	// Cuts a new chunk into buffers of the class. One of them is returned, the rest go to the
+	// arena for whoever needs them next.
+	static synchronized ByteBuffer carve(int c) {
+
+		// Somebody else may have carved some while this thread was waiting.
+		ByteBuffer buffer = arena.get(c).poll();
+		if (buffer != null) {
+			return buffer;
+		}
+
+		int size = MIN_SIZE << c;
+		ByteBuffer chunk = ByteBuffer.allocateDirect(CHUNK);
+		arenaBytes.addAndGet(CHUNK);
+
+		for (int position = size; position + size <= CHUNK; position += size) {
+			chunk.limit(position + size).position(position);
+			arena.get(c).add(chunk.slice());
+		}
+		chunk.limit(size).position(0);
+		return chunk.slice();
+	}
+
+	static void track(ByteBuffer buffer) {
+
+		Tracked t;
+		while ((t = (Tracked) collected.poll()) != null) {
+			if (forget(t)) {
+				leaked.increment();
+				inUse.decrement();
+				Log.error( "Buffer leaked, it was never given back", t.where );
+			}
+		}
+
+		t = new Tracked(buffer, collected);
+		List<Tracked> same = tracked.get(t.hash);
+		if (same == null) {
+			tracked.putIfAbsent(t.hash, new CopyOnWriteArrayList<Tracked>());
+			same = tracked.get(t.hash);
+		}
+		same.add(t);
+	}
+
+	static boolean untrack(ByteBuffer buffer) {
+
+		List<Tracked> same = tracked.get(System.identityHashCode(buffer));
+		if (same != null) {
+			for (Tracked t:same) {
+				if (t.get() == buffer) {
+					t.clear();
+					return forget(t);
+				}
+			}
+		}
+		return false;
+	}
+
+	// Returns false if the buffer was forgotten already.
+	static boolean forget(Tracked t) {
+
+		List<Tracked> same = tracked.get(t.hash);
+		return same != null && same.remove(t);
+	}
+}
+
+// A buffer handed out in debug mode, and where it was taken.
+class Tracked extends WeakReference<ByteBuffer> {
+
+	int hash;
+	Throwable where;
+
+	public Tracked(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+
+		super(buffer, queue);
+		hash  = System.identityHashCode(buffer);
+		where = new Throwable("Taken by " + Thread.currentThread().getName());
+	}
+}
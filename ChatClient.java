@@ -23,8 +23,20 @@ class ChatClient implements ChatClientInterface, CommandlineInterface {
 	ChatterInfo[] availableChatters;
 	
 	ChatClientConnectionManager cccm;
-	ArrayList<Chatter> chatterArrayList;
     Chatter activeChatter = null;
+
+    // All the conversations, direct or relayed, by conversation id, in the order they
+    // were started.
+    Map<Long, Conversation> conversations;
+    long nextConversationId = 1;
+
+    // Runs the direct conversations. Made when the first one starts.
+    ConversationHost host;
+
+    // The rooms relayed through the server, by room id. New chats are relayed too
+    // if the chat.relay system property is true.
+    Map<Long, RelayChatter> rooms;
+    boolean relayChats;
     client clientObj;
 	
 	int freePort;
@@ -58,11 +70,17 @@ class ChatClient implements ChatClientInterface, CommandlineInterface {
             else if(command.equals("connect")) {
                 connectChat(args);
             }
+            else if(command.equals("chats")) {
+                printConversations();
+            }
+            else if(command.equals("leave") && remArgs.length == 1) {
+                leaveConversation(remArgs[0]);
+            }
             else if(command.equals("exit")) {
                 System.exit(0);
             }
         }
-        System.out.print( "Enter command: " );
+        ConsoleRenderer.console.print( "Enter command: " );
     }
 	
 	public ChatClient() {
@@ -81,12 +99,80 @@ class ChatClient implements ChatClientInterface, CommandlineInterface {
 		freePort            = ro.nextInt(5000);
 		
 		availableChatters 	= new ChatterInfo[0];
-		chatterArrayList  	= new ArrayList<Chatter>();
+		conversations       = Collections.synchronizedMap(new LinkedHashMap<Long, Conversation>());
+		rooms               = new java.util.concurrent.ConcurrentHashMap<Long, RelayChatter>();
+		relayChats          = Boolean.getBoolean("chat.relay");
+	}
+
+	public synchronized long newConversationId() {
+		return nextConversationId++;
+	}
+
+	public synchronized ConversationHost getHost() throws IOException {
+
+		if (host == null) {
+			host = new ConversationHost(userName);
+		}
+		return host;
+	}
+
+	public void addConversation(Conversation conversation) {
+		conversations.put(conversation.getConversationId(), conversation);
+
+        // The kept chats can come in before the command line has given us its object.
+        if (clientObj != null) {
+            clientObj.changeFocus((CommandlineInterface)conversation);
+        }
 	}
 
 	public void addChat(Chatter newChatter) {
-		chatterArrayList.add(newChatter);
-        clientObj.changeFocus((CommandlineInterface)newChatter);
+		addConversation(newChatter);
+	}
+
+	public void addRoom(RelayChatter room) {
+		rooms.put(room.getRoomId(), room);
+		addConversation(room);
+	}
+
+	public void printConversations() {
+
+		synchronized (conversations) {
+			for (Conversation c:conversations.values()) {
+				ConsoleRenderer.console.println( " * " + c.getConversationId() + " : " + describe(c.getChatRequest()) );
+			}
+		}
+	}
+
+	String describe(ChatRequest cr) {
+
+		if (cr == null) {
+			return "?";
+		}
+		String res = cr.getSourceChatter().getName();
+		for (ChatterInfo ci:cr.getTargetChatters()) {
+			res = res + ", " + ci.getName();
+		}
+		return res;
+	}
+
+	public void leaveConversation(String id) {
+
+		Conversation c = null;
+		try {
+			c = conversations.remove(Long.valueOf(id));
+		}
+		catch (NumberFormatException e) { }
+
+		if (c == null) {
+			ConsoleRenderer.console.println( "No conversation " + id );
+			return;
+		}
+		rooms.values().remove(c);
+		c.leave();
+	}
+
+	public RelayChatter getRoom(long roomId) {
+		return rooms.get(roomId);
 	}
     
     public void sendChatObject(ChatObjectInterface coi) {
@@ -109,14 +195,14 @@ class ChatClient implements ChatClientInterface, CommandlineInterface {
 	
 	public void connectChat(String[] args) {
 	
-		System.out.println("connectChat: in this routine now");
+		Log.debug("connectChat: in this routine now");
 		
 		ArrayList<ChatterInfo> chatterList = new ArrayList<ChatterInfo>();
 		for (String chatter:args) {
 			for (ChatterInfo thisChatter:availableChatters) {
 				if (chatter.equals(thisChatter.getName()) && 
 				    (!chatter.equals(myself.getName()))) {
-					System.out.println("Adding chatter " + thisChatter.getName() + " for conversation.");
+					Log.debug("Adding chatter for conversation: ", thisChatter.getName());
 					chatterList.add(thisChatter);
 				}
 			}
@@ -125,39 +211,52 @@ class ChatClient implements ChatClientInterface, CommandlineInterface {
 		ChatterInfo[] chatterArray = new ChatterInfo[chatterList.size()];
 		chatterList.toArray(chatterArray);
 		
-		ChatRequest cr = new ChatRequest(myself,chatterArray,freePort++);
-		System.out.println("Created chat request " + cr);
+		int port = relayChats ? ChatRequest.RELAYED : freePort++;
+		ChatRequest cr = new ChatRequest(myself,chatterArray,port);
+		Log.debug("Created chat request ", cr);
 		
-		System.out.println("Queueing chat request ");		
+		Log.debug("Queueing chat request ");		
 		cccm.queueChatRequest(cr);
 		
-		System.out.println("Queueing command to initiate chat");		
+		Log.debug("Queueing command to initiate chat");		
 		cccm.queueCommand(ClientCommand.INITIATE_CHAT);
 	}
     
 	public void printChatters() {
 	
 		for(ChatterInfo c:availableChatters) {
-			System.out.println( " * " + c.getName() + " ( " + c.getAddress() + " ) " );
+			ConsoleRenderer.console.println( " * " + c.getName() + " ( " + c.getAddress() + " ) " );
 		}
 	}
 	
 	public void closeConnection() {
 		
-		System.out.println( "Queueing command" );
+		Log.debug( "Queueing command" );
 		cccm.queueCommand( ClientCommand.EXIT );
 	}
 	
+	// The server name can be a list of the nodes of a cluster, separated by commas. The
+	// chatter connects to its home node, or to the next one on the ring if that one is
+	// down, which is where the nodes look for it too. See Cluster.
 	public void connect() {
-	
-		try {
+
+		ArrayList<String> servers = new ArrayList<String>();
+		for (String s:serverName.split(",")) {
+			servers.add(s.trim());
+		}
+		List<String> candidates = (servers.size() > 1) ? new HashRing(servers).candidates(userName) : servers;
+
+		for (String server:candidates) {
+			try {
+				
+				cccm = new ChatClientConnectionManager(this, server);
+				return;
+			}
+			catch (Exception e) {
 			
-			cccm = new ChatClientConnectionManager(this, serverName);
+				Log.warn( "Error: ", e.getMessage() );
+			} 
 		}
-		catch (Exception e) {
-		
-			System.out.println ("Error:" + e.getMessage());
-		} 
 	}
 		
 	public ChatterInfo whoAmI() {
@@ -13,37 +13,60 @@ class ChatClientConnectionManager implements Runnable {
     // lifetime of this object.
     ChatClient cc;
     Socket connection;
-    ObjectOutputStream oos;
-    ObjectInputStream ois;
+    ChatWire wire;
+
+	// Wakes up the connection thread when the server has sent something or a command
+	// has been queued.
+	WorkSignal signal = new WorkSignal();
 	
 	AbstractQueue<ClientCommandInterface> commandsQueue;
 	AbstractQueue<ChatRequest> chatRequestQueue;
+
+	// The local copy of the roster, kept up to date with the deltas from the server.
+	ClientRoster roster = new ClientRoster();
     
+    // The server name is a host, or host:port. The port is chat.port if not given.
     public ChatClientConnectionManager(ChatClient cc, String serverName) throws Exception {
     
         // Initialize the internal vairables
         this.cc = cc;
-        this.connection = new Socket (serverName, 3000);
+		int colon = serverName.lastIndexOf(':');
+		if (colon < 0) {
+			this.connection = new Socket (serverName, Integer.getInteger("chat.port", 3000));
+		}
+		else {
+			this.connection = new Socket (serverName.substring(0, colon), Integer.parseInt(serverName.substring(colon + 1)));
+		}
         
         // Initialize the streams
-		System.out.println( "Connection established to " + serverName );
-		oos = new ObjectOutputStream(connection.getOutputStream());
-		ois = new ObjectInputStream(connection.getInputStream());
+		Log.info( "Connection established to ", serverName );
+		// What is written goes out when this thread runs out of work, or waits to read. The
+		// linger timer wakes it up for what the other threads write.
+		BatchedOutputStream.configure(connection);
+		Runnable wakeUp = new Runnable() {
+			public void run() {
+				signal.signal();
+			}
+		};
+		wire = new ReadPipeline(WireProtocols.connect(new MeteredInputStream(connection.getInputStream()),
+		                                              new BatchedOutputStream(new MeteredOutputStream(connection.getOutputStream()), wakeUp),
+		                                              WireFormat.getDefault()),
+		                        "server_connection_reader", signal);
 		
         // Register the client to the server.
-		System.out.println( "Sending REGISTER command to server." );
+		Log.debug( "Sending REGISTER command to server." );
 		sendServerCommand(ServerCommand.REGISTER);
 		
         // Wait for acknowledgement from the server.
-		System.out.println( "Waiting for acknowledgement from server." );
+		Log.debug( "Waiting for acknowledgement from server." );
 		recieveAcknowledgement();
 		
         // Now, having got the acknowledgement, send my info to the server.
-		System.out.println( "Sending info to server." );
-		oos.writeObject(cc.whoAmI());
+		Log.debug( "Sending info to server." );
+		wire.writeObject(cc.whoAmI());
 		
         // Wait for the acknowledgement from the server.
-		System.out.println( "Waiting for acknowledgement from server." );
+		Log.debug( "Waiting for acknowledgement from server." );
 		recieveAcknowledgement();
 		
 		commandsQueue = new java.util.concurrent.ConcurrentLinkedQueue<ClientCommandInterface>();
@@ -54,40 +77,63 @@ class ChatClientConnectionManager implements Runnable {
         runner.start();
     }
     
-    // The below routine will update the members visible to this chat client.
+    // Applies a roster update pushed by the server. If some changes were missed, the
+    // server is asked for the changes since the version we have.
+    public void applyRosterUpdate () throws Exception {
+
+		RosterUpdate update = (RosterUpdate) wire.readObject();
+		if (roster.apply(update)) {
+			cc.updateChatters(roster.getChatters());
+		}
+		else {
+			Log.info( "Roster out of sync, asking the server to sync." );
+			sendServerCommand(ServerCommand.SYNC_MEMBERS);
+			wire.writeObject(Long.valueOf(roster.getVersion()));
+		}
+    }
+
+    // The below routine will fetch all the members visible to this chat client.
     public boolean updateMembers () throws Exception {
     
-		System.out.println( "Sending GET_MEMBERS command to server." );
+		Log.debug( "Sending GET_MEMBERS command to server." );
 		sendServerCommand(ServerCommand.GET_MEMBERS);
 			
-		System.out.println( "Waiting for acknowledgement from server." );
+		Log.debug( "Waiting for acknowledgement from server." );
 		recieveAcknowledgement();
 
-		System.out.println( "Recieving chatters information from server." );
-        ChatterInfo[] chatters = (ChatterInfo[]) ois.readObject();
+		Log.debug( "Recieving chatters information from server." );
+        ChatterInfo[] chatters = (ChatterInfo[]) wire.readObject();
         cc.updateChatters(chatters);
 		return true;
     }
 	
 	public void processIncomingChat() throws Exception {
 	
-		System.out.println("processIncomingChat: Got an incoming chat");
+		Log.debug("processIncomingChat: Got an incoming chat");
 		
-		System.out.println("processIncomingChat: Waiting for chat request object");
-		ChatRequest cr = (ChatRequest) ois.readObject();
+		Log.debug("processIncomingChat: Waiting for chat request object");
+		ChatRequest cr = (ChatRequest) wire.readObject();
 		
+		// A relayed chat has nothing to connect to; the messages come from the server.
+		if (cr.isRelayed()) {
+			Log.debug("processIncomingChat: Relayed through room ", cr.getRoomId());
+			getChatClient().addRoom(new RelayChatter(this, cr));
+			return;
+		}
+
 		int port = cr.getPortAddress();
-		System.out.println("processIncomingChat: Port is " + port);
+		Log.debug("processIncomingChat: Port is ", port);
 		
-		System.out.println("processIncomingChat: Creating new chatter object");
-		Chatter newChatter = new Chatter( cr, cc.whoAmI(), port );
+		Log.debug("processIncomingChat: Creating new chatter object");
+		Chatter newChatter = new Chatter( cc.newConversationId(), cr, cc.whoAmI(), port, cc.getHost() );
 		
-		System.out.println("processIncomingChat: Adding the new chatter to the chat client");
+		Log.debug("processIncomingChat: Adding the new chatter to the chat client");
 		getChatClient().addChat(newChatter);
 	}
 
 	public void queueCommand(ClientCommandInterface cci) {
 		commandsQueue.add(cci);
+		signal.signal();
 	}
 
 	public void queueChatRequest(ChatRequest cr) {
@@ -107,19 +153,20 @@ class ChatClientConnectionManager implements Runnable {
 		return connection;
 	}
 	
-	public ObjectOutputStream getOutputStream() {
-		return oos;
+	public ChatWire getWire() {
+		return wire;
 	}
-	
-	public ObjectInputStream getInputStream() {
-		return ois;
+
+	// The memory held by the wire for what has been sent to the server.
+	public long getRetainedStreamBytes() {
+		return wire.getRetainedBytes();
 	}
 
 		
     // Routine to wait for acknowledgement continously.
 	public boolean recieveAcknowledgement() throws Exception {
 	
-		ClientCommand cc = (ClientCommand) ois.readObject();
+		ClientCommand cc = (ClientCommand) wire.readObject();
 		if (cc == ClientCommand.ACKNOWLEDGEMENT) {
 			return true;
 		}
@@ -129,9 +176,9 @@ class ChatClientConnectionManager implements Runnable {
 	}
 	
     // Send an acknowledgement to the server.
-	public void sendAcknowledgement(ObjectOutputStream oos) throws Exception {
+	public void sendAcknowledgement() throws Exception {
 	
-		oos.writeObject(ClientCommand.ACKNOWLEDGEMENT);
+		wire.writeObject(ClientCommand.ACKNOWLEDGEMENT);
 	}
 	
 	public void closeConnection() throws Exception {
@@ -141,36 +188,53 @@ class ChatClientConnectionManager implements Runnable {
 	
     // Send a particular server command
 	public void sendServerCommand(ServerCommand sc) throws Exception {
-		oos.writeObject(sc);
+		wire.writeObject(sc);
 	}
     
+	// Process one command and count it in the metrics.
+	void processCommand(ClientCommandInterface cci) throws Exception {
+
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			cci.process(this);
+			failed = false;
+		}
+		finally {
+			Metrics.CLIENT.record(cci, System.nanoTime() - start, failed);
+		}
+	}
+
     public void run() {
         
 		
         try {
         
-			BufferedInputStream bis = new BufferedInputStream(connection.getInputStream());
             while (true) {
         
                 ClientCommandInterface cci = null;
 				
-				if (bis.available() > 0) {
-					cci = (ClientCommandInterface) ois.readObject();
+				if (wire.available() > 0) {
+					cci = (ClientCommandInterface) wire.readObject();
 				}
 				else if (!commandsQueue.isEmpty()) {
 					cci = (ClientCommandInterface) commandsQueue.remove();
 				}
 				
 				if (cci != null) {
-					cci.process(this);
+					processCommand(cci);
+				}
+				else {
+					wire.flush();
+					ConsoleRenderer.console.flush();
+					signal.await();
 				}
             }
         }
 		catch (EOFException e) {
 		
 			// Lost connection while trying to read from the stream.
-			System.out.println( "Server connection lost.." );
-			System.out.println( "Thread exiting." );
+			Log.warn( "Server connection lost.." );
 			return;
 		}
 		
@@ -178,8 +242,7 @@ class ChatClientConnectionManager implements Runnable {
 				
 			// Encountered an exception. Probably I should close the connection and
 			// remove the client.
-			System.out.println( "Encountered exception" + e.getMessage());
-			e.printStackTrace();
+			Log.error( "Encountered exception", e );
 			return;
 		}
     }
@@ -210,26 +273,45 @@ enum ClientCommand implements ClientCommandInterface {
             cccm.updateMembers();
         }
     },
+
+    // The chat server pushes the roster changes. A RosterUpdate object follows.
+    ROSTER_UPDATE {
+
+        public void process (ChatClientConnectionManager cccm) throws Exception {
+            cccm.applyRosterUpdate();
+        }
+    },
 	
 	INITIATE_CHAT {
 
         public void process (ChatClientConnectionManager cccm) throws Exception {
 			
-			System.out.println("INITIATE_CHAT: In INITIATE_CHAT");
-			System.out.println("INITIATE_CHAT: Sending forward chat request command");
+			Log.debug("INITIATE_CHAT: In INITIATE_CHAT");
+			ChatRequest cr = cccm.getFirstChatRequest(); 
+
+			// The chatter listens on the port before the request goes out, otherwise
+			// the targets can try to connect before there is anything to connect to.
+			// A relayed chat has no chatter; the server sends back a CHAT_REQUEST
+			// with the room id instead.
+			Chatter newChatter = null;
+			if (!cr.isRelayed()) {
+				ChatClient cc = cccm.getChatClient();
+				newChatter = new Chatter(cc.newConversationId(), cc.whoAmI(), cr, cc.getHost());
+			}
+
+			Log.debug("INITIATE_CHAT: Sending forward chat request command");
             cccm.sendServerCommand(ServerCommand.FORWARD_CHAT_REQUEST);
-			System.out.println("INITIATE_CHAT: Waiting for acknowledgement");
+			Log.debug("INITIATE_CHAT: Waiting for acknowledgement");
 			cccm.recieveAcknowledgement();
-			System.out.println("INITIATE_CHAT: Sending the chat request to the server");
-			ObjectOutputStream oos = cccm.getOutputStream();
-			ChatRequest cr = cccm.getFirstChatRequest(); 
-			oos.writeObject(cr);
-			System.out.println("INITIATE_CHAT: Waiting for acknowledgement");
+			Log.debug("INITIATE_CHAT: Sending the chat request to the server");
+			cccm.getWire().writeObject(cr);
+			Log.debug("INITIATE_CHAT: Waiting for acknowledgement");
 			cccm.recieveAcknowledgement();
 			
-			Chatter newChatter = new Chatter(cccm.getChatClient().whoAmI(),cr.getPortAddress());
-			System.out.println("INITIATE_CHAT: Creating a new chatter thread");
-			cccm.getChatClient().addChat(newChatter);
+			if (newChatter != null) {
+				Log.debug("INITIATE_CHAT: Creating a new chatter thread");
+				cccm.getChatClient().addChat(newChatter);
+			}
         }
 	},
 	
@@ -237,7 +319,7 @@ enum ClientCommand implements ClientCommandInterface {
 	
 		public void process (ChatClientConnectionManager cccm) throws Exception {
 		
-			System.out.println("CHAT_REQUEST: Got an incoming chat");
+			Log.debug("CHAT_REQUEST: Got an incoming chat");
 			cccm.processIncomingChat();
 		}
 	},
@@ -247,5 +329,91 @@ enum ClientCommand implements ClientCommandInterface {
         public void process (ChatClientConnectionManager cccm) throws Exception {
             cccm.closeConnection();
         }	
+	},
+
+	// A message relayed by the server from another member of a room. A RoomMessage
+	// follows.
+	ROOM_MESSAGE {
+
+        public void process (ChatClientConnectionManager cccm) throws Exception {
+
+			RoomMessage msg = (RoomMessage) cccm.getWire().readObject();
+			RelayChatter room = cccm.getChatClient().getRoom(msg.getRoomId());
+			if (room != null) {
+				room.recieve(msg);
+			}
+        }
+	},
+
+	// A page of a room's history, asked for with GET_HISTORY. A HistoryPage follows.
+	HISTORY_PAGE {
+
+        public void process (ChatClientConnectionManager cccm) throws Exception {
+
+			HistoryPage page = (HistoryPage) cccm.getWire().readObject();
+			RelayChatter room = cccm.getChatClient().getRoom(page.getRoomId());
+			if (room != null) {
+				room.showHistory(page);
+			}
+        }
+	}
+}
+
+// The client side copy of the roster. It is built from the snapshots and deltas sent by the
+// server, and knows the version it is at so it can tell when it has missed something.
+class ClientRoster {
+
+	long version = 0;
+	LinkedHashMap<Long, ChatterInfo> chatters = new LinkedHashMap<Long, ChatterInfo>();
+	ChatterInfo[] chattersArray = new ChatterInfo[0];
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	public synchronized ChatterInfo[] getChatters() {
+		return chattersArray;
+	}
+
+	// Applies the update. Returns false if the update does not follow the version we have,
+	// in which case nothing is changed.
+	public synchronized boolean apply(RosterUpdate update) {
+
+		if (update.getToVersion() <= version) {
+			return true;
+		}
+
+		if (update.isSnapshot()) {
+
+			chatters.clear();
+			long[] ids = update.getIds();
+			ChatterInfo[] infos = update.getChatters();
+			for (int i=0; i<ids.length; i++) {
+				chatters.put(ids[i], infos[i]);
+			}
+		}
+		else {
+
+			if (update.getFromVersion() > version) {
+				return false;
+			}
+
+			// Deltas we have already seen are skipped.
+			for (RosterDelta d:update.getDeltas()) {
+				if (d.getVersion() <= version) {
+					continue;
+				}
+				if (d.getType() == RosterDelta.JOINED) {
+					chatters.put(d.getId(), d.getChatter());
+				}
+				else {
+					chatters.remove(d.getId());
+				}
+			}
+		}
+
+		version = update.getToVersion();
+		chattersArray = chatters.values().toArray(new ChatterInfo[chatters.size()]);
+		return true;
 	}
 }
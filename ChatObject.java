@@ -4,10 +4,16 @@ import java.util.*;
 
 interface ChatObjectInterface {
 
-    public void send(ObjectOutputStream oos) throws Exception;
-    public void recieve(ObjectInputStream oos) throws Exception;
-    public void processChatObject();
-    public void doPreProcess();
+    public void send(ChatWire wire) throws Exception;
+
+    // The object that send() writes, for when the same chat object goes to many wires.
+    public Object getWireObject();
+    public void recieve(ChatWire wire) throws Exception;
+    // Shows the object as received from the sender.
+    public void processChatObject(String sender);
+
+    // Shows the object as sent by this chatter, in place of what was typed.
+    public void echoChatObject(String sender);
 }
 
 class TextChatObject implements ChatObjectInterface {
@@ -20,25 +26,25 @@ class TextChatObject implements ChatObjectInterface {
         this.text = text;
     }
     
-    public void send(ObjectOutputStream oos) throws Exception {   
-        oos.writeObject(text);
+    public void send(ChatWire wire) throws Exception {   
+        wire.writeObject(text);
     }
-    
-    public void recieve(ObjectInputStream ois) throws Exception {
-        text = (String) ois.readObject();
+
+    public Object getWireObject() {
+        return text;
     }
     
-    public void doPreProcess() {
-    
-        char[] chars = new char[text.length()];
-        Arrays.fill(chars,'\b');
-        String backSpaces = new String( chars );
-        System.out.print('\r');
-        System.out.print(backSpaces);
+    public void recieve(ChatWire wire) throws Exception {
+        text = (String) wire.readObject();
     }
     
-    public void processChatObject() {
-        System.out.println(text);
+    // Only adds to what the console shows next; whoever renders the text flushes it.
+    public void processChatObject(String sender) {
+        ConsoleRenderer.console.render(sender, text);
+    }
+
+    public void echoChatObject(String sender) {
+        ConsoleRenderer.console.echo(sender, text);
     }
     
     public String getString() {
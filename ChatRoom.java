@@ -0,0 +1,375 @@
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// A chat room kept on the server. Instead of the chatters connecting to each other, every
+// member sends its messages to the server over the connection it has anyway, and the server
+// passes them on to the other members. A chatter in any number of rooms needs just the one
+// socket, and nobody has to be reachable from the outside.
+class ChatRoom {
+
+	long id;
+
+	// The request the room was made for. Members coming back are sent it again, so that
+	// their client knows the room.
+	ChatRequest cr;
+
+	// The connections of the members. Messages are sent far more often than members come
+	// and go, so the sending side gets to iterate without locking.
+	Set<ChatServerConnectionManager> members;
+
+	// The names of the members who are not connected. What is said meanwhile goes to their
+	// inboxes, if the server keeps any.
+	Set<String> offline;
+	InboxStore inboxes;
+
+	// The members on the other nodes of the cluster, by name, with the number of their
+	// node, and the same by node for relaying. Their node queues the messages on their
+	// connections, or keeps them in their inbox.
+	HashMap<String, Integer> remote;
+	HashMap<Integer, String[]> remoteByNode;
+	Cluster cluster;
+
+	// The sequence number of the last message in the room.
+	AtomicLong lastSeq;
+
+	public ChatRoom(long id, ChatRequest cr, InboxStore inboxes) {
+
+		this(id, cr, inboxes, null);
+	}
+
+	public ChatRoom(long id, ChatRequest cr, InboxStore inboxes, Cluster cluster) {
+
+		this.id = id;
+		this.cr = cr;
+		this.inboxes = inboxes;
+		this.cluster = cluster;
+		this.members = new CopyOnWriteArraySet<ChatServerConnectionManager>();
+		this.offline = new HashSet<String>();
+		this.remote = new HashMap<String, Integer>();
+		this.remoteByNode = new HashMap<Integer, String[]>();
+		this.lastSeq = new AtomicLong(0);
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public ChatRequest getChatRequest() {
+		return cr;
+	}
+
+	// The membership changes and the relaying are all done holding the room, so that a
+	// member coming back can be switched from its inbox to its connection between two
+	// messages, without any of them overtaking the others.
+	public synchronized void join(ChatServerConnectionManager ch) {
+		members.add(ch);
+		ch.joinedRoom(this);
+	}
+
+	public synchronized void leave(ChatServerConnectionManager ch) {
+		members.remove(ch);
+		ch.leftRoom(this);
+	}
+
+	public synchronized void addOffline(String name) {
+		offline.add(name);
+	}
+
+	public synchronized void removeOffline(String name) {
+		offline.remove(name);
+	}
+
+	public synchronized void goOffline(ChatServerConnectionManager ch, String name) {
+		leave(ch);
+		offline.add(name);
+	}
+
+	public synchronized void comeOnline(ChatServerConnectionManager ch, String name) {
+		offline.remove(name);
+		join(ch);
+	}
+
+	public synchronized void joinRemote(String name, int node) {
+		remote.put(name, node);
+		indexRemote();
+	}
+
+	public synchronized void leaveRemote(String name) {
+		if (remote.remove(name) != null) {
+			indexRemote();
+		}
+	}
+
+	// The members on a node which has gone down are gone with it.
+	public synchronized void nodeDown(int node) {
+		if (remote.values().removeAll(Collections.singleton(node))) {
+			indexRemote();
+		}
+	}
+
+	void indexRemote() {
+
+		HashMap<Integer, ArrayList<String>> byNode = new HashMap<Integer, ArrayList<String>>();
+		for (Map.Entry<String, Integer> e:remote.entrySet()) {
+			ArrayList<String> names = byNode.get(e.getValue());
+			if (names == null) {
+				names = new ArrayList<String>();
+				byNode.put(e.getValue(), names);
+			}
+			names.add(e.getKey());
+		}
+		remoteByNode.clear();
+		for (Map.Entry<Integer, ArrayList<String>> e:byNode.entrySet()) {
+			remoteByNode.put(e.getKey(), e.getValue().toArray(new String[e.getValue().size()]));
+		}
+	}
+
+	public synchronized boolean isRemoteMember(String name) {
+		return remote.containsKey(name);
+	}
+
+	public boolean isMember(ChatServerConnectionManager ch) {
+		return members.contains(ch);
+	}
+
+	public synchronized boolean isOfflineMember(String name) {
+		return offline.contains(name);
+	}
+
+	public synchronized boolean isEmpty() {
+		return members.isEmpty() && offline.isEmpty() && remote.isEmpty();
+	}
+
+	public Set<ChatServerConnectionManager> getMembers() {
+		return members;
+	}
+
+	public long nextSeq() {
+		return lastSeq.incrementAndGet();
+	}
+
+	// Stamps a message from a member with the room's next seq and sends it on. Holding the
+	// room, the messages go out to the members and into the log in the order of their seqs.
+	public synchronized RoomMessage post(ChatServerConnectionManager sender, String name, String text, MessageLog log) {
+
+		RoomMessage msg = new RoomMessage(id, nextSeq(), System.currentTimeMillis(), name, text);
+		relay(msg, sender);
+		if (log != null) {
+			log.append(msg);
+		}
+		return msg;
+	}
+
+	// Sends the message to all the members except the sender. The message is encoded once
+	// and the same frames are queued on every member's connection and inbox, and sent once
+	// to every other node with members. The sender is null for a member on another node.
+	public synchronized void relay(RoomMessage msg, ChatServerConnectionManager sender) {
+
+		EncodedMessage m = new EncodedMessage(ClientCommand.ROOM_MESSAGE, msg);
+		for (ChatServerConnectionManager member:members) {
+			if (member != sender) {
+				member.queueMessage(m);
+			}
+		}
+		if (inboxes != null) {
+			for (String name:offline) {
+				if (!name.equals(msg.getSender())) {
+					inboxes.append(name, m);
+				}
+			}
+		}
+		for (Map.Entry<Integer, String[]> e:remoteByNode.entrySet()) {
+			String[] names = e.getValue();
+			if (sender == null && e.getKey().equals(remote.get(msg.getSender()))) {
+				names = without(names, msg.getSender());
+				if (names.length == 0) {
+					continue;
+				}
+			}
+			cluster.deliver(e.getKey(), names, m);
+		}
+	}
+
+	static String[] without(String[] names, String name) {
+
+		ArrayList<String> res = new ArrayList<String>(Arrays.asList(names));
+		res.remove(name);
+		return res.toArray(new String[res.size()]);
+	}
+}
+
+// All the rooms on the server, by id, and the rooms of the members who are not connected,
+// by their name. In a cluster, the ids are made so that the last part of them is the number
+// of the node, and the rooms of different nodes never get the same one.
+class ChatRooms {
+
+	ConcurrentHashMap<Long, ChatRoom> rooms = new ConcurrentHashMap<Long, ChatRoom>();
+	ConcurrentHashMap<String, Set<ChatRoom>> offlineRooms = new ConcurrentHashMap<String, Set<ChatRoom>>();
+	AtomicLong nextId;
+	InboxStore inboxes;
+	Cluster cluster;
+
+	public ChatRooms(long firstId, InboxStore inboxes) {
+		this(firstId, inboxes, null);
+	}
+
+	public ChatRooms(long firstId, InboxStore inboxes, Cluster cluster) {
+		this.nextId = new AtomicLong((cluster == null) ? firstId : firstId / Cluster.MAX_NODES + 1);
+		this.inboxes = inboxes;
+		this.cluster = cluster;
+	}
+
+	public ChatRoom create(ChatRequest cr) {
+
+		long id = nextId.getAndIncrement();
+		if (cluster != null) {
+			id = id * Cluster.MAX_NODES + cluster.getNode();
+		}
+		ChatRoom room = new ChatRoom(id, cr, inboxes, cluster);
+		rooms.put(room.getId(), room);
+		return room;
+	}
+
+	public ChatRoom get(long id) {
+		return rooms.get(id);
+	}
+
+	// Takes the member out of the room, and the room away once it is empty.
+	public void leave(ChatRoom room, ChatServerConnectionManager ch) {
+
+		room.leave(ch);
+		Registration r = ch.getRegistration();
+		if (r != null) {
+			removeOffline(room, r.getChatterInfo().getName());
+		}
+		removeIfEmpty(room);
+	}
+
+	// A member on another node leaves.
+	public void leaveRemote(ChatRoom room, String name) {
+
+		room.leaveRemote(name);
+		removeIfEmpty(room);
+	}
+
+	public void nodeDown(int node) {
+
+		for (ChatRoom room:rooms.values()) {
+			room.nodeDown(node);
+			removeIfEmpty(room);
+		}
+	}
+
+	// Keeps the chatter in the room while it is away, if there is an inbox to keep what
+	// it misses. Otherwise it just leaves.
+	public void goOffline(ChatRoom room, ChatServerConnectionManager ch, String name) {
+
+		if (inboxes == null) {
+			leave(room, ch);
+			return;
+		}
+		room.goOffline(ch, name);
+		addOffline(room, name);
+	}
+
+	public void addOffline(ChatRoom room, String name) {
+
+		room.addOffline(name);
+		Set<ChatRoom> set = offlineRooms.get(name);
+		if (set == null) {
+			offlineRooms.putIfAbsent(name, ConcurrentHashMap.<ChatRoom>newKeySet());
+			set = offlineRooms.get(name);
+		}
+		set.add(room);
+	}
+
+	public void comeOnline(ChatRoom room, ChatServerConnectionManager ch, String name) {
+
+		room.comeOnline(ch, name);
+		forget(room, name);
+	}
+
+	public void removeOffline(ChatRoom room, String name) {
+
+		room.removeOffline(name);
+		forget(room, name);
+	}
+
+	void forget(ChatRoom room, String name) {
+
+		Set<ChatRoom> set = offlineRooms.get(name);
+		if (set != null) {
+			set.remove(room);
+			if (set.isEmpty()) {
+				offlineRooms.remove(name, set);
+			}
+		}
+	}
+
+	// The rooms the chatter was in when it went away. The returned list is a copy.
+	public List<ChatRoom> getOfflineRooms(String name) {
+
+		Set<ChatRoom> set = offlineRooms.get(name);
+		if (set == null) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<ChatRoom>(set);
+	}
+
+	void removeIfEmpty(ChatRoom room) {
+
+		if (room.isEmpty()) {
+			rooms.remove(room.getId(), room);
+		}
+	}
+
+	public int size() {
+		return rooms.size();
+	}
+}
+
+// Sends an already encoded message to the client. Queued on a connection like the commands,
+// so it goes out in order with everything else the connection sends.
+class MessageDelivery implements ServerCommandInterface {
+
+	EncodedMessage m;
+
+	// A batch of the chatter's backlog, which stays in the inbox until it is written.
+	boolean backlog = false;
+
+	public MessageDelivery(EncodedMessage m) {
+		this.m = m;
+	}
+
+	public static MessageDelivery backlog(EncodedMessage m) {
+
+		MessageDelivery d = new MessageDelivery(m);
+		d.backlog = true;
+		return d;
+	}
+
+	public EncodedMessage getMessage() {
+		return m;
+	}
+
+	public boolean isBacklog() {
+		return backlog;
+	}
+
+	// Only the live messages may be dropped for a client which does not keep up; a chat
+	// request is needed to make sense of the rest, and the backlog is dropped from the
+	// inbox once it has been written.
+	public boolean isDroppable() {
+		return !backlog && !m.isChatRequest();
+	}
+
+	public void process(ChatServerConnectionManager ch) throws Exception {
+		ch.getWire().writeMessage(m);
+	}
+
+	public String toString() {
+		return "MessageDelivery";
+	}
+}
@@ -9,6 +9,10 @@ import java.util.*;
 // Imported for object stream classes.
 import java.io.*;
 
+// Imported for the selector based server mode.
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
 
 // This is the interface for ChatServer. This enforces particular methods to be available 
 // for each type of ChatServers
@@ -20,39 +24,160 @@ interface ChatServerInterface {
 	// Just a debug method to print all the chatters available
 	public void printChatters();
 	
-	// The method to check whether a chatter is available or not.
-	public int getChatterByName(String username);
-	public int getChatterByAddress(String address);
+	// The method to check whether a chatter is available or not. These return the
+	// registration, which is the handle for the chatter, or null.
+	public Registration getChatterByName(String username);
+	public Registration getChatterByAddress(String address);
+	public List<Registration> getChattersByAddress(String address);
 	
 	//  Methods to add or remove a chatter
-	public boolean removeChatter(int index);
-	public boolean addChatter(ChatterInfo c,ChatServerConnectionManager ch);
+	public boolean removeChatter(Registration r);
+	public Registration addChatter(ChatterInfo c,ChatServerConnectionManager ch);
 	
 	// Method to get the list of all the chatters
 	public ChatterInfo[] getChatters();
 }
 
+// The ways the chat server can run its connections.
+// In all of them the sockets are non-blocking channels on a few event loops.
+// THREADED - a platform thread per connection, which sleeps until its client sends something
+//            or a command is queued for it.
+// VIRTUAL  - the same as THREADED, but with virtual threads, so that lots of mostly idle
+//            connections do not need a full thread stack each. Needs Java 21 or later.
+// SELECTOR - the commands are processed on a small pool of worker threads only when there
+//            is something to do. Only clients on the binary wire are taken.
+enum ServerMode {
+	THREADED,
+	VIRTUAL,
+	SELECTOR
+}
+
 // The default implementation of ChatServer using sockets and direct connection
 class ChatServer implements ChatServerInterface {
 
-	// This implementation opens a server socket to listen to a particular
-	// port for incoming connections from the client.
-	ServerSocket ss;
-	
-	// The below list will have the list of chatters.
-	ArrayList<Registration> list;
+	// The below registry will have the chatters.
+	ChatterRegistry registry;
+
+	// How the connections are run, and the number of event loops and worker threads
+	// used in the selector mode.
+	ServerMode mode;
+	int loopThreads;
+	int workerThreads;
+
+	// The chat rooms relayed through this server.
+	ChatRooms rooms;
+
+	// Where the relayed messages are kept. Null if the log is turned off.
+	MessageLog messageLog;
+
+	// What is sent to the chatters while they are away. Null if turned off.
+	InboxStore inboxes;
+
+	// Collapses the roster change notifications. The interval can be set with the
+	// chat.rosterFlushMillis system property.
+	RosterBroadcaster broadcaster;
+
+	// The port the clients connect to, set with the chat.port system property, and the
+	// cluster this server is a node of, or null.
+	int port;
+	Cluster cluster;
 
 	// The default constructor.
 	// For now, this will just initialize the array list.
 	public ChatServer() {
 	
-		this.list = new ArrayList<Registration>();
+		this(ServerMode.THREADED);
+	}
+
+	public ChatServer(ServerMode mode) {
+
+		this.registry = new ChatterRegistry();
+		this.messageLog = MessageLog.openDefault();
+		this.mode = mode;
+		this.port = Integer.getInteger("chat.port", 3000);
+		this.cluster = Cluster.openDefault(this, port);
+
+		// The room ids go on from the ones in the log, so a new room is never taken for
+		// an old conversation.
+		this.inboxes = InboxStore.openDefault(this);
+		this.rooms = new ChatRooms((messageLog == null) ? 1 : messageLog.getMaxConversationId() + 1, inboxes, cluster);
+		if (messageLog != null) {
+			final MessageLog log = messageLog;
+			Runtime.getRuntime().addShutdownHook(new Thread("message_log_close") {
+				public void run() {
+					log.close();
+				}
+			});
+		}
+
+		int cpus = Runtime.getRuntime().availableProcessors();
+		this.loopThreads   = Math.max(1, cpus / 2);
+		this.workerThreads = Math.max(2, cpus);
+
+		this.broadcaster = new RosterBroadcaster(this, Long.getLong("chat.rosterFlushMillis", 50));
+		addGauges();
+	}
+
+	// The server's part of the metrics. Looked at only when the metrics are read.
+	void addGauges() {
+
+		Metrics.gauge("roster.size", new Gauge() {
+			public long value() {
+				return registry.size();
+			}
+		});
+		Metrics.gauge("rooms", new Gauge() {
+			public long value() {
+				return rooms.size();
+			}
+		});
+		Metrics.gauge("queues.commands.total", new Gauge() {
+			public long value() {
+				return getQueued(false, false);
+			}
+		});
+		Metrics.gauge("queues.commands.max", new Gauge() {
+			public long value() {
+				return getQueued(false, true);
+			}
+		});
+		Metrics.gauge("queues.pendingBytes.total", new Gauge() {
+			public long value() {
+				return getQueued(true, false);
+			}
+		});
+		Metrics.gauge("queues.pendingBytes.max", new Gauge() {
+			public long value() {
+				return getQueued(true, true);
+			}
+		});
+	}
+
+	// What is queued on the connections of the registered chatters, the commands or the
+	// bytes not yet written, the total or the most on any one of them.
+	long getQueued(boolean bytes, boolean max) {
+
+		long res = 0;
+		for (Registration r:registry.getRegistrations()) {
+			ChatServerConnectionManager ch = r.getChatServerConnectionManager();
+			if (ch == null) {
+				continue;
+			}
+			long n = bytes ? ch.getPendingBytes() : ch.getQueuedCommands();
+			res = max ? Math.max(res, n) : res + n;
+		}
+		return res;
 	}
 	
 	// A factory method to return a interface object for the chat server.
 	public static ChatServerInterface getChatServerObject() {
 	
-		ChatServer chatServerObject = new ChatServer();
+		return getChatServerObject(ServerMode.THREADED);
+	}
+
+	public static ChatServerInterface getChatServerObject(ServerMode mode) {
+
+		ChatServer chatServerObject = new ChatServer(mode);
 		ChatServerInterface castedObject = (ChatServerInterface) chatServerObject;
 		return castedObject;	
 	}
@@ -60,113 +185,180 @@ class ChatServer implements ChatServerInterface {
 	// The main thread of the chat server program which will just listen to the 
 	// incoming connections from the client.
 	public void listen() {
-	
-		// Initialize the server socket.
-		try {
-			ss = new ServerSocket( 3000 );
-		}
-		catch (Exception e) { }
-		
-		ObjectOutputStream oos;
-		ObjectInputStream ois;
-		
-		// Now, get onto a infinite loop waiting for the connections.
-		while (true) {
 
+		if (cluster != null) {
 			try {
-			
-				// Wait for some client connections.
-				System.out.println( "Waiting for connections.." );
-				Socket client = ss.accept();
-				System.out.println( "Accepted connection from " + client.getInetAddress() );
-				
-				// Create a new client handler for this. The ChatServerConnectionManager should take care of necessary
-				// things for registering this new chatter.
-				ChatServerConnectionManager ch = new ChatServerConnectionManager(this, client);
+				cluster.start();
 			}
-			catch (Exception e) { 
-		
-				System.out.println ("Error:" + e.getMessage());
+			catch (IOException e) {
+				Log.error( "Could not start the cluster", e );
+				return;
 			}
 		}
+	
+		if (mode == ServerMode.VIRTUAL && !ConnectionThreads.virtualThreadsAvailable()) {
+			Log.warn( "Virtual threads are not available, using platform threads." );
+		}
+
+		listenOnChannels();
+	}
+
+	// The server channel is registered with one of the event loops, and every accepted channel
+	// gets a connection manager, which processes its commands on the worker pool in the
+	// selector mode, or on a thread of its own. This thread just waits for the loops to finish.
+	public void listenOnChannels() {
+
+		try {
+			final EventLoopGroup loops = new EventLoopGroup("event_loop", loopThreads);
+			final ExecutorService workers = (mode == ServerMode.SELECTOR) ? Executors.newFixedThreadPool(workerThreads) : null;
+			final boolean virtual = (mode == ServerMode.VIRTUAL);
+			final ChatServer cs = this;
+
+			ServerSocketChannel ssc = ServerSocketChannel.open();
+			ssc.socket().bind(new InetSocketAddress(port));
+			Log.info( "Waiting for connections.." );
+
+			loops.next().registerAcceptor(ssc, new ChannelAcceptor() {
+				public void accepted(SocketChannel client) throws Exception {
+					Log.info( "Accepted connection from ", client.socket().getInetAddress() );
+					if (workers != null) {
+						new ChatServerConnectionManager(cs, client, loops.next(), workers);
+					}
+					else {
+						new ChatServerConnectionManager(cs, client, loops.next(), virtual);
+					}
+				}
+			});
+
+			loops.join();
+		}
+		catch (Exception e) {
+
+			Log.warn( "Error: ", e.getMessage() );
+		}
 	}
 
 	// A helper routine to print information about all the chatters.
 	public void printChatters() {
 	
-		for (int i=0; i<list.size(); i++) {
+		for (Registration r:registry.getRegistrations()) {
 		
-			System.out.println( list.get(i) );
+			if (r.isRemote()) {
+				System.out.println( r + ", on node " + r.getNode() );
+				continue;
+			}
+			System.out.println( r + ", Stream memory: " + r.getChatServerConnectionManager().getRetainedStreamBytes() );
+		}
+		if (messageLog != null) {
+			System.out.println( "Message log: " + messageLog.getAppended() + " appended, at " + messageLog.getEndOffset() +
+			                    ", synced to " + messageLog.getSyncedOffset() );
 		}
 	}
-	
-	// Returns the ID of the chatter based on the username. This routine searches through
-	// all the registrations to find out the correct one by the username.
-	public int getChatterByName(String username) {
-		for(int i=0; i<list.size(); i++) {
-			if (list.get(i).getChatterInfo().getName().equals(username)) {
-				return i;
+
+	// The memory held by the wires of all the connections for what they have sent.
+	public long getRetainedStreamBytes() {
+
+		long total = 0;
+		for (Registration r:registry.getRegistrations()) {
+			if (!r.isRemote()) {
+				total += r.getChatServerConnectionManager().getRetainedStreamBytes();
 			}
 		}
-		return -1;
+		return total;
 	}
 	
-	// Returns the ID of the chatter based on the IP address of the connection. This routine
-	// searches through all the registrations to find out the correct one by the ip address.
-	public int getChatterByAddress(String address) {
-		for(int i=0; i<list.size(); i++) {
-			if (list.get(i).getChatterInfo().getAddress().equals(address)) {
-				return i;
-			}
-		}
-		return -1;	
+	// Returns the registration of the chatter based on the username.
+	public Registration getChatterByName(String username) {
+		return registry.getByName(username);
 	}
 	
-	public ChatServerConnectionManager getConnectionManager(int i) {
-		return list.get(i).getChatServerConnectionManager();
+	// Returns a registration of a chatter based on the IP address of the connection. There
+	// can be more sessions from one address; use getChattersByAddress to get all of them.
+	public Registration getChatterByAddress(String address) {
+		List<Registration> sessions = registry.getByAddress(address);
+		return sessions.isEmpty() ? null : sessions.get(0);
+	}
+
+	public List<Registration> getChattersByAddress(String address) {
+		return registry.getByAddress(address);
 	}
 	
-	// This function removes the chatter, given the index of the registration.
-	public boolean removeChatter(int index) {
-		if (index == -1) {
+	// This function removes the chatter, given the registration.
+	public boolean removeChatter(Registration r) {
+		if (r == null || !registry.remove(r)) {
 			return false;
 		}
-		else {
-			list.remove(index);
+		if (cluster != null) {
+			cluster.localChanged();
 		}
 		return true;
 	}
 	
 	// This function creates a new registration object and adds the chatter.
-	public boolean addChatter(ChatterInfo newChatter,ChatServerConnectionManager ch) {
-		System.out.println( "Adding new chatter: " + newChatter );
-		list.add(new Registration(ch,newChatter));
-		return true;
+	public Registration addChatter(ChatterInfo newChatter,ChatServerConnectionManager ch) {
+		Log.info( "Adding new chatter: ", newChatter.getName() );
+		Registration r = registry.add(newChatter, ch);
+		if (cluster != null) {
+			cluster.localChanged();
+		}
+		return r;
 	}
 	
-	// This function sends a message to all the client handlers to send a message
-	// to their clients to update the members.
+	public ChatRooms getRooms() {
+		return rooms;
+	}
+
+	public Cluster getCluster() {
+		return cluster;
+	}
+
+	public MessageLog getMessageLog() {
+		return messageLog;
+	}
+
+	public InboxStore getInboxes() {
+		return inboxes;
+	}
+
+	// Returns what a client with the given roster version needs to catch up, or null.
+	public RosterUpdate getRosterUpdate(long clientVersion) {
+		return registry.getUpdateSince(clientVersion);
+	}
+
+	// The message sending the update, shared with the other clients if it is a snapshot.
+	public EncodedMessage getRosterMessage(RosterUpdate update) {
+		return registry.getMessage(update);
+	}
+
+	// The current chatters, encoded once for all the clients asking for them.
+	public EncodedMessage getMembersMessage() {
+		return registry.getMembersMessage();
+	}
+
+	// This function makes all the client handlers send the roster changes to their
+	// clients. The broadcaster collapses bursts of changes into one update.
 	public void updateAllHandlers() {
-		for(int i=0; i<list.size(); i++) {
-			System.out.println( "Asking to update.." );
-			list.get(i).getChatServerConnectionManager().queueCommand(ServerCommand.ASK_CLIENT_TO_UPDATE);
-		}		
+		broadcaster.rosterChanged();
 	}
 	
-	// This function returns an array of chatters.
+	// This function returns an array of chatters. The array is a snapshot shared with
+	// the other callers, so it must not be modified.
 	public ChatterInfo[] getChatters() {
 	
-		ChatterInfo[] chatters = new ChatterInfo[list.size()];
-		for(int i=0; i<list.size(); i++) {
-			chatters[i] = list.get(i).getChatterInfo();
-		}
-		return chatters;
+		return registry.getChatters();
 	}
 
 	// The main routine for the chat server. Just listen for connections.
+	// The server mode can be given as the first argument, e.g. "ChatServer selector" or
+	// "ChatServer virtual".
 	public static void main(String[] args) {
 
-		ChatServerInterface c = ChatServer.getChatServerObject();
+		ServerMode mode = ServerMode.THREADED;
+		if (args.length > 0) {
+			mode = ServerMode.valueOf(args[0].toUpperCase());
+		}
+
+		ChatServerInterface c = ChatServer.getChatServerObject(mode);
 		c.listen();
 	}
 }
@@ -174,15 +366,37 @@ class ChatServer implements ChatServerInterface {
 // A object which composes the pair of information of client and the object
 // which handles the client. For most of the operations, the information
 // of client is used, and for lesser operations, the registration object is
-// used.
+// used. The registration is also the handle for the chatter in the registry;
+// the id is unique for the lifetime of the server. A chatter of another node of the
+// cluster has no connection here, just the number of its node.
 class Registration {
 
+	long id;
 	ChatServerConnectionManager ch;
 	ChatterInfo ci;
+	int node;
 	
-	public Registration(ChatServerConnectionManager ch,ChatterInfo ci) {
+	public Registration(long id,ChatServerConnectionManager ch,ChatterInfo ci) {
+		this(id, ch, ci, -1);
+	}
+
+	public Registration(long id,ChatServerConnectionManager ch,ChatterInfo ci,int node) {
+		this.id = id;
 		this.ch = ch;
 		this.ci = ci;
+		this.node = node;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public boolean isRemote() {
+		return ch == null;
+	}
+
+	public int getNode() {
+		return node;
 	}
 	
 	public ChatServerConnectionManager getChatServerConnectionManager() {
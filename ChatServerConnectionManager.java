@@ -2,12 +2,38 @@
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
-// The class for handling client connections. Each object runs on a separate thread
-// for managing client connections.
+// What a connection does when its client does not keep up and the commands queued for it
+// reach chat.queueLimit, set with the chat.queueOverflow system property. Only the live
+// messages are ever dropped, never the chat requests or a backlog from the inbox; the
+// roster updates are coalesced into one anyway, and anything else queued is part of a
+// command which has already started.
+// DROP_OLDEST - the oldest message queued is dropped to make room for the new one.
+// DROP_NEWEST - the new message is dropped.
+// DISCONNECT  - the client is disconnected. What was queued for it goes to its inbox, if
+//               the server keeps inboxes, so it catches up from there or from the room's
+//               history when it comes back.
+enum OverflowPolicy {
+	DROP_OLDEST,
+	DROP_NEWEST,
+	DISCONNECT;
+
+	public static OverflowPolicy getDefault() {
+		return OverflowPolicy.valueOf(System.getProperty("chat.queueOverflow", "disconnect").toUpperCase());
+	}
+}
+
+// The class for handling client connections. The socket is read and written by an event
+// loop; the commands are processed whenever the channel has something to read or a command
+// has been queued. In the threaded modes each object has a thread of its own, which waits
+// for either of the two at once and processes both. In the selector mode there is no thread
+// per object; the commands are processed on the worker pool.
 // Belongs to ChatServer
 
-class ChatServerConnectionManager implements Runnable {
+class ChatServerConnectionManager implements Runnable, ChannelListener {
+
 
 	// The chat server object for this client handler.
 	ChatServer cs;
@@ -19,48 +45,389 @@ class ChatServerConnectionManager implements Runnable {
 	// closed.
 	InetAddress address;
 	
-	// The thread object that will be initialized later.
+	// Used only in the threaded modes. The thread of this connection, a virtual thread if
+	// asked for, and what wakes it up: the event loop when the client has sent something,
+	// or another connection queueing a command.
 	Thread runner;
+	WorkSignal signal;
 
-	// Initialize the output and input streams for socket communication.
-	ObjectOutputStream oos;
-	ObjectInputStream ois;
+	// The wire for socket communication. Its format is whatever the client asked for.
+	ChatWire wire;
 	
-	AbstractQueue<ServerCommandInterface> commandsQueue;
-	AbstractQueue<ChatRequest> chatRequestQueue;
+	// The commands queued for this connection by the other connections, at most
+	// QUEUE_LIMIT of them; see OverflowPolicy.
+	static final int QUEUE_LIMIT = Integer.getInteger("chat.queueLimit", 10000);
+	static final OverflowPolicy OVERFLOW = OverflowPolicy.getDefault();
+
+	BlockingQueue<ServerCommandInterface> commandsQueue;
 	
-	boolean exitThread = false;
+	volatile boolean exitThread = false;
+	AtomicBoolean disconnecting = new AtomicBoolean(false);
+
+	// The registration of this connection's chatter, once it has registered.
+	Registration registration;
+
+	// The relayed rooms this connection's chatter is a member of.
+	Set<ChatRoom> rooms = new CopyOnWriteArraySet<ChatRoom>();
+
+	// The roster version the client has been sent last, and whether a roster update is
+	// queued already.
+	long rosterVersion = 0;
+	AtomicBoolean rosterUpdateQueued = new AtomicBoolean(false);
+
+	// The channel connection owned by an event loop.
+	ChannelConnection channelConnection;
+
+	// Used only in the selector mode. The pool the commands are processed on, and a flag
+	// to make sure only one worker at a time processes the commands of this connection.
+	Executor workers;
+	AtomicBoolean scheduled;
+
+	// A command from the client whose argument has not arrived yet, and the argument once
+	// it has. A command is only started when all of it is there, so a worker never waits
+	// for a client in the middle of one; see ServerCommand.getArgument().
+	ServerCommand awaiting;
+	Object argument;
+	boolean argumentReady = false;
 	
-	ChatServerConnectionManager( ChatServer cs, Socket connection ) {
+	// The constructor for the threaded modes.
+	ChatServerConnectionManager( ChatServer cs, java.nio.channels.SocketChannel channel, EventLoop loop, boolean virtual ) {
 	
-		// Create a new thread for this connection.
-		runner = new Thread(this, connection.getInetAddress().toString());
-		
 		// Initialize the private variables.
 		this.cs = cs;
-		this.connection = connection;
+		this.connection = channel.socket();
 		
 		address = connection.getInetAddress();
 		
-		commandsQueue = new java.util.concurrent.ConcurrentLinkedQueue<ServerCommandInterface>();
-		chatRequestQueue = new java.util.concurrent.ConcurrentLinkedQueue<ChatRequest>();
-		
-		// Start the thread. The main thread should return back here.
+		commandsQueue = new java.util.concurrent.LinkedBlockingQueue<ServerCommandInterface>();
+		signal = new WorkSignal();
+
+		// Create a new thread for this connection, and start it. It waits until the event
+		// loop has read something.
+		runner = ConnectionThreads.newThread(this, address.toString(), virtual);
+		channelConnection = new ChannelConnection(channel, loop, this);
+		Metrics.connectionOpened();
 		runner.start();
+		loop.register(channelConnection);
 	}
-	
-	public void queueChatRequest(ChatRequest cr) {
-		chatRequestQueue.add(cr);
+
+	// The constructor for the selector mode. Nothing is started here; the event loop calls
+	// channelReady() once the client has sent something.
+	ChatServerConnectionManager( ChatServer cs, java.nio.channels.SocketChannel channel, EventLoop loop, Executor workers ) {
+
+		this.cs = cs;
+		this.connection = channel.socket();
+		this.workers = workers;
+
+		address = connection.getInetAddress();
+
+		commandsQueue = new java.util.concurrent.LinkedBlockingQueue<ServerCommandInterface>();
+		scheduled = new AtomicBoolean(false);
+
+		channelConnection = new ChannelConnection(channel, loop, this);
+		Metrics.connectionOpened();
+		loop.register(channelConnection);
 	}
 	
-	public ChatRequest getFirstChatRequest() {
-		return chatRequestQueue.remove();
+	// Queue a chat request to be sent to the client. It goes like any other message, but
+	// is never dropped.
+	public void queueChatRequest(ChatRequest cr) {
+		queueMessage(new EncodedMessage(ClientCommand.CHAT_REQUEST, cr));
 	}
 
 	public void queueCommand(ServerCommandInterface sci) {
+
+		// The limit is checked without a lock, so a few more than QUEUE_LIMIT can get in
+		// when several connections queue at once. The messages are what piles up for a
+		// slow client, and they are all that is ever dropped.
+		if (!exitThread && commandsQueue.size() >= QUEUE_LIMIT && isDroppable(sci)) {
+
+			if (OVERFLOW == OverflowPolicy.DISCONNECT) {
+				// The message goes to the inbox below, with the rest of the queue.
+				disconnectSlowConsumer();
+			}
+			else if (OVERFLOW == OverflowPolicy.DROP_NEWEST) {
+				Metrics.queueDropped.increment();
+				return;
+			}
+			else if (!dropOldestMessage()) {
+				Metrics.queueDropped.increment();
+				return;
+			}
+		}
+
 		commandsQueue.add(sci);
+
+		// Looked at again after the add, not before: the client may have been disconnected
+		// in between, after the queue was spilled, and the message must not be left behind
+		// in a queue nobody processes any more.
+		if (exitThread) {
+			spillQueued();
+			return;
+		}
+		schedule();
 	}
-	
+
+	// Removes the oldest message from the queue. Returns false if there is none.
+	boolean dropOldestMessage() {
+
+		Iterator<ServerCommandInterface> it = commandsQueue.iterator();
+		while (it.hasNext()) {
+			if (isDroppable(it.next())) {
+				it.remove();
+				Metrics.queueDropped.increment();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	static boolean isDroppable(ServerCommandInterface sci) {
+		return sci instanceof MessageDelivery && ((MessageDelivery) sci).isDroppable();
+	}
+
+	// The client is too far behind. The messages queued for it go to its inbox, along with
+	// those that still come until its chatter is gone from its rooms, and the connection is
+	// closed, which unregisters the chatter the same way as when the client goes away by
+	// itself.
+	void disconnectSlowConsumer() {
+
+		if (!disconnecting.compareAndSet(false, true)) {
+			return;
+		}
+		Log.warn( "Disconnecting slow client at ", address );
+		Metrics.slowDisconnects.increment();
+
+		exitThread = true;
+		spillQueued();
+		channelConnection.close();
+		schedule();
+	}
+
+	// Moves what is queued to the inbox, once the connection is going away. One thread at
+	// a time, so the messages get to the inbox in the order they were queued.
+	void spillQueued() {
+
+		synchronized (disconnecting) {
+			ServerCommandInterface sci;
+			while ((sci = commandsQueue.poll()) != null) {
+				spill(sci);
+			}
+		}
+	}
+
+	// Keeps a message for the chatter of a connection that is going away. The backlog
+	// from the inbox is still in the inbox, and anything else is dropped.
+	void spill(ServerCommandInterface sci) {
+
+		Registration r = registration;
+		InboxStore inboxes = cs.getInboxes();
+		if (!(sci instanceof MessageDelivery) || ((MessageDelivery) sci).isBacklog()) {
+			return;
+		}
+		if (r == null || inboxes == null) {
+			Metrics.queueDropped.increment();
+			return;
+		}
+		inboxes.append(r.getChatterInfo().getName(), ((MessageDelivery) sci).getMessage());
+	}
+
+	public int getQueuedCommands() {
+		return commandsQueue.size();
+	}
+
+	// The bytes written by the commands but not yet taken by the socket.
+	public long getPendingBytes() {
+		return channelConnection.getPendingBytes();
+	}
+
+	// Queue an encoded message to be sent to the client.
+	public void queueMessage(EncodedMessage m) {
+		queueCommand(new MessageDelivery(m));
+	}
+
+	public void joinedRoom(ChatRoom room) {
+		rooms.add(room);
+	}
+
+	public void leftRoom(ChatRoom room) {
+		rooms.remove(room);
+	}
+
+	// Called by the event loop when there are new bytes, or the client went away.
+	public void channelReady() {
+		schedule();
+	}
+
+	// Wake up the thread of this connection, or hand the connection to the worker pool,
+	// unless a worker already has it.
+	void schedule() {
+
+		if (signal != null) {
+			signal.signal();
+		}
+		else if (scheduled.compareAndSet(false, true)) {
+			workers.execute(new Runnable() {
+				public void run() {
+					runCommands();
+				}
+			});
+		}
+	}
+
+	// The queued commands wait while the client has not taken what was written for it
+	// already; they are looked at again once the event loop has written that out.
+	boolean hasWork() {
+		return frameReady() || (awaiting == null && !commandsQueue.isEmpty() && !channelConnection.isBackedUp()) ||
+		       channelConnection.isInputFinished();
+	}
+
+	// Whether a whole command has arrived. The wire may have read ahead of the command it
+	// decoded last, so once it is there it has to be asked rather than the channel. The
+	// selector mode only takes the binary wire, so a worker never starts reading a frame
+	// that is only partly there; an object stream, on a thread of its own, may have to
+	// wait for the rest of an object.
+	boolean frameReady() {
+
+		try {
+			return wire != null ? wire.hasFrame() : channelConnection.available() > 0;
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	// Processes everything that is available right now, first the requests from the client,
+	// then the queued commands, and hands what it wrote to the event loop. Throws once the
+	// connection is gone.
+	void processAvailable() throws Exception {
+
+		if (wire == null) {
+			wire = WireProtocols.accept(channelConnection.getInputStream(), channelConnection.getOutputStream(), workers == null);
+		}
+
+		while (true) {
+
+			ServerCommandInterface sci = null;
+
+			if (exitThread == true) {
+				throw new EOFException();
+			}
+
+			if (frameReady()) {
+				sci = decodeCommand(wire.readObject());
+				if (sci == null) {
+					continue;
+				}
+			}
+			else if (channelConnection.isInputFinished()) {
+				throw new EOFException();
+			}
+			// Nothing queued goes in between a command and its argument.
+			else if (awaiting == null && !commandsQueue.isEmpty() && !channelConnection.isBackedUp()) {
+				// Polled, since a slow client's queue can be spilled to its inbox meanwhile.
+				sci = commandsQueue.poll();
+				if (sci == null) {
+					continue;
+				}
+			}
+			else {
+				break;
+			}
+
+			processCommand(sci);
+		}
+
+		// Everything this round wrote goes to the event loop as one write.
+		wire.flush();
+	}
+
+	// The worker side of the selector mode. Processes everything that is available right
+	// now and gives the worker back to the pool.
+	void runCommands() {
+
+		try {
+			processAvailable();
+		}
+		catch (Exception e) {
+
+			// Either the client went away or sent something we could not understand.
+			// In both cases the connection is gone; the flag stays set so this connection
+			// is never scheduled again.
+			if (wire == null && e instanceof StreamCorruptedException) {
+				Log.warn( "Refused client at " + address + ": ", e.getMessage() );
+			}
+			channelConnection.close();
+			channelConnection.discardInput();
+			cleanup();
+			return;
+		}
+
+		// Something might have arrived after the last check, and the event loop would
+		// not have scheduled us since the flag was still set.
+		scheduled.set(false);
+		if (hasWork()) {
+			schedule();
+		}
+	}
+
+	// The execution routine for the thread of the threaded modes. There is one wait for
+	// both the client and the commands queued by the other connections, and whatever woke
+	// the thread up, it processes everything there is, so it never spins.
+	public void run() {
+
+		try {
+			while (true) {
+				signal.await();
+				processAvailable();
+			}
+		}
+		catch (Exception e) {
+
+			// Either the client went away or sent something we could not understand.
+		}
+
+		channelConnection.close();
+		channelConnection.discardInput();
+		cleanup();
+	}
+
+	// Puts together a command from what the client sent. Returns the command once it can
+	// be started, or null while it waits for its argument; the acknowledgement the client
+	// waits for before sending the argument goes out right away.
+	ServerCommandInterface decodeCommand(Object o) throws Exception {
+
+		if (awaiting != null) {
+			ServerCommand command = awaiting;
+			awaiting      = null;
+			argument      = o;
+			argumentReady = true;
+			return command;
+		}
+
+		if (o instanceof ServerCommand && ((ServerCommand) o).getArgument() != CommandArgument.NONE) {
+			awaiting = (ServerCommand) o;
+			if (awaiting.getArgument() == CommandArgument.AFTER_ACKNOWLEDGEMENT) {
+				sendAcknowledgement();
+			}
+			return null;
+		}
+		return (ServerCommandInterface) o;
+	}
+
+	// The object the client sent with the command being processed. It was decoded before
+	// the command was started.
+	public Object readArgument(ServerCommand command) throws Exception {
+
+		if (!argumentReady) {
+			throw new StreamCorruptedException("No argument for " + command);
+		}
+		Object a = argument;
+		argument      = null;
+		argumentReady = false;
+		return a;
+	}
+
 	// A set of getXX routines to get the various variables.
 	public ChatServer getChatServer() {
 		return cs;
@@ -70,112 +437,123 @@ class ChatServerConnectionManager implements Runnable {
 		return connection;
 	}
 	
-	public ObjectOutputStream getOutputStream() {
-		return oos;
+	public ChatWire getWire() {
+		return wire;
 	}
-	
-	public ObjectInputStream getInputStream() {
-		return ois;
+
+	// The memory held by the wire for what has been sent on this connection.
+	public long getRetainedStreamBytes() {
+		ChatWire w = wire;
+		return (w == null) ? 0 : w.getRetainedBytes();
 	}
 	
 	public void sendUpdateMsg() throws Exception {
 	
-		oos.writeObject(ClientCommand.UPDATE_MEMBERS);
+		wire.writeObject(ClientCommand.UPDATE_MEMBERS);
+	}
+
+	// Queue a roster update, unless one is queued already.
+	// Coalesced: while an update is queued, it will send whatever has changed by the time
+	// it is processed, so it is never queued twice.
+	public void queueRosterUpdate() {
+
+		if (rosterUpdateQueued.compareAndSet(false, true)) {
+			queueCommand(ServerCommand.ASK_CLIENT_TO_UPDATE);
+		}
+		else {
+			Metrics.rosterCoalesced.increment();
+		}
+	}
+
+	public void setRosterVersion(long rosterVersion) {
+		this.rosterVersion = rosterVersion;
+	}
+
+	// Sends the client whatever it needs to catch up with the current roster. Nothing is
+	// sent if the client is up to date already.
+	public void sendRosterUpdate() throws Exception {
+
+		RosterUpdate update = cs.getRosterUpdate(rosterVersion);
+		if (update == null) {
+			return;
+		}
+		wire.writeMessage(cs.getRosterMessage(update));
+		rosterVersion = update.getToVersion();
 	}
 
 	// This routine will send acknowledgement to the clients
 	public void sendAcknowledgement () throws Exception {
 
-		oos.writeObject(ClientCommand.ACKNOWLEDGEMENT);
+		wire.writeObject(ClientCommand.ACKNOWLEDGEMENT);
 	}
 
 	public void sendClientCommand (ClientCommand cc) throws Exception {
 
-		oos.writeObject(cc);
+		wire.writeObject(cc);
 	}
 
-	public void cleanup() {
-	
-		System.out.println( "Client " + address + " disconnected " );
-		System.out.println( "Removing chatter at " + address );
-		int index = cs.getChatterByAddress(address.toString());
-		cs.removeChatter(index);
-		cs.updateAllHandlers();
-		System.out.println( "Thread exiting." );
+	public void setRegistration(Registration registration) {
+		this.registration = registration;
 	}
-	
-	// The execution routine for the thread handling the client connection.
-	public void run() {
-	
-		try {
-			oos = new ObjectOutputStream(connection.getOutputStream());
-			ois = new ObjectInputStream(connection.getInputStream());
-		}
-		catch (Exception e) {
-			e.printStackTrace();
-			return;
-		}
-		
-		try {
 
-			BufferedInputStream bis = new BufferedInputStream(connection.getInputStream());
-			while (true) {
+	public Registration getRegistration() {
+		return registration;
+	}
 
-				// Process the command that was sent by the client.
-				// First preference to requests from client
-				ServerCommandInterface sci = null;
-				
-				if (exitThread == true) {
-					cleanup();
-					return;
-				}
-				
-				if (bis.available() > 0) {
-					sci = (ServerCommandInterface)ois.readObject();
-				}
-				else if (!commandsQueue.isEmpty()) {
-					sci = (ServerCommandInterface)commandsQueue.remove();
-				}
+	// Removes this connection's chatter from the server, if it is still registered.
+	void unregister() {
 
-				if (sci != null) {
-					System.out.println( "Thread processing command: " + sci);
-					sci.process(this);
-					System.out.println( "Done processing command: " + sci );
-				}
+		// The chatter stays in its rooms while it is away, so that it gets what it misses
+		// when it comes back.
+		Registration r = registration;
+		for (ChatRoom room:rooms) {
+			if (r != null) {
+				cs.getRooms().goOffline(room, this, r.getChatterInfo().getName());
+			}
+			else {
+				cs.getRooms().leave(room, this);
 			}
 		}
-		
-		// EOFException is encountered when this thread was expecting a command from the
-		// client and suddenly the stream got closed. In that case, it can be assumed that
-		// the client got disconnected.
-		catch (EOFException e) {
-		
-			cleanup();
-			return;
+
+		if (r != null && cs.getCluster() != null) {
+			cs.getCluster().chatterLeft(r.getChatterInfo().getName());
 		}
-		catch (SocketException e) {
-		
-			cleanup();
-			return;
+
+		registration = null;
+		if (cs.removeChatter(r)) {
+			cs.updateAllHandlers();
 		}
-		
-		catch (Exception e) {
-				
-			// Encountered an exception. Probably I should close the connection and
-			// remove the client.
-			cleanup();
-			return;
+	}
+
+	public void cleanup() {
+	
+		Metrics.connectionClosed();
+		Log.info( "Client disconnected, removing chatter at ", address );
+		unregister();
+		Log.debug( "Thread exiting." );
+	}
+	
+	// Process one command. Only ever called by the one thread processing the commands of
+	// this connection at the time.
+	void processCommand(ServerCommandInterface sci) throws Exception {
+
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			Log.debug( "Processing command: ", sci );
+			sci.process(this);
+			failed = false;
+			Log.debug( "Done processing command: ", sci );
+		}
+		finally {
+			Metrics.SERVER.record(sci, System.nanoTime() - start, failed);
 		}
 	}
 	
 	public void closeConnection() {
 
-		System.out.println( "Client " + address + " disconnected " );
-		System.out.println( "Removing chatter at " + address );
-		int index = cs.getChatterByAddress(address.toString());
-		cs.removeChatter(index);
-		cs.updateAllHandlers();
-		System.out.println( "Thread exiting." );
+		Log.info( "Client unregistered, removing chatter at ", address );
+		unregister();
 	}
 }
 
@@ -188,38 +566,47 @@ interface ServerCommandInterface {
 	void process(ChatServerConnectionManager ch) throws Exception;
 }
 
+// What follows a command from the client.
+// NONE                   - nothing, the command is all there is.
+// FOLLOWS                - an object, sent right behind the command.
+// AFTER_ACKNOWLEDGEMENT  - an object, sent once the server has acknowledged the command.
+enum CommandArgument {
+	NONE,
+	FOLLOWS,
+	AFTER_ACKNOWLEDGEMENT
+}
+
 enum ServerCommand implements ServerCommandInterface {
 
     // The command to register a new chatter.
-	REGISTER {
+	REGISTER(CommandArgument.AFTER_ACKNOWLEDGEMENT) {
 	
 		public void process(ChatServerConnectionManager ch) throws Exception {
 			
 			// Get all the required variables
 			ChatServer cs          = ch.getChatServer();
-			ObjectInputStream ois  = ch.getInputStream();
-			ObjectOutputStream oos = ch.getOutputStream();
+			ChatWire wire          = ch.getWire();
 			Socket connection      = ch.getConnection();
 			
-			// Send the acknowledgement that I will process the request.
-			System.out.println( "Sending acknowledgement for command." );
-			ch.sendAcknowledgement();
-			
-			// Having sent the acknowledgement, the client should now be sending
-			// the chatter info object.
-			System.out.println( "Waiting for client to send info." );
-			ChatterInfo newChatter = (ChatterInfo)ois.readObject();
+			// The client sent the chatter info object once the command was acknowledged.
+			ChatterInfo newChatter = (ChatterInfo)ch.readArgument(this);
 			newChatter.setAddress(connection.getInetAddress().getHostAddress());
 						
 			// Add the chatter info object to the list of chatters.
-			System.out.println( "Adding new chatter." );
-			cs.addChatter(newChatter,ch);
+			Log.debug( "Adding new chatter." );
+			ch.setRegistration(cs.addChatter(newChatter,ch));
 			
 			// Send the acknowledgement that I have registered.
-			System.out.println( "Sending acknowledgement." );
+			Log.debug( "Sending acknowledgement." );
 			ch.sendAcknowledgement();
 			
 			cs.updateAllHandlers();
+
+			// Then whatever was sent to the chatter while it was away. It is queued
+			// behind this command, so the client is ready for it.
+			if (cs.getInboxes() != null) {
+				cs.getInboxes().deliver(newChatter.getName(), ch);
+			}
 		}
 	},
 
@@ -230,13 +617,11 @@ enum ServerCommand implements ServerCommandInterface {
 
 			// Get all the required variables
 			ChatServer cs          = ch.getChatServer();
-			ObjectInputStream ois  = ch.getInputStream();
-			ObjectOutputStream oos = ch.getOutputStream();
 
 			ch.closeConnection();
 						
 			// Send the acknowledgement that I have unregistered.
-			System.out.println( "Sending acknowledgement." );
+			Log.debug( "Sending acknowledgement." );
 			ch.sendAcknowledgement();
 		}	
 	},
@@ -248,54 +633,185 @@ enum ServerCommand implements ServerCommandInterface {
 
 			// Get all the required variables
 			ChatServer cs          = ch.getChatServer();
-			ObjectOutputStream oos = ch.getOutputStream();
+			ChatWire wire          = ch.getWire();
 		
 			// Send the acknowledgement that I will process the request.
-			System.out.println( "Sending acknowledgement for command." );
+			Log.debug( "Sending acknowledgement for command." );
 			ch.sendAcknowledgement();
 			
-			// Get the array of all the chatters.
-			System.out.println( "Sending info to client." );
-			ChatterInfo[] ciArray = cs.getChatters();
-			
-			// Write it into the connection's output stream.
-			oos.writeObject(ciArray);
+			// The array of all the chatters, encoded once for every client asking
+			// until the roster changes.
+			Log.debug( "Sending info to client." );
+			wire.writeMessage(cs.getMembersMessage());
 		}		
 	},
 	
+	// Push the roster changes to the client.
 	ASK_CLIENT_TO_UPDATE {
 		
 		public void process(ChatServerConnectionManager ch) throws Exception {
-			ch.sendUpdateMsg();
+			ch.rosterUpdateQueued.set(false);
+			ch.sendRosterUpdate();
+		}
+	},
+
+	// The client has lost track of the roster. It sends the version it has, and
+	// gets back a ROSTER_UPDATE from that version, or a snapshot if it is too old.
+	// There is no acknowledgement; the update comes like the pushed ones.
+	SYNC_MEMBERS(CommandArgument.FOLLOWS) {
+
+		public void process(ChatServerConnectionManager ch) throws Exception {
+
+			Long clientVersion = (Long) ch.readArgument(this);
+			ch.setRosterVersion(clientVersion.longValue());
+			ch.sendRosterUpdate();
 		}
 	},
 	
-	FORWARD_CHAT_REQUEST {
+	FORWARD_CHAT_REQUEST(CommandArgument.AFTER_ACKNOWLEDGEMENT) {
 	
 		public void process(ChatServerConnectionManager ch) throws Exception {
 		
-			ch.sendAcknowledgement();
-			ObjectInputStream ois = ch.getInputStream();
-			ChatRequest cr = (ChatRequest) ois.readObject();
+			ChatRequest cr = (ChatRequest) ch.readArgument(this);
+
+			// The targets connect to the source chatter, so it must carry the address
+			// the server sees, not whatever the client had when it sent its info.
+			cr.getSourceChatter().setAddress(ch.getConnection().getInetAddress().getHostAddress());
+
+			// A relayed chat gets a room on the server. The source chatter is told
+			// about the room like the targets are, so that it learns the room id.
+			ChatRoom room = null;
+			if (cr.isRelayed()) {
+				room = ch.getChatServer().getRooms().create(cr);
+				cr.setRoomId(room.getId());
+				room.join(ch);
+				ch.queueChatRequest(cr);
+			}
+
 			ChatterInfo[] chatterArray = cr.getTargetChatters();
+			Cluster cluster = ch.getChatServer().getCluster();
 			for (ChatterInfo ci:chatterArray) {
-				int index = ch.getChatServer().getChatterByName(ci.getName());
-				ChatServerConnectionManager cscm = ch.getChatServer().getConnectionManager(index);
+				Registration target = ch.getChatServer().getChatterByName(ci.getName());
+
+				// A chatter of another node, or one which is not connected and whose
+				// home is another node, gets the request through that node.
+				if (cluster != null && (target == null || target.isRemote())) {
+					int node = cluster.locate(ci.getName());
+					if (node != cluster.getNode()) {
+						if (room != null) {
+							room.joinRemote(ci.getName(), node);
+						}
+						cluster.invite(node, ci.getName(), cr);
+						continue;
+					}
+				}
+
+				if (target == null) {
+
+					// Kept for when the chatter comes back: a member of a room gets
+					// the room's messages in its inbox, a direct request is kept as it is.
+					InboxStore inboxes = ch.getChatServer().getInboxes();
+					if (inboxes == null) {
+						Log.info( "Chatter is not registered: ", ci.getName() );
+					}
+					else if (room != null) {
+						ch.getChatServer().getRooms().addOffline(room, ci.getName());
+					}
+					else {
+						inboxes.append(ci.getName(), new EncodedMessage(ClientCommand.CHAT_REQUEST, cr));
+					}
+					continue;
+				}
+				ChatServerConnectionManager cscm = target.getChatServerConnectionManager();
+				if (room != null) {
+					room.join(cscm);
+				}
 				cscm.queueChatRequest(cr);
-				cscm.queueCommand(ServerCommand.INCOMING_CHAT_REQUEST);
 			}
 			ch.sendAcknowledgement();
 		}	
 	},
 	
-	INCOMING_CHAT_REQUEST {
-	
+	// A message for a relayed room. A RoomMessage follows; there is no acknowledgement.
+	// The server stamps it with the sender, the time and the room's sequence number,
+	// and queues it for the other members.
+	ROOM_MESSAGE(CommandArgument.FOLLOWS) {
+
 		public void process(ChatServerConnectionManager ch) throws Exception {
-	
-			ch.sendClientCommand(ClientCommand.CHAT_REQUEST);
-			
-			ObjectOutputStream oos = ch.getOutputStream();
-			oos.writeObject(ch.getFirstChatRequest());
+
+			RoomMessage msg = (RoomMessage) ch.readArgument(this);
+			ChatRoom room = ch.getChatServer().getRooms().get(msg.getRoomId());
+
+			// A room of another node is posted to there.
+			Cluster cluster = ch.getChatServer().getCluster();
+			if (room == null && cluster != null && ch.getRegistration() != null) {
+				String name = ch.getRegistration().getChatterInfo().getName();
+				if (cluster.isInRemoteRoom(name, msg.getRoomId())) {
+					cluster.post(msg.getRoomId(), name, msg.getText());
+					return;
+				}
+			}
+
+			if (room == null || ch.getRegistration() == null ||
+			    !(room.isMember(ch) || room.isOfflineMember(ch.getRegistration().getChatterInfo().getName()))) {
+				Log.warn( "Dropping message for room ", msg.getRoomId() );
+				return;
+			}
+
+			room.post(ch, ch.getRegistration().getChatterInfo().getName(), msg.getText(), ch.getChatServer().getMessageLog());
+		}
+	},
+
+	// Leave a relayed room. The room id follows as a Long.
+	LEAVE_ROOM(CommandArgument.FOLLOWS) {
+
+		public void process(ChatServerConnectionManager ch) throws Exception {
+
+			Long roomId = (Long) ch.readArgument(this);
+			ChatRoom room = ch.getChatServer().getRooms().get(roomId.longValue());
+			if (room != null) {
+				ch.getChatServer().getRooms().leave(room, ch);
+			}
+			else if (ch.getChatServer().getCluster() != null && ch.getRegistration() != null) {
+				ch.getChatServer().getCluster().leaveRemoteRoom(ch.getRegistration().getChatterInfo().getName(), roomId.longValue());
+			}
+		}
+	},
+
+	// The history of a relayed room, for its members. A HistoryRequest follows; the
+	// answer is sent in HISTORY_PAGE commands, at least one.
+	GET_HISTORY(CommandArgument.FOLLOWS) {
+
+		public void process(ChatServerConnectionManager ch) throws Exception {
+
+			HistoryRequest request = (HistoryRequest) ch.readArgument(this);
+			ChatServer cs = ch.getChatServer();
+			ChatRoom room = cs.getRooms().get(request.getRoomId());
+			MessageLog log = cs.getMessageLog();
+			Registration r = ch.getRegistration();
+
+			long[] offsets = new long[0];
+			if (log != null && room != null && r != null &&
+			    (room.isMember(ch) || room.isOfflineMember(r.getChatterInfo().getName()))) {
+				offsets = log.getHistory().find(request, HistoryStream.MAX);
+			}
+
+			MessageHistory history = (log == null) ? null : log.getHistory();
+			new HistoryStream(history, request.getRoomId(), offsets).process(ch);
 		}
+	};
+
+	CommandArgument argument;
+
+	ServerCommand() {
+		this(CommandArgument.NONE);
+	}
+
+	ServerCommand(CommandArgument argument) {
+		this.argument = argument;
+	}
+
+	public CommandArgument getArgument() {
+		return argument;
 	}
 }
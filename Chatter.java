@@ -2,20 +2,50 @@
 import java.io.*;
 import java.util.*;
 import java.net.*;
-
-class Chatter implements Runnable, CommandlineInterface {
-
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
+
+// One direct conversation with the other chatters. The chatter has no thread of its own;
+// its sockets belong to the event loop of the client's ConversationHost, and its work is
+// done on the host's workers whenever a peer has sent something or a command is queued.
+// Only one worker at a time works for a chatter, so everything below still runs as if on
+// a single thread.
+class Chatter implements Conversation {
+
+	// How the texts are sent, set with the chat.textMode system property.
+	// "stream" - TEXT_FRAME with a sequence number, back to back, no waiting.
+	// "ack"    - the old way: RECIEVE_TEXT, wait for the acknowledgement, then the text.
+	static final boolean STREAMING = !"ack".equals(System.getProperty("chat.textMode", "stream"));
+
+	// In the streaming mode, the receiver acknowledges every this many frames with the
+	// sequence number it has got up to. Zero turns the acknowledgements off. They only
+	// report how far behind each peer is, see getUnacknowledged(); nothing is resent.
+	// A peer is one TCP connection, which loses nothing while it lasts, and a peer whose
+	// connection has gone is dropped from the chat, with nothing to resend to.
+	static final int ACK_EVERY = Integer.getInteger("chat.ackEvery", 32);
 	    
 	private ChatterInfo myself;
 	int port;
 	
-    ArrayList<Socket> connections = new ArrayList<Socket>();
-    ArrayList<ObjectInputStream> oiss = new ArrayList<ObjectInputStream>();
-    ArrayList<ObjectOutputStream> ooss = new ArrayList<ObjectOutputStream>();
-    ArrayList<BufferedInputStream> biss = new ArrayList<BufferedInputStream>();
+    // The event loop adds to this while the workers go through it.
+    List<ChatPeer> peers = new java.util.concurrent.CopyOnWriteArrayList<ChatPeer>();
+
+    // The sequence number of the last text sent. The same text has the same number for
+    // every peer, so it is encoded only once.
+    volatile long sentSeq = 0;
+
+    // The id of the conversation in the chat client, and the host running it.
+    long conversationId;
+    ConversationHost host;
+
+    // Where the initiator accepts the other chatters.
+    ServerSocketChannel listener;
+
+    // Set while a worker has the chatter, so that it is never worked on by two at once.
+    AtomicBoolean scheduled = new AtomicBoolean(false);
     
 	boolean isInitiator;
-	boolean exitNow;
+	volatile boolean exitNow;
 	
 	ArrayList<ChatterRegistration> chatters = new ArrayList<ChatterRegistration>();
 	
@@ -51,19 +81,9 @@ class Chatter implements Runnable, CommandlineInterface {
         sendChatObject((ChatObjectInterface)tco);
     }
         
-	public boolean recieveAcknowledgement(ObjectInputStream ois) throws Exception {
-	
-		ChatterCommand cc = (ChatterCommand) ois.readObject();
-		if (cc == ChatterCommand.ACKNOWLEDGEMENT) {
-			return true;
-		}
-		else {
-			return false;
-		}
-	}
-
    	public void queueCommand(ChatterCommandInterface cci) {
 		commandsQueue.add(cci);
+		schedule();
 	}
 
     public void sendChatObject(ChatObjectInterface coi) {
@@ -71,27 +91,30 @@ class Chatter implements Runnable, CommandlineInterface {
         queueCommand(ChatterCommand.SEND_TEXT);
     }
     
-	public Chatter (ChatterInfo myself, int port) {
-
-        connections = new ArrayList<Socket>();
+	public Chatter (long conversationId, ChatterInfo myself, ChatRequest cr, ConversationHost host) {
 
-		System.out.println("Chatter: In constructor, initiator");
+		Log.debug("Chatter: In constructor, initiator");
 		isInitiator = true;
 		this.myself = myself;
+		this.cr = cr;
+		this.port = cr.getPortAddress();
+		this.conversationId = conversationId;
+		this.host = host;
         commandsQueue = new java.util.concurrent.ConcurrentLinkedQueue<ChatterCommandInterface>();
 
 		try {
-            ServerSocket ss = new ServerSocket(port);
-            ChatIncomingListener cil = new ChatIncomingListener (ss,this);
-
+            listener = ServerSocketChannel.open();
+            listener.bind(new InetSocketAddress(port));
+            host.getLoop().registerAcceptor(listener, new ChannelAcceptor() {
+                public void accepted(SocketChannel sc) throws Exception {
+                    addChannel(sc, true);
+                }
+            });
+            Log.debug("Chatter: Listening on port ", port);
         }
 		catch (Exception e) {
-			e.printStackTrace();
-            return;
+			Log.error("Chatter: Could not listen on port " + port, e);
 		}
-
-		Thread t = new Thread( this, "chatter" );
-		t.start();
 	}
     
     public ChatObjectInterface getFirstChatObject() {
@@ -102,40 +125,69 @@ class Chatter implements Runnable, CommandlineInterface {
 		chatters.add(cr);
 	}
 	
-	public void addIncomingChatter(Socket connection) throws Exception {
-        System.out.println( "Added a new connection" );
-		ooss.add(new ObjectOutputStream(connection.getOutputStream()));
-        oiss.add(new ObjectInputStream(connection.getInputStream()));
-        biss.add(new BufferedInputStream(connection.getInputStream()));
-        connections.add(connection);
-        System.out.println( "Done adding streams and connection" );
+	// Adds a peer for a channel, either accepted by the initiator or connected to it. The
+	// event loop takes over the channel from here.
+	ChatPeer addChannel(SocketChannel sc, boolean accepted) {
+
+        Log.debug( "Added a new connection" );
+        ChatPeer peer = new ChatPeer(sc, host.getLoop(), accepted, sentSeq, new ChannelListener() {
+            public void channelReady() {
+                schedule();
+            }
+        });
+        peers.add(peer);
+        schedule();
+        return peer;
 	}
 
-	public Chatter (ChatRequest cr, ChatterInfo myself, int port) {
+    public ChatPeer getPeer(Socket connection) {
+
+        for (ChatPeer peer:peers) {
+            if (peer.getConnection() == connection) {
+                return peer;
+            }
+        }
+        return null;
+    }
+
+	public Chatter (long conversationId, ChatRequest cr, ChatterInfo myself, int port, ConversationHost host) {
 			
-		Socket connection;
-        System.out.println( "port = " + port);
+        Log.debug( "port = ", port);
         commandsQueue = new java.util.concurrent.ConcurrentLinkedQueue<ChatterCommandInterface>();
-        connections = new ArrayList<Socket>();
         this.cr = cr;
+        this.myself = myself;
+        this.port = port;
+        this.conversationId = conversationId;
+        this.host = host;
 
 		try {
-			connection = new Socket(cr.getSourceChatter().getAddress(), port);
-			addIncomingChatter(connection);
-
+			SocketChannel sc = SocketChannel.open(new InetSocketAddress(cr.getSourceChatter().getAddress(), port));
+			addChannel(sc, false);
         }
 		catch (Exception e) {
-			e.printStackTrace();
+			Log.error("Chatter: Could not connect to port " + port, e);
             return;
 		}
 
-        this.myself = myself;
         queueCommand(ChatterCommand.DO_REGISTER);
-		
-		Thread t = new Thread( this, "chatter" );
-		t.start();
 	}
+
+    public long getConversationId() {
+        return conversationId;
+    }
     
+    // The memory held by the wires for what has been sent to the other chatters.
+    public long getRetainedStreamBytes() {
+
+        long total = 0;
+        for (ChatPeer peer:peers) {
+            if (peer.isOpen()) {
+                total += peer.getWire().getRetainedBytes();
+            }
+        }
+        return total;
+    }
+
     public ChatRequest getChatRequest() {
         return cr;
     }
@@ -144,58 +196,197 @@ class Chatter implements Runnable, CommandlineInterface {
         return myself;
     }
     
-	public void sendAcknowledgement(ObjectOutputStream oos) throws Exception {
-		oos.writeObject(ChatterCommand.ACKNOWLEDGEMENT);
+    // Sends a text to all the peers in the streaming mode. The text is encoded once, and
+    // the same message is queued for every peer; the event loop writes it out, so the
+    // next text can follow right away without waiting for any of them.
+    public void fanOut(ChatObjectInterface coi) throws Exception {
+
+        sentSeq++;
+        EncodedMessage m = new EncodedMessage(ChatterCommand.TEXT_FRAME, Long.valueOf(sentSeq), coi.getWireObject());
+        for (ChatPeer peer:peers) {
+            peer.send(m);
+        }
+
+        coi.echoChatObject(whoAmI().getName());
+    }
+
+    // The joining chatters are only connected to the initiator, so the initiator passes on
+    // what each of them says to all the others, the same way whichever way it came in.
+    // Each peer gets it through its own queue, like the initiator's own texts.
+    public void relay(ChatPeer from, String sender, Object text) {
+
+        if (!isInitiator) {
+            return;
+        }
+        EncodedMessage m = new EncodedMessage(ChatterCommand.FORWARDED_TEXT, sender, text);
+        for (ChatPeer peer:peers) {
+            if (peer != from) {
+                peer.send(m);
+            }
+        }
+    }
+
+    // The number of texts sent which the given peer has not acknowledged yet.
+    public long getUnacknowledged(ChatPeer peer) {
+        return peer.getUnacknowledged(sentSeq);
+    }
+
+    // Forget a peer whose connection has gone.
+    void removePeer(ChatPeer peer) {
+
+        peer.close();
+        peers.remove(peer);
+        ChatterInfo ci = getChatterByConnection(peer.getConnection());
+        ConsoleRenderer.console.println( "<" + ((ci == null) ? "a chatter" : ci.getName()) + " left the chat>" );
+    }
+
+	public void sendAcknowledgement(ChatWire wire) throws Exception {
+		wire.writeObject(ChatterCommand.ACKNOWLEDGEMENT);
 	}
 	
 	public void demandExit() {
 		exitNow = true;
+		schedule();
 	}
-	
-	public void run() {
-	
-		System.out.println("Chatter: Started a new thread");
-        
-		while(true) {
-		
-        
-			if (exitNow) {
-				return;
+
+	public void leave() {
+		demandExit();
+	}
+
+	// Hand the chatter to a worker, unless one has it already.
+	void schedule() {
+
+		if (scheduled.compareAndSet(false, true)) {
+			host.getWorkers().execute(new Runnable() {
+				public void run() {
+					runCommands();
+				}
+			});
+		}
+	}
+
+	// Whether there is anything for a worker to do. The local commands wait until the
+	// first peer can be talked to.
+	boolean hasWork() throws IOException {
+
+		if (exitNow) {
+			return true;
+		}
+		for (ChatPeer peer:peers) {
+			if (peer.isReady() || peer.isFinished()) {
+				return true;
 			}
-            
-            try {
-
-                for(int i=0; i<connections.size(); i++) {
-                
-                    Socket connection = connections.get(i);
-                    ObjectOutputStream oos = ooss.get(i);
-                    ObjectInputStream ois = oiss.get(i);
-                    BufferedInputStream bis = biss.get(i);
-					
-					ChatterCommandInterface cci = null;
-					//while (true) {
-        
-						if (bis.available() > 0) {
-                            //System.out.println( "Something is available to read");
-                            cci = (ChatterCommandInterface) ois.readObject();
-						}
-						else if (!commandsQueue.isEmpty()) {
-                            //System.out.println( "Something is available to process");
-							cci = (ChatterCommandInterface) commandsQueue.remove();
+		}
+		return !peers.isEmpty() && !commandsQueue.isEmpty() && peers.get(0).canOpen();
+	}
+
+	// Done on a worker. Goes through the peers and the commands until there is nothing
+	// left to do right now, then gives the worker back.
+	void runCommands() {
+
+		try {
+			while (true) {
+
+				if (exitNow) {
+					shutdown();
+					return;
+				}
+
+				boolean worked = false;
+
+				// First whatever the peers have sent, one frame at a time. A command whose
+				// arguments are not all there yet waits in its peer for the rest.
+				for (ChatPeer peer:peers) {
+
+					try {
+						if (peer.isReady() && peer.open() && peer.getWire().hasFrame()) {
+							ChatterCommandInterface cci = peer.decodeCommand(peer.getWire().readObject());
+							if (cci != null) {
+								processCommand(cci, peer);
+							}
+							worked = true;
 						}
-				
-						if (cci != null) {
-							cci.process(this,connection,ois,oos);
+						else if (peer.isFinished()) {
+							removePeer(peer);
+							worked = true;
 						}
-					//}
-                }
-                
+					}
+					catch (IOException e) {
+						removePeer(peer);
+						worked = true;
+					}
+				}
+
+				// Then the commands queued locally. They are not meant for any one peer;
+				// SEND_TEXT goes to all of them, and DO_REGISTER is only queued by a
+				// joining chatter, which has just the one connection. Nothing is sent
+				// before there is somebody to send it to.
+				if (!peers.isEmpty() && !commandsQueue.isEmpty()) {
+					ChatPeer first = peers.get(0);
+					if (first.open()) {
+						ChatterCommandInterface cci = commandsQueue.remove();
+						processCommand(cci, first);
+						worked = true;
+					}
+				}
+
+				if (!worked) {
+					break;
+				}
 			}
-			catch (Exception e) {
-				e.printStackTrace();
-                return;
+
+			// What this round wrote goes out together, and so does what it showed.
+			for (ChatPeer peer:peers) {
+				peer.flush();
+			}
+			ConsoleRenderer.console.flush();
+		}
+		catch (Exception e) {
+			Log.error("Chatter: Conversation " + conversationId + " failed", e);
+			shutdown();
+			return;
+		}
+
+		// Anything that came in after the last look, while the flag was still set, would
+		// not have scheduled us.
+		scheduled.set(false);
+		try {
+			if (hasWork()) {
+				schedule();
 			}
-        }		
+		}
+		catch (IOException e) {
+			schedule();
+		}
+	}
+
+	// Process one command, for the given peer, and count it in the metrics.
+	void processCommand(ChatterCommandInterface cci, ChatPeer peer) throws Exception {
+
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			cci.process(this, peer);
+			failed = false;
+		}
+		finally {
+			Metrics.CHATTER.record(cci, System.nanoTime() - start, failed);
+		}
+	}
+
+	// Closes everything. The flag stays set, so the chatter is never scheduled again.
+	void shutdown() {
+
+		for (ChatPeer peer:peers) {
+			peer.close();
+		}
+		peers.clear();
+		try {
+			if (listener != null) {
+				listener.close();
+			}
+		}
+		catch (IOException e) { }
 	}
 	
 	public ChatterInfo getInfo() {
@@ -204,39 +395,309 @@ class Chatter implements Runnable, CommandlineInterface {
 	    
 }
 
-class ChatIncomingListener implements Runnable {
+// One connection to another chatter. The channel belongs to the event loop; what is sent
+// is queued on the channel and written out by the loop as the other end takes it, so a
+// peer that reads slowly only ever holds up its own queue, never the chatter or the other
+// peers.
+//
+// The wire is set up by the chatter's worker once the handshake can go ahead: right away
+// on the connecting side, and once the first bytes have arrived on the accepting side. It
+// is always the binary wire, whatever chat.wire says, since the workers are shared and
+// must only ever read whole frames.
+//
+// Nothing here ever waits for the peer. A command is put together from the frames as they
+// come in, like the server does with its clients, and whatever has to wait for an
+// acknowledgement is held here until the acknowledgement comes in as a frame of its own.
+class ChatPeer {
+
+	SocketChannel channel;
+	ChannelConnection conn;
+	boolean accepted;
+	volatile ChatWire wire;
+	volatile boolean closed = false;
+
+	// Where the registration has got to. The joining chatter sends REGISTER_INCOMING and
+	// then its info, and the other end acknowledges three times: the command, the info,
+	// and the registration.
+	volatile PeerState state = PeerState.CONNECTED;
+
+	// The command waiting for its arguments, and what has come of them so far.
+	ChatterCommand awaiting;
+	ArrayList<Object> arguments = new ArrayList<Object>();
+
+	// What is to be sent but has to wait, in order: the messages, and the texts sent the
+	// old way. A text sent the old way goes out as RECIEVE_TEXT, and the text itself only
+	// once the peer has acknowledged it; nothing else may go in between, so everything
+	// after it waits too.
+	ArrayDeque<Object> held = new ArrayDeque<Object>();
+	ChatObjectInterface textWaiting;
+
+	// The sequence number of the last text the peer has acknowledged. Starts at what had
+	// been sent before the peer joined.
+	volatile long ackedSeq = 0;
+
+	// The last sequence number received, and the last one we have acknowledged.
+	long receivedSeq = 0;
+	long ackSentSeq = 0;
+
+	public ChatPeer(SocketChannel channel, EventLoop loop, boolean accepted, long sentSeq, ChannelListener listener) {
+
+		this.channel  = channel;
+		this.accepted = accepted;
+		this.ackedSeq = sentSeq;
+
+		conn = new ChannelConnection(channel, loop, listener);
+		loop.register(conn);
+	}
 
-	ServerSocket ss;
-	Chatter c;
-	boolean exitNow;
-	
-	    
-	public ChatIncomingListener(ServerSocket ss,Chatter c) {
-		this.ss = ss;
-		this.c  = c;
-		
-		Thread t = new Thread( this, "listener" );
-		t.start();
+	// The socket stands for the peer in the chatter commands. The channel hands out the
+	// same socket object every time.
+	public Socket getConnection() {
+		return channel.socket();
 	}
 
-	public void run() {
-		
-		System.out.println("ChatIncomingListener: Created port, now waiting");
+	public ChatWire getWire() {
+		return wire;
+	}
+
+	public boolean isOpen() {
+		return wire != null;
+	}
+
+	public boolean canOpen() {
+		return wire != null || !accepted || conn.available() > 0;
+	}
+
+	// Sets up the wire if it can be done now. Returns whether the peer has a wire.
+	public synchronized boolean open() throws IOException {
+
+		if (wire == null && canOpen()) {
+			if (accepted) {
+				wire = WireProtocols.accept(conn.getInputStream(), conn.getOutputStream(), false);
+			}
+			else {
+				wire = WireProtocols.connect(conn.getInputStream(), conn.getOutputStream(), WireFormat.BINARY);
+			}
+		}
+		return wire != null;
+	}
+
+	// Whether there is something to read: a whole command, or the first bytes the wire
+	// of an accepted peer is waiting for.
+	public boolean isReady() throws IOException {
+
+		ChatWire w = wire;
+		if (closed) {
+			return false;
+		}
+		return (w == null) ? accepted && conn.available() > 0 : w.hasFrame();
+	}
+
+	// Whether the peer has gone, with nothing more to read from it.
+	public boolean isFinished() {
+		return closed || conn.isInputFinished();
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public boolean isRegistered() {
+		return state == PeerState.REGISTERED;
+	}
+
+	public PeerState getState() {
+		return state;
+	}
+
+	public void setState(PeerState state) {
+		this.state = state;
+	}
+
+	// Puts together a command from what the peer sent. Returns the command once all its
+	// arguments are there, or null while it waits for them; the acknowledgement the peer
+	// waits for before sending the argument goes out right away. An acknowledgement can
+	// come in between a command and its argument, when both ends send a text the old way
+	// at once, and it is for a command of our own, so it is handed back as it is.
+	public ChatterCommandInterface decodeCommand(Object o) throws Exception {
+
+		if (awaiting != null && o != ChatterCommand.ACKNOWLEDGEMENT) {
+			arguments.add(o);
+			if (arguments.size() < awaiting.getArgumentCount()) {
+				return null;
+			}
+			ChatterCommand command = awaiting;
+			awaiting = null;
+			return command;
+		}
+
+		if (!(o instanceof ChatterCommand)) {
+			throw new StreamCorruptedException("Expected a chatter command, got " + o);
+		}
+		ChatterCommand cc = (ChatterCommand) o;
+		if (!isExpected(cc)) {
+			throw new StreamCorruptedException("Did not expect " + cc + " from a chatter, the registration is at " + state);
+		}
+		if (cc.getArgument() != CommandArgument.NONE) {
+			awaiting = cc;
+			arguments.clear();
+			if (cc.getArgument() == CommandArgument.AFTER_ACKNOWLEDGEMENT) {
+				wire.writeObject(ChatterCommand.ACKNOWLEDGEMENT);
+			}
+			return null;
+		}
+		return cc;
+	}
+
+	// Until the registration is done nothing but the registration may come in, and it only
+	// comes in once. The local commands never come from a peer.
+	boolean isExpected(ChatterCommand cc) {
+
+		switch (cc) {
+		case DO_REGISTER:
+		case SEND_TEXT:
+			return false;
+		case REGISTER_INCOMING:
+			return accepted && state == PeerState.CONNECTED;
+		case ACKNOWLEDGEMENT:
+			return !accepted || state == PeerState.REGISTERED;
+		default:
+			return state == PeerState.REGISTERED;
+		}
+	}
+
+	// The next argument of the command being processed. They were all decoded before the
+	// command was started.
+	public <T> T readArgument(ChatterCommand command, Class<T> type) throws IOException {
+
+		if (arguments.isEmpty()) {
+			throw new StreamCorruptedException("No argument for " + command);
+		}
+		Object o = arguments.remove(0);
+		if (!type.isInstance(o)) {
+			throw new StreamCorruptedException("Expected a " + type.getSimpleName() + " for " + command + ", got " + o);
+		}
+		return type.cast(o);
+	}
+
+	// Sends a message, or holds it until the peer is registered, or while a text sent the
+	// old way waits for its acknowledgement.
+	public void send(EncodedMessage m) {
+		hold(m);
+	}
+
+	// Sends a text the old way. See ChatterCommand.SEND_TEXT.
+	public void sendText(ChatObjectInterface coi) {
+		hold(coi);
+	}
+
+	void hold(Object o) {
+
+		if (closed) {
+			return;
+		}
+		held.add(o);
+		sendHeld();
+	}
+
+	// Writes out what is held, up to the next text that has to wait for an
+	// acknowledgement. Nothing goes out before the registration is done, on either side:
+	// the joining chatter is still reading acknowledgements until then.
+	public void sendHeld() {
+
+		if (closed || wire == null || state != PeerState.REGISTERED) {
+			return;
+		}
 		try {
-		
-			while(true) {
-				Socket newConnection = ss.accept();
-				c.addIncomingChatter(newConnection);
+			while (textWaiting == null && !held.isEmpty()) {
+				Object o = held.remove();
+				if (o instanceof EncodedMessage) {
+					wire.writeMessage((EncodedMessage) o);
+				}
+				else {
+					wire.writeObject(ChatterCommand.RECIEVE_TEXT);
+					textWaiting = (ChatObjectInterface) o;
+				}
 			}
 		}
-		
-		catch (Exception e) {
-			
-			System.out.println( "Chat listener quitting" );
+		catch (IOException e) {
+			close();
+		}
+	}
+
+	// The peer has acknowledged RECIEVE_TEXT, so its text goes out, and whatever was held
+	// behind it. Returns false if no text was waiting.
+	public boolean textAcknowledged() throws Exception {
+
+		if (textWaiting == null) {
+			return false;
+		}
+		ChatObjectInterface coi = textWaiting;
+		textWaiting = null;
+		coi.send(wire);
+		sendHeld();
+		return true;
+	}
+
+	// Hands what has been written to the event loop.
+	public void flush() {
+
+		if (closed || wire == null) {
 			return;
 		}
+		sendHeld();
+		try {
+			wire.flush();
+		}
+		catch (IOException e) {
+			close();
+		}
+	}
+
+	public void close() {
+		closed = true;
+		conn.close();
+		conn.discardInput();
+	}
+
+	// Returns false if the frame is not the one expected next. The first frame from a
+	// peer can have any number, since the peer may have sent texts before we joined.
+	public boolean received(long seq) {
+
+		boolean inOrder = (receivedSeq == 0 || seq == receivedSeq + 1);
+		receivedSeq = seq;
+		return inOrder;
+	}
+
+	// Returns true when it is time to acknowledge what has been received.
+	public boolean shouldAcknowledge(int ackEvery) {
+		return ackEvery > 0 && receivedSeq - ackSentSeq >= ackEvery;
+	}
+
+	public void acknowledgementSent() {
+		ackSentSeq = receivedSeq;
+	}
+
+	public void acknowledged(long seq) {
+		if (seq > ackedSeq) {
+			ackedSeq = seq;
+		}
+	}
+
+	// The number of texts sent which the peer has not acknowledged yet.
+	public long getUnacknowledged(long sentSeq) {
+		return sentSeq - ackedSeq;
 	}
-    	
+}
+
+// How far the registration with a peer has got. The accepting side goes straight from
+// CONNECTED to REGISTERED once it has the joining chatter's info.
+enum PeerState {
+	CONNECTED,
+	REGISTER_SENT,
+	INFO_SENT,
+	INFO_TAKEN,
+	REGISTERED
 }
 
 class ChatterRegistration {
@@ -280,6 +741,10 @@ class ChatterInfo implements Serializable {
 	public String getName() {
 		return username;
 	}
+
+	public String getPassword() {
+		return password;
+	}
 	
 	public String toString() {
 	
@@ -291,13 +756,19 @@ class ChatterInfo implements Serializable {
 
 class ChatRequest implements Serializable {
 
+	// The port address of a chat relayed through a room on the server.
+	static final int RELAYED = -1;
+
 	int portAddress;
 	ChatterInfo sourceChatter;
 	ChatterInfo[] targetChatter;
+
+	// The room of a relayed chat. Zero until the server has created the room.
+	long roomId;
 	
 	public ChatRequest(ChatterInfo sourceChatter,ChatterInfo[] targetChatter,int portAddress) {
 	
-		System.out.println("ChatRequest: In the constructor");
+		Log.debug("ChatRequest: In the constructor");
 		this.sourceChatter = sourceChatter;
 		this.targetChatter = targetChatter;
 		this.portAddress   = portAddress;
@@ -314,6 +785,18 @@ class ChatRequest implements Serializable {
 	public int getPortAddress() {
 		return portAddress;
 	}
+
+	public boolean isRelayed() {
+		return portAddress == RELAYED;
+	}
+
+	public long getRoomId() {
+		return roomId;
+	}
+
+	public void setRoomId(long roomId) {
+		this.roomId = roomId;
+	}
 	
 	public String toString() {
 		String res = "Source chatter=" + sourceChatter.getName() +
@@ -321,7 +804,7 @@ class ChatRequest implements Serializable {
 		for (ChatterInfo c:targetChatter) {
 			res = res + c.getName() + ",";
 		}
-		res = res + "port=" + portAddress;
+		res = res + (isRelayed() ? "room=" + roomId : "port=" + portAddress);
 		return res;
 	}
 }
@@ -332,75 +815,170 @@ class ChatRequest implements Serializable {
 // These are the commands that are sent from the clients.
 interface ChatterCommandInterface {
 
-	void process(Chatter c, Socket connection, ObjectInputStream ois, ObjectOutputStream oos) throws Exception;
+	void process(Chatter c, ChatPeer peer) throws Exception;
 }
 
 enum ChatterCommand implements ChatterCommandInterface {
 
+	// Moves the registration on at the joining chatter, and lets out a text sent the old
+	// way once the registration is done.
 	ACKNOWLEDGEMENT {
 
-        public void process(Chatter c, Socket connection, ObjectInputStream ois, ObjectOutputStream oos) throws Exception {
-			
-		}	
+        public void process(Chatter c, ChatPeer peer) throws Exception {
+
+            switch (peer.getState()) {
+
+            case REGISTER_SENT:
+                Log.debug( "Writing my info" );
+                peer.getWire().writeObject(c.whoAmI());
+                peer.setState(PeerState.INFO_SENT);
+                break;
+
+            case INFO_SENT:
+                peer.setState(PeerState.INFO_TAKEN);
+                break;
+
+            case INFO_TAKEN:
+                c.addRegistration(new ChatterRegistration( c.getChatRequest().getSourceChatter(), peer.getConnection() ));
+                peer.setState(PeerState.REGISTERED);
+                peer.sendHeld();
+                ConsoleRenderer.console.println( "<connected to the new chatter " + c.getChatRequest().getSourceChatter().getName() + ">" );
+                break;
+
+            default:
+                peer.textAcknowledged();
+            }
+		}
 	},
 	
-	REGISTER_INCOMING {
+	// The joining chatter's info follows, once this is acknowledged.
+	REGISTER_INCOMING(CommandArgument.AFTER_ACKNOWLEDGEMENT) {
 	
-		public void process(Chatter c, Socket connection, ObjectInputStream ois, ObjectOutputStream oos) throws Exception {
+		public void process(Chatter c, ChatPeer peer) throws Exception {
 			
-            
-            c.sendAcknowledgement(oos);
-			ChatterInfo newChatterInfo = (ChatterInfo) ois.readObject();
-			c.sendAcknowledgement(oos);
-			c.addRegistration(new ChatterRegistration( newChatterInfo, connection ));
-            c.sendAcknowledgement(oos);
-            System.out.println( "<connected to the new chatter " + newChatterInfo.getName() + ">" );
+			ChatterInfo newChatterInfo = peer.readArgument(this, ChatterInfo.class);
+			c.sendAcknowledgement(peer.getWire());
+			c.addRegistration(new ChatterRegistration( newChatterInfo, peer.getConnection() ));
+            c.sendAcknowledgement(peer.getWire());
+            peer.setState(PeerState.REGISTERED);
+            peer.sendHeld();
+            ConsoleRenderer.console.println( "<connected to the new chatter " + newChatterInfo.getName() + ">" );
 		}
 	},
     
+    // Only starts the registration; the acknowledgements carry it on as they come in.
     DO_REGISTER {
     
-		public void process(Chatter c, Socket connection, ObjectInputStream ois, ObjectOutputStream oos) throws Exception {
+		public void process(Chatter c, ChatPeer peer) throws Exception {
 			
-            Thread.sleep(1000);
-            System.out.println( "Sending incoming register command to server" );
-			oos.writeObject(ChatterCommand.REGISTER_INCOMING);
-            System.out.println( "Waiting for acknowledgement" );
-			c.recieveAcknowledgement(ois);
-            System.out.println( "Writing my info" );
-			oos.writeObject(c.whoAmI());
-            System.out.println( "Waiting for acknowledgement" );
-            c.recieveAcknowledgement(ois);
-            c.addRegistration(new ChatterRegistration( c.getChatRequest().getSourceChatter(), connection ));
-            System.out.println( "<connected to the new chatter " + c.getChatRequest().getSourceChatter().getName() + ">" );
+            Log.debug( "Sending incoming register command to the chatter" );
+			peer.getWire().writeObject(ChatterCommand.REGISTER_INCOMING);
+            peer.setState(PeerState.REGISTER_SENT);
 		}    
     },
     
     SEND_TEXT {
     
-		public void process(Chatter c, Socket connection, ObjectInputStream ois, ObjectOutputStream oos) throws Exception {
+		public void process(Chatter c, ChatPeer peer) throws Exception {
 			
-            oos.writeObject(ChatterCommand.RECIEVE_TEXT);
-            c.recieveAcknowledgement(ois);
+            if (Chatter.STREAMING) {
+                c.fanOut(c.getFirstChatObject());
+                return;
+            }
+
+            // The old way. Every peer gets the text once it has acknowledged RECIEVE_TEXT,
+            // without the others waiting for it.
             ChatObjectInterface coi = c.getFirstChatObject();
+            for (ChatPeer p:c.peers) {
+                p.sendText(coi);
+            }
             
-            coi.doPreProcess();
-            System.out.print( c.whoAmI().getName() + "> " );
-            coi.processChatObject();
-            coi.send(oos);
+            coi.echoChatObject(c.whoAmI().getName());
 		}        
     },
 
-    RECIEVE_TEXT {
+    // The text follows, once this is acknowledged.
+    RECIEVE_TEXT(CommandArgument.AFTER_ACKNOWLEDGEMENT) {
     
-		public void process(Chatter c, Socket connection, ObjectInputStream ois, ObjectOutputStream oos) throws Exception {
+		public void process(Chatter c, ChatPeer peer) throws Exception {
 			
-            c.sendAcknowledgement(oos);
-            ChatObjectInterface coi = new TextChatObject("");
-            coi.recieve(ois);
-            System.out.print( c.getChatterByConnection(connection).getName() + "> " );
-            coi.processChatObject();
+            String text = peer.readArgument(this, String.class);
+            String sender = c.getChatterByConnection(peer.getConnection()).getName();
+            new TextChatObject(text).processChatObject(sender);
+            c.relay(peer, sender, text);
 		}        
     },
 
+    // A streamed text from the peer: the sequence number and the text follow, with
+    // nothing to acknowledge in between. See Chatter.fanOut for the sending side.
+    TEXT_FRAME(CommandArgument.FOLLOWS, 2) {
+
+		public void process(Chatter c, ChatPeer peer) throws Exception {
+
+            long seq = peer.readArgument(this, Long.class).longValue();
+            String text = peer.readArgument(this, String.class);
+            String sender = c.getChatterByConnection(peer.getConnection()).getName();
+
+            long expected = peer.receivedSeq + 1;
+            if (!peer.received(seq)) {
+                ConsoleRenderer.console.line( "<text out of sequence, expected " + expected + " got " + seq + ">" );
+            }
+            new TextChatObject(text).processChatObject(sender);
+            c.relay(peer, sender, text);
+
+            // Through the peer's queue, so it cannot end up in the middle of a text.
+            if (peer.shouldAcknowledge(Chatter.ACK_EVERY)) {
+                peer.send(new EncodedMessage(ChatterCommand.ACK_UP_TO, Long.valueOf(seq)));
+                peer.acknowledgementSent();
+            }
+		}
+    },
+
+    // A text from another of the joining chatters, passed on by the initiator: the name
+    // of the sender and the text follow. It is not one of the initiator's own texts, so
+    // it has no sequence number, and it is streamed in either mode.
+    FORWARDED_TEXT(CommandArgument.FOLLOWS, 2) {
+
+		public void process(Chatter c, ChatPeer peer) throws Exception {
+
+            String sender = peer.readArgument(this, String.class);
+            new TextChatObject(peer.readArgument(this, String.class)).processChatObject(sender);
+		}
+    },
+
+    // The cumulative acknowledgement of the streamed texts: the peer has got every
+    // text up to the sequence number that follows. Only recorded, for the flow report.
+    ACK_UP_TO(CommandArgument.FOLLOWS) {
+
+		public void process(Chatter c, ChatPeer peer) throws Exception {
+
+            long seq = peer.readArgument(this, Long.class).longValue();
+            peer.acknowledged(seq);
+		}
+    };
+
+	// What follows the command, and how many objects of it.
+	CommandArgument argument;
+	int argumentCount;
+
+	ChatterCommand() {
+		this(CommandArgument.NONE, 0);
+	}
+
+	ChatterCommand(CommandArgument argument) {
+		this(argument, 1);
+	}
+
+	ChatterCommand(CommandArgument argument, int argumentCount) {
+		this.argument      = argument;
+		this.argumentCount = argumentCount;
+	}
+
+	public CommandArgument getArgument() {
+		return argument;
+	}
+
+	public int getArgumentCount() {
+		return argumentCount;
+	}
 }
@@ -0,0 +1,276 @@
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// The registry of all the chatters connected to the chat server. Every connection thread
+// looks up chatters here, so the lookups by name and by address are hash lookups which do
+// not take any lock. Changes are serialized on the registry, but a join or a leave is only
+// a few map updates; the snapshot arrays for iterating over the chatters are built when
+// somebody asks for them after a change, once for all the changes since the last time, so
+// that a burst of joins does not copy the whole roster for every one of them.
+//
+// In a cluster, the chatters of the other nodes are kept here too, as registrations without
+// a connection; see Cluster.
+//
+// Every change also bumps the roster version and is remembered as a delta, so that the
+// clients can be sent just the changes since the version they have. Only the latest
+// maxDeltas changes are kept; clients older than that get a full snapshot.
+//
+// The full roster is encoded once per version, however many clients ask for it: the member
+// list and the snapshot update are kept as shared messages until the next change.
+class ChatterRegistry {
+
+	// Registrations by the username. A name maps to its latest registration.
+	ConcurrentHashMap<String, Registration> byName;
+
+	// Registrations by the IP address. Several sessions can come from the same address.
+	ConcurrentHashMap<String, Set<Registration>> byAddress;
+
+	// All the registrations by their id, which is also the order they came in.
+	ConcurrentSkipListMap<Long, Registration> byId;
+
+	// The snapshot of the current registrations, or null if there has been a change since
+	// it was built.
+	volatile RegistrySnapshot current;
+
+	// Source of the registration ids.
+	AtomicLong nextId;
+
+	// The roster version and the latest changes, oldest first. Guarded by the registry.
+	long version;
+	ArrayDeque<RosterDelta> deltas;
+	int maxDeltas;
+
+	// The encoded full roster, made when first asked for. Guarded by the registry.
+	EncodedMessage membersMessage;
+	RosterUpdate snapshot;
+	EncodedMessage snapshotMessage;
+
+	public ChatterRegistry() {
+
+		byName        = new ConcurrentHashMap<String, Registration>();
+		byAddress     = new ConcurrentHashMap<String, Set<Registration>>();
+		byId          = new ConcurrentSkipListMap<Long, Registration>();
+		nextId        = new AtomicLong(1);
+		version       = 0;
+		deltas        = new ArrayDeque<RosterDelta>();
+		maxDeltas     = 1024;
+	}
+
+	// Adds a new registration and returns it. The returned object is the handle for the
+	// registration; it stays valid until it is removed.
+	public synchronized Registration add(ChatterInfo ci, ChatServerConnectionManager ch) {
+
+		Registration r = new Registration(nextId.getAndIncrement(), ch, ci);
+		index(r);
+		addDelta(RosterDelta.JOINED, r);
+		return r;
+	}
+
+	// A chatter of another node takes the name only if no local one has it; whatever is
+	// for the name goes to the local session.
+	private void index(Registration r) {
+
+		byId.put(r.getId(), r);
+
+		ChatterInfo ci = r.getChatterInfo();
+		Registration current = byName.get(ci.getName());
+		if (!r.isRemote() || current == null || current.isRemote()) {
+			byName.put(ci.getName(), r);
+		}
+
+		Set<Registration> sessions = byAddress.get(ci.getAddress());
+		if (sessions == null) {
+			sessions = ConcurrentHashMap.newKeySet();
+			byAddress.put(ci.getAddress(), sessions);
+		}
+		sessions.add(r);
+	}
+
+	private void unindex(Registration r) {
+
+		byId.remove(r.getId());
+
+		// A newer session with the same name may have taken over the name already.
+		byName.remove(r.getChatterInfo().getName(), r);
+
+		Set<Registration> sessions = byAddress.get(r.getChatterInfo().getAddress());
+		if (sessions != null) {
+			sessions.remove(r);
+			if (sessions.isEmpty()) {
+				byAddress.remove(r.getChatterInfo().getAddress());
+			}
+		}
+	}
+
+	// Replaces the chatters of another node of the cluster with the ones it has now. The
+	// ones still there keep their registrations, so only what has changed goes to the
+	// clients as deltas.
+	public synchronized void replaceRemote(int node, ChatterInfo[] chatters) {
+
+		HashMap<String, ChatterInfo> wanted = new HashMap<String, ChatterInfo>();
+		for (ChatterInfo ci:chatters) {
+			wanted.put(ci.getName(), ci);
+		}
+
+		for (Registration r:byId.values()) {
+			if (r.isRemote() && r.getNode() == node && wanted.remove(r.getChatterInfo().getName()) == null) {
+				unindex(r);
+				addDelta(RosterDelta.LEFT, r);
+			}
+		}
+		for (ChatterInfo ci:wanted.values()) {
+			Registration r = new Registration(nextId.getAndIncrement(), null, ci, node);
+			index(r);
+			addDelta(RosterDelta.JOINED, r);
+		}
+	}
+
+	// Removes the registration. Returns false if it was already removed.
+	public synchronized boolean remove(Registration r) {
+
+		if (byId.get(r.getId()) != r) {
+			return false;
+		}
+		unindex(r);
+		addDelta(RosterDelta.LEFT, r);
+		return true;
+	}
+
+	// Every change goes through here, and makes whatever was built for the old version
+	// stale.
+	private void addDelta(int type, Registration r) {
+
+		current         = null;
+		membersMessage  = null;
+		snapshot        = null;
+		snapshotMessage = null;
+
+		version++;
+		deltas.addLast(new RosterDelta(type, version, r.getId(), r.getChatterInfo()));
+		if (deltas.size() > maxDeltas) {
+			deltas.removeFirst();
+		}
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	// Returns what a client with the given roster version needs to catch up, or null if
+	// it is up to date already.
+	public synchronized RosterUpdate getUpdateSince(long clientVersion) {
+
+		if (clientVersion == version) {
+			return null;
+		}
+
+		// The deltas are consecutive, so the client can be caught up with them as long
+		// as the first delta it needs is still there.
+		if (clientVersion > 0 && clientVersion < version && !deltas.isEmpty() &&
+		    deltas.peekFirst().getVersion() <= clientVersion + 1) {
+
+			RosterDelta[] needed = new RosterDelta[(int) (version - clientVersion)];
+			int i = 0;
+			for (RosterDelta d:deltas) {
+				if (d.getVersion() > clientVersion) {
+					needed[i++] = d;
+				}
+			}
+			return RosterUpdate.deltas(clientVersion, version, needed);
+		}
+
+		if (snapshot == null) {
+			RegistrySnapshot s = getSnapshot();
+			long[] ids = new long[s.registrations.length];
+			for (int i=0; i<ids.length; i++) {
+				ids[i] = s.registrations[i].getId();
+			}
+			snapshot = RosterUpdate.snapshot(version, ids, s.chatters);
+		}
+		return snapshot;
+	}
+
+	// The message sending the update to a client. The snapshot of the current version is
+	// the same for every client, so it is encoded once for all of them.
+	public synchronized EncodedMessage getMessage(RosterUpdate update) {
+
+		if (update != snapshot) {
+			return new EncodedMessage(ClientCommand.ROSTER_UPDATE, update);
+		}
+		if (snapshotMessage == null) {
+			snapshotMessage = EncodedMessage.shared(ClientCommand.ROSTER_UPDATE, update);
+		}
+		return snapshotMessage;
+	}
+
+	// The chatters as GET_MEMBERS sends them, encoded once per version.
+	public synchronized EncodedMessage getMembersMessage() {
+
+		if (membersMessage == null) {
+			membersMessage = EncodedMessage.shared(new Object[] { getChatters() });
+		}
+		return membersMessage;
+	}
+
+	// The current snapshot, built if there has been a change since the last one. Reading
+	// it takes no lock unless it has to be built.
+	RegistrySnapshot getSnapshot() {
+
+		RegistrySnapshot s = current;
+		if (s != null) {
+			return s;
+		}
+		synchronized (this) {
+			if (current == null) {
+				current = new RegistrySnapshot(byId.values());
+			}
+			return current;
+		}
+	}
+
+	public Registration getByName(String username) {
+		return byName.get(username);
+	}
+
+	// Returns all the sessions from the given address. The returned set is a copy.
+	public List<Registration> getByAddress(String address) {
+
+		Set<Registration> sessions = byAddress.get(address);
+		if (sessions == null) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<Registration>(sessions);
+	}
+
+	// The arrays below are snapshots and must not be modified by the callers.
+	public Registration[] getRegistrations() {
+		return getSnapshot().registrations;
+	}
+
+	public ChatterInfo[] getChatters() {
+		return getSnapshot().chatters;
+	}
+
+	public int size() {
+		return byId.size();
+	}
+}
+
+// The registrations of one version of the registry, and their chatters, in the order they
+// came in.
+class RegistrySnapshot {
+
+	Registration[] registrations;
+	ChatterInfo[] chatters;
+
+	public RegistrySnapshot(Collection<Registration> all) {
+
+		registrations = all.toArray(new Registration[all.size()]);
+		chatters      = new ChatterInfo[registrations.length];
+		for (int i=0; i<registrations.length; i++) {
+			chatters[i] = registrations[i].getChatterInfo();
+		}
+	}
+}
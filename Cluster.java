@@ -0,0 +1,938 @@
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Several chat servers working as one. Every server, a node of the cluster, has the
+// connections of its own clients and the rooms started by them, and gossips its roster to
+// the others: every chat.gossipMillis it sends one node, picked at random, the versions of
+// everything it knows, and the two of them send each other whatever the other is missing.
+// The chatters of the other nodes are in the registry like the local ones, only without a
+// connection, so the clients see the whole cluster in their roster.
+//
+// A node which has not been heard of for chat.clusterFailMillis is taken for dead, and its
+// chatters are taken out of the roster until it is heard of again.
+//
+// Whatever is for a chatter of another node is sent to that node, which queues it on the
+// chatter's connection. Where a chatter is not connected at all, its home node keeps it in
+// its inbox. The home of a username is given by a consistent hash of the name over the
+// client addresses of the live nodes, which is how the clients pick the node to connect to
+// as well; see HashRing. A room stays on the node it was started on: the members on the
+// other nodes send their messages there, and get the room's messages from there.
+//
+// Clustering is turned on by setting chat.clusterPort, the port the nodes talk to each other
+// on. The other settings are
+//
+//   chat.clusterNode  - the number of this node, from 0 to MAX_NODES - 1, unique in the
+//                       cluster. Room ids are made from it, so they never clash.
+//   chat.clusterHost  - the host name the other nodes and the clients reach this node by.
+//                       Defaults to localhost.
+//   chat.clusterPeers - the cluster addresses, host:port, of some of the other nodes. The
+//                       rest of them are found from these.
+//
+// The client address of a node is chat.clusterHost and chat.port, and the clients must be
+// given the same host:port strings, so that their ring is the same as the nodes' one.
+class Cluster implements Runnable {
+
+	static final int MAX_NODES = 1024;
+
+	static final long GOSSIP_MILLIS = Long.getLong("chat.gossipMillis", 500);
+	static final long FAIL_MILLIS = Long.getLong("chat.clusterFailMillis", 5000);
+
+	ChatServer cs;
+	int node;
+	String peerAddress;
+	String clientAddress;
+	int peerPort;
+	List<String> seeds;
+
+	// What is known of every node, this one included, and when the others were last heard
+	// of. Guarded by the cluster.
+	HashMap<Integer, NodeState> states = new HashMap<Integer, NodeState>();
+	HashMap<Integer, Long> lastHeard = new HashMap<Integer, Long>();
+
+	// This node's roster version, bumped on every local change, and its heartbeat. Both
+	// start from the time in microseconds, so that a node which is restarted is newer than
+	// what the others remember of it.
+	AtomicLong localVersion = new AtomicLong(System.currentTimeMillis() * 1000);
+	long heartbeat = System.currentTimeMillis() * 1000;
+
+	// The live nodes by their client address, and their cluster addresses by node. Read
+	// without holding the cluster, since the rooms send to the other nodes holding the
+	// room, and the cluster takes the rooms when a node goes down.
+	volatile HashRing ring;
+	volatile Map<String, Integer> nodesByClientAddress;
+	volatile Map<Integer, String> peerAddresses;
+
+	ConcurrentHashMap<String, PeerLink> links = new ConcurrentHashMap<String, PeerLink>();
+
+	// The rooms of other nodes the local chatters are in, by chatter name and room id.
+	ConcurrentHashMap<String, ConcurrentHashMap<Long, ChatRequest>> remoteRooms = new ConcurrentHashMap<String, ConcurrentHashMap<Long, ChatRequest>>();
+
+	Random random = new Random();
+	ServerSocket ss;
+
+	public Cluster(ChatServer cs, int node, String host, int peerPort, int clientPort, List<String> seeds) {
+
+		this.cs = cs;
+		this.node = node;
+		this.peerPort = peerPort;
+		this.peerAddress = host + ":" + peerPort;
+		this.clientAddress = host + ":" + clientPort;
+		this.seeds = seeds;
+
+		states.put(node, new NodeState(node, peerAddress, clientAddress, localVersion.get(), heartbeat, null));
+		rebuildRing();
+	}
+
+	// The cluster of the server as set by the system properties, or null if clustering is
+	// not turned on.
+	public static Cluster openDefault(ChatServer cs, int clientPort) {
+
+		int peerPort = Integer.getInteger("chat.clusterPort", 0);
+		if (peerPort <= 0) {
+			return null;
+		}
+
+		int node = Integer.getInteger("chat.clusterNode", 0);
+		if (node < 0 || node >= MAX_NODES) {
+			throw new IllegalArgumentException("chat.clusterNode must be from 0 to " + (MAX_NODES - 1));
+		}
+
+		List<String> seeds = new ArrayList<String>();
+		for (String s:System.getProperty("chat.clusterPeers", "").split(",")) {
+			if (!s.trim().isEmpty()) {
+				seeds.add(s.trim());
+			}
+		}
+		return new Cluster(cs, node, System.getProperty("chat.clusterHost", "localhost"), peerPort, clientPort, seeds);
+	}
+
+	// Starts listening for the other nodes and gossiping with them.
+	public void start() throws IOException {
+
+		ss = new ServerSocket(peerPort);
+		Thread acceptor = new Thread(this, "cluster_acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "cluster_gossip");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				try {
+					gossip();
+				}
+				catch (Exception e) {
+					Log.error( "Gossip failed", e );
+				}
+			}
+		}, GOSSIP_MILLIS, GOSSIP_MILLIS, TimeUnit.MILLISECONDS);
+
+		Metrics.gauge("cluster.nodes", new Gauge() {
+			public long value() {
+				return ring.size();
+			}
+		});
+		Metrics.gauge("cluster.peerDropped", new Gauge() {
+			public long value() {
+				long n = 0;
+				for (PeerLink link:links.values()) {
+					n += link.getDropped();
+				}
+				return n;
+			}
+		});
+
+		Log.info( "Node " + node + " of the cluster, at " + peerAddress + " for the other nodes" );
+	}
+
+	// Accepts the connections of the other nodes. Each of them sends on its own connection,
+	// which is read by a thread of its own.
+	public void run() {
+
+		while (true) {
+			try {
+				Socket s = ss.accept();
+				BatchedOutputStream.configure(s);
+				PeerConnection pc = new PeerConnection(this, s);
+				Thread t = new Thread(pc, "peer_" + s.getRemoteSocketAddress());
+				t.setDaemon(true);
+				t.start();
+			}
+			catch (IOException e) {
+				Log.warn( "Error accepting a node: ", e.getMessage() );
+			}
+		}
+	}
+
+	public int getNode() {
+		return node;
+	}
+
+	public ChatServer getChatServer() {
+		return cs;
+	}
+
+	// Called by the server whenever a local chatter comes or goes.
+	public void localChanged() {
+		localVersion.incrementAndGet();
+	}
+
+	// The room ids carry the number of the node they were made on.
+	public static int nodeOfRoom(long roomId) {
+		return (int) (roomId % MAX_NODES);
+	}
+
+	public boolean isRemoteRoom(long roomId) {
+		return nodeOfRoom(roomId) != node;
+	}
+
+	// The node to send whatever is for the chatter to: where it is connected, as far as the
+	// gossip has told us, or else its home node.
+	public int locate(String name) {
+
+		Registration r = cs.getChatterByName(name);
+		if (r != null) {
+			return r.isRemote() ? r.getNode() : node;
+		}
+		return homeOf(name);
+	}
+
+	public int homeOf(String name) {
+
+		Integer owner = nodesByClientAddress.get(ring.ownerOf(name));
+		return (owner == null) ? node : owner.intValue();
+	}
+
+	// Sending to the other nodes. What can not be sent is dropped, and counted.
+
+	public void invite(int to, String name, ChatRequest cr) {
+		send(to, PeerCommand.INVITE, new String[] { name }, cr);
+	}
+
+	public void deliver(int to, String[] names, EncodedMessage m) {
+
+		try {
+			send(to, PeerCommand.DELIVER, names, m.getFrames());
+		}
+		catch (IOException e) {
+			Log.warn( "Could not encode a message for node ", to );
+		}
+	}
+
+	public void post(long roomId, String name, String text) {
+		send(nodeOfRoom(roomId), PeerCommand.ROOM_POST, Long.valueOf(roomId), name, text);
+	}
+
+	public void leave(long roomId, String name) {
+		send(nodeOfRoom(roomId), PeerCommand.ROOM_LEAVE, Long.valueOf(roomId), name);
+	}
+
+	void send(int to, Object... message) {
+
+		String address = peerAddresses.get(to);
+		if (address == null) {
+			Log.warn( "No live node ", to );
+			return;
+		}
+		getLink(address).send(message);
+	}
+
+	PeerLink getLink(String address) {
+
+		PeerLink link = links.get(address);
+		if (link == null) {
+
+			// Only the thread whose link got in starts it.
+			PeerLink created = new PeerLink(address);
+			link = links.putIfAbsent(address, created);
+			if (link == null) {
+				link = created;
+				link.start();
+			}
+		}
+		return link;
+	}
+
+	// What the other nodes send.
+
+	// Chat requests for local chatters. The rooms of other nodes are remembered, so the
+	// chatters can be told about them again when they come back.
+	public void invited(String[] names, ChatRequest cr) {
+
+		EncodedMessage m = new EncodedMessage(ClientCommand.CHAT_REQUEST, cr);
+		for (String name:names) {
+			if (cr.isRelayed()) {
+				ConcurrentHashMap<Long, ChatRequest> rooms = remoteRooms.get(name);
+				if (rooms == null) {
+					remoteRooms.putIfAbsent(name, new ConcurrentHashMap<Long, ChatRequest>());
+					rooms = remoteRooms.get(name);
+				}
+				rooms.put(cr.getRoomId(), cr);
+			}
+			deliverLocal(name, m);
+		}
+	}
+
+	public void delivered(String[] names, byte[] frames) {
+
+		EncodedMessage m = EncodedMessage.fromFrames(frames);
+		for (String name:names) {
+			deliverLocal(name, m);
+		}
+	}
+
+	void deliverLocal(String name, EncodedMessage m) {
+
+		Registration r = cs.getChatterByName(name);
+		if (r != null && !r.isRemote()) {
+			r.getChatServerConnectionManager().queueMessage(m);
+		}
+		else if (cs.getInboxes() != null) {
+			cs.getInboxes().append(name, m);
+		}
+		else {
+			Log.info( "Chatter is not registered: ", name );
+		}
+	}
+
+	public void posted(long roomId, String name, String text) {
+
+		ChatRoom room = cs.getRooms().get(roomId);
+		if (room == null || !room.isRemoteMember(name)) {
+			Log.warn( "Dropping message from another node for room ", roomId );
+			return;
+		}
+		room.post(null, name, text, cs.getMessageLog());
+	}
+
+	public void left(long roomId, String name) {
+
+		ChatRoom room = cs.getRooms().get(roomId);
+		if (room != null) {
+			cs.getRooms().leaveRemote(room, name);
+		}
+	}
+
+	// For the local chatters in the rooms of other nodes.
+
+	public boolean isInRemoteRoom(String name, long roomId) {
+
+		ConcurrentHashMap<Long, ChatRequest> rooms = remoteRooms.get(name);
+		return rooms != null && rooms.containsKey(roomId);
+	}
+
+	public void leaveRemoteRoom(String name, long roomId) {
+
+		ConcurrentHashMap<Long, ChatRequest> rooms = remoteRooms.get(name);
+		if (rooms != null && rooms.remove(roomId) != null) {
+			leave(roomId, name);
+		}
+	}
+
+	// A local chatter has gone away. If there is an inbox to keep what it misses, it stays
+	// in its rooms, and the inbox starts with their chat requests, so that the client knows
+	// the rooms before their messages come. Otherwise it leaves them.
+	public void chatterLeft(String name) {
+
+		ConcurrentHashMap<Long, ChatRequest> rooms = remoteRooms.get(name);
+		if (rooms == null) {
+			return;
+		}
+		for (ChatRequest cr:rooms.values()) {
+			if (cs.getInboxes() != null) {
+				cs.getInboxes().append(name, new EncodedMessage(ClientCommand.CHAT_REQUEST, cr));
+			}
+			else {
+				leaveRemoteRoom(name, cr.getRoomId());
+			}
+		}
+	}
+
+	// The gossip. Once a round, this node's heartbeat goes up, the nodes not heard of for
+	// too long are taken for dead, and one node is sent the digest.
+	void gossip() {
+
+		GossipDigest digest;
+		List<String> peers = new ArrayList<String>();
+		synchronized (this) {
+			heartbeat++;
+			sweep();
+			digest = getDigest(false);
+			for (NodeState s:states.values()) {
+				if (s.getNode() != node && !s.isDead()) {
+					peers.add(s.getPeerAddress());
+				}
+			}
+		}
+
+		// The seeds are asked too until they have been heard of, so that a node which
+		// was down when this one started is found once it is up.
+		for (String seed:seeds) {
+			if (!seed.equals(peerAddress) && !peers.contains(seed)) {
+				peers.add(seed);
+			}
+		}
+		if (!peers.isEmpty()) {
+			getLink(peers.get(random.nextInt(peers.size()))).send(PeerCommand.GOSSIP, digest);
+		}
+	}
+
+	GossipDigest getDigest(boolean reply) {
+
+		HashMap<Integer, long[]> versions = new HashMap<Integer, long[]>();
+		for (NodeState s:states.values()) {
+			if (!s.isDead()) {
+				versions.put(s.getNode(), new long[] { getVersion(s), getHeartbeat(s) });
+			}
+		}
+		return new GossipDigest(node, peerAddress, versions, reply);
+	}
+
+	long getVersion(NodeState s) {
+		return (s.getNode() == node) ? localVersion.get() : s.getVersion();
+	}
+
+	long getHeartbeat(NodeState s) {
+		return (s.getNode() == node) ? heartbeat : s.getHeartbeat();
+	}
+
+	// Another node's digest. It is sent what it is missing, and if it knows something this
+	// node does not, it is sent this node's digest in return.
+	public void gossipReceived(GossipDigest d) {
+
+		ArrayList<NodeState> newer = new ArrayList<NodeState>();
+		boolean behind = false;
+
+		synchronized (this) {
+
+			for (NodeState s:states.values()) {
+				if (s.isDead()) {
+					continue;
+				}
+				long[] theirs = d.getVersions().get(s.getNode());
+				if (theirs == null || getVersion(s) > theirs[0]) {
+					newer.add(getState(s, true));
+				}
+				else if (getHeartbeat(s) > theirs[1]) {
+					newer.add(getState(s, false));
+				}
+			}
+
+			for (Map.Entry<Integer, long[]> e:d.getVersions().entrySet()) {
+				NodeState s = states.get(e.getKey());
+				if (s == null || e.getValue()[1] > getHeartbeat(s) || (!s.isDead() && e.getValue()[0] > getVersion(s))) {
+					behind = true;
+				}
+			}
+		}
+
+		PeerLink link = getLink(d.getAddress());
+		if (!newer.isEmpty()) {
+			link.send(PeerCommand.STATES, newer.toArray(new NodeState[newer.size()]));
+		}
+		if (behind && !d.isReply()) {
+			synchronized (this) {
+				link.send(PeerCommand.GOSSIP, getDigest(true));
+			}
+		}
+	}
+
+	// What is sent of a node: all of it, or just its heartbeat.
+	NodeState getState(NodeState s, boolean full) {
+
+		if (s.getNode() != node) {
+			return full ? s : s.withHeartbeat(s.getHeartbeat(), null);
+		}
+
+		ChatterInfo[] chatters = null;
+		if (full) {
+			ArrayList<ChatterInfo> local = new ArrayList<ChatterInfo>();
+			for (Registration r:cs.registry.getRegistrations()) {
+				if (!r.isRemote()) {
+					local.add(r.getChatterInfo());
+				}
+			}
+			chatters = local.toArray(new ChatterInfo[local.size()]);
+		}
+		return new NodeState(node, peerAddress, clientAddress, localVersion.get(), heartbeat, chatters);
+	}
+
+	// What another node sent in return for the digest.
+	public void statesReceived(NodeState[] received) {
+
+		boolean rosterChanged = false;
+		boolean nodesChanged = false;
+
+		synchronized (this) {
+
+			long now = System.currentTimeMillis();
+			for (NodeState s:received) {
+
+				if (s.getNode() == node) {
+					continue;
+				}
+
+				// A dead node comes back only with a newer heartbeat than it had when it
+				// was taken for dead, not when some node which has not noticed yet
+				// passes on what it had.
+				NodeState known = states.get(s.getNode());
+				boolean newer = (known == null) ||
+				                (known.isDead() ? s.getHeartbeat() > known.getHeartbeat() : s.getVersion() > known.getVersion());
+				if (s.getChatters() != null && newer) {
+
+					cs.registry.replaceRemote(s.getNode(), s.getChatters());
+					rosterChanged = true;
+					if (known == null || known.isDead()) {
+						Log.info( "Node " + s.getNode() + " is up at ", s.getPeerAddress() );
+						nodesChanged = true;
+					}
+					if (known == null || s.getHeartbeat() > known.getHeartbeat()) {
+						lastHeard.put(s.getNode(), now);
+					}
+					states.put(s.getNode(), s);
+				}
+				else if (known != null && !known.isDead() && s.getHeartbeat() > known.getHeartbeat()) {
+
+					states.put(s.getNode(), known.withHeartbeat(s.getHeartbeat(), known.getChatters()));
+					lastHeard.put(s.getNode(), now);
+				}
+			}
+
+			if (nodesChanged) {
+				rebuildRing();
+			}
+		}
+
+		if (rosterChanged) {
+			cs.updateAllHandlers();
+		}
+	}
+
+	// Takes the nodes not heard of for too long for dead. Holding the cluster.
+	void sweep() {
+
+		long now = System.currentTimeMillis();
+		ArrayList<Integer> dead = new ArrayList<Integer>();
+		for (NodeState s:states.values()) {
+			Long heard = lastHeard.get(s.getNode());
+			if (s.getNode() != node && !s.isDead() && heard != null && now - heard > FAIL_MILLIS) {
+				dead.add(s.getNode());
+			}
+		}
+		if (dead.isEmpty()) {
+			return;
+		}
+
+		for (Integer n:dead) {
+			Log.warn( "Node is down: ", n );
+			states.put(n, states.get(n).dead());
+			cs.registry.replaceRemote(n, new ChatterInfo[0]);
+			cs.getRooms().nodeDown(n);
+		}
+		rebuildRing();
+		cs.updateAllHandlers();
+	}
+
+	// Holding the cluster.
+	void rebuildRing() {
+
+		HashMap<String, Integer> byAddress = new HashMap<String, Integer>();
+		HashMap<Integer, String> peers = new HashMap<Integer, String>();
+		for (NodeState s:states.values()) {
+			if (!s.isDead()) {
+				byAddress.put(s.getClientAddress(), s.getNode());
+				peers.put(s.getNode(), s.getPeerAddress());
+			}
+		}
+		nodesByClientAddress = byAddress;
+		peerAddresses = peers;
+		ring = new HashRing(byAddress.keySet());
+	}
+}
+
+// What a node knows of another one. The chatters are left out when only the heartbeat is
+// being passed on. A dead node has a version of -1, so that whoever hears of it again gets
+// all of it.
+class NodeState implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	int node;
+	String peerAddress;
+	String clientAddress;
+	long version;
+	long heartbeat;
+	ChatterInfo[] chatters;
+
+	public NodeState(int node, String peerAddress, String clientAddress, long version, long heartbeat, ChatterInfo[] chatters) {
+		this.node          = node;
+		this.peerAddress   = peerAddress;
+		this.clientAddress = clientAddress;
+		this.version       = version;
+		this.heartbeat     = heartbeat;
+		this.chatters      = chatters;
+	}
+
+	public NodeState withHeartbeat(long heartbeat, ChatterInfo[] chatters) {
+		return new NodeState(node, peerAddress, clientAddress, version, heartbeat, chatters);
+	}
+
+	public NodeState dead() {
+		return new NodeState(node, peerAddress, clientAddress, -1, heartbeat, null);
+	}
+
+	public boolean isDead() {
+		return version < 0;
+	}
+
+	public int getNode() {
+		return node;
+	}
+
+	public String getPeerAddress() {
+		return peerAddress;
+	}
+
+	public String getClientAddress() {
+		return clientAddress;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public long getHeartbeat() {
+		return heartbeat;
+	}
+
+	public ChatterInfo[] getChatters() {
+		return chatters;
+	}
+}
+
+// The roster version and heartbeat of every live node a node knows, by node number, and
+// where to send what the sender is missing.
+class GossipDigest implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	int from;
+	String address;
+	HashMap<Integer, long[]> versions;
+	boolean reply;
+
+	public GossipDigest(int from, String address, HashMap<Integer, long[]> versions, boolean reply) {
+		this.from     = from;
+		this.address  = address;
+		this.versions = versions;
+		this.reply    = reply;
+	}
+
+	public int getFrom() {
+		return from;
+	}
+
+	public String getAddress() {
+		return address;
+	}
+
+	public Map<Integer, long[]> getVersions() {
+		return versions;
+	}
+
+	// A digest sent in return for one. It is not answered with another digest.
+	public boolean isReply() {
+		return reply;
+	}
+}
+
+// A consistent hash of the usernames over a set of nodes. Every node is put on a ring of
+// longs at POINTS places, and a name belongs to the first node at or after its own hash.
+// When a node comes or goes, only the names next to its places move.
+//
+// The clients use it to pick the node to connect to, with the same node keys as the nodes
+// themselves, so a chatter normally ends up on its home node.
+class HashRing {
+
+	static final int POINTS = 128;
+
+	TreeMap<Long, String> points = new TreeMap<Long, String>();
+	int size;
+
+	public HashRing(Collection<String> nodes) {
+
+		for (String n:nodes) {
+			for (int i=0; i<POINTS; i++) {
+				points.put(hash(n + "#" + i), n);
+			}
+		}
+		size = nodes.size();
+	}
+
+	public int size() {
+		return size;
+	}
+
+	// The node the name belongs to, or null if there are none.
+	public String ownerOf(String name) {
+
+		if (points.isEmpty()) {
+			return null;
+		}
+		Map.Entry<Long, String> e = points.ceilingEntry(hash(name));
+		return (e != null) ? e.getValue() : points.firstEntry().getValue();
+	}
+
+	// All the nodes, in the order the name would move to them if the ones before went
+	// away. The first is its owner.
+	public List<String> candidates(String name) {
+
+		ArrayList<String> res = new ArrayList<String>();
+		if (points.isEmpty()) {
+			return res;
+		}
+		long h = hash(name);
+		for (String n:points.tailMap(h, true).values()) {
+			if (!res.contains(n)) {
+				res.add(n);
+			}
+		}
+		for (String n:points.headMap(h, false).values()) {
+			if (!res.contains(n)) {
+				res.add(n);
+			}
+		}
+		return res;
+	}
+
+	static long hash(String s) {
+
+		try {
+			byte[] d = MessageDigest.getInstance("MD5").digest(s.getBytes(StandardCharsets.UTF_8));
+			long h = 0;
+			for (int i=0; i<8; i++) {
+				h = (h << 8) | (d[i] & 0xff);
+			}
+			return h;
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
+
+// The connection this node sends to another one on. The messages are queued and written by
+// a thread of its own, so a slow or dead node never holds up a client connection. At most
+// chat.peerQueue messages are queued; the rest are dropped. If the connection breaks, it is
+// made again a gossip round later, and what was queued for it is dropped, since it was
+// for a node which is going to be taken for dead unless it comes back soon.
+class PeerLink implements Runnable {
+
+	static final int QUEUE = Integer.getInteger("chat.peerQueue", 100000);
+
+	String address;
+	LinkedBlockingQueue<Object[]> queue = new LinkedBlockingQueue<Object[]>(QUEUE);
+	LongAdder dropped = new LongAdder();
+
+	public PeerLink(String address) {
+		this.address = address;
+	}
+
+	public void start() {
+
+		Thread t = new Thread(this, "peer_link_" + address);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	// The objects of the message are written one after the other, with nothing else in
+	// between.
+	public void send(Object... message) {
+
+		if (!queue.offer(message)) {
+			dropped.increment();
+		}
+	}
+
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	public void run() {
+
+		int colon = address.lastIndexOf(':');
+		String host = address.substring(0, colon);
+		int port = Integer.parseInt(address.substring(colon + 1));
+
+		ArrayList<Object[]> batch = new ArrayList<Object[]>();
+		while (true) {
+
+			Socket s = null;
+			try {
+				s = new Socket(host, port);
+				BatchedOutputStream.configure(s);
+				ChatWire wire = WireProtocols.connect(s.getInputStream(), new BatchedOutputStream(s.getOutputStream()), WireFormat.OBJECT);
+				Log.debug( "Connected to node at ", address );
+
+				while (true) {
+					batch.add(queue.take());
+					queue.drainTo(batch, 1024);
+					for (Object[] message:batch) {
+						for (Object o:message) {
+							wire.writeObject(o);
+						}
+					}
+					wire.flush();
+					batch.clear();
+				}
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			catch (IOException e) {
+				Log.debug( "No connection to node at ", address );
+				dropped.add(batch.size() + queue.size());
+				batch.clear();
+				queue.clear();
+			}
+
+			try {
+				if (s != null) {
+					s.close();
+				}
+				Thread.sleep(Cluster.GOSSIP_MILLIS);
+			}
+			catch (IOException e) { }
+			catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+}
+
+// A connection another node sends to this one on, read by a thread of its own.
+class PeerConnection implements Runnable {
+
+	Cluster cluster;
+	Socket socket;
+	ChatWire wire;
+
+	public PeerConnection(Cluster cluster, Socket socket) {
+		this.cluster = cluster;
+		this.socket  = socket;
+	}
+
+	public Cluster getCluster() {
+		return cluster;
+	}
+
+	public Object readObject() throws Exception {
+		return wire.readObject();
+	}
+
+	public void run() {
+
+		try {
+			wire = WireProtocols.accept(socket);
+			while (true) {
+				PeerCommandInterface pci = (PeerCommandInterface) wire.readObject();
+				pci.process(this);
+			}
+		}
+		catch (EOFException e) { }
+		catch (SocketException e) { }
+		catch (Exception e) {
+			Log.error( "Error from node at " + socket.getRemoteSocketAddress(), e );
+		}
+
+		try {
+			socket.close();
+		}
+		catch (IOException e) { }
+	}
+}
+
+// The commands the nodes send each other. Like the client commands, the objects the command
+// needs follow it.
+interface PeerCommandInterface {
+
+	void process(PeerConnection pc) throws Exception;
+}
+
+enum PeerCommand implements PeerCommandInterface {
+
+	// A GossipDigest follows.
+	GOSSIP {
+
+		public void process(PeerConnection pc) throws Exception {
+			pc.getCluster().gossipReceived((GossipDigest) pc.readObject());
+		}
+	},
+
+	// What the sender of a digest is missing. A NodeState[] follows.
+	STATES {
+
+		public void process(PeerConnection pc) throws Exception {
+			pc.getCluster().statesReceived((NodeState[]) pc.readObject());
+		}
+	},
+
+	// A chat request for chatters of this node. The names and the ChatRequest follow.
+	INVITE {
+
+		public void process(PeerConnection pc) throws Exception {
+
+			String[] names = (String[]) pc.readObject();
+			ChatRequest cr = (ChatRequest) pc.readObject();
+			pc.getCluster().invited(names, cr);
+		}
+	},
+
+	// A message for chatters of this node. The names and the frames of the encoded
+	// message follow.
+	DELIVER {
+
+		public void process(PeerConnection pc) throws Exception {
+
+			String[] names = (String[]) pc.readObject();
+			byte[] frames = (byte[]) pc.readObject();
+			pc.getCluster().delivered(names, frames);
+		}
+	},
+
+	// A message for a room of this node, from a member on the sender. The room id, the
+	// member's name and the text follow.
+	ROOM_POST {
+
+		public void process(PeerConnection pc) throws Exception {
+
+			Long roomId = (Long) pc.readObject();
+			String name = (String) pc.readObject();
+			String text = (String) pc.readObject();
+			pc.getCluster().posted(roomId.longValue(), name, text);
+		}
+	},
+
+	// A member on the sender leaves a room of this node. The room id and the member's
+	// name follow.
+	ROOM_LEAVE {
+
+		public void process(PeerConnection pc) throws Exception {
+
+			Long roomId = (Long) pc.readObject();
+			String name = (String) pc.readObject();
+			pc.getCluster().left(roomId.longValue(), name);
+		}
+	}
+}
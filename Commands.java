@@ -10,3 +10,232 @@ import java.net.*;
 
 
 
+
+// The change of the roster by a single chatter joining or leaving. The id is the id of the
+// chatter's registration on the server, since names need not be unique. Every change has a
+// version, one more than the version of the change before it.
+class RosterDelta implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int JOINED = 1;
+	static final int LEFT   = 2;
+
+	int type;
+	long version;
+	long id;
+	ChatterInfo chatter;
+
+	public RosterDelta(int type, long version, long id, ChatterInfo chatter) {
+		this.type    = type;
+		this.version = version;
+		this.id      = id;
+		this.chatter = chatter;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public ChatterInfo getChatter() {
+		return chatter;
+	}
+
+	public String toString() {
+		return ((type == JOINED) ? "JOINED " : "LEFT ") + chatter.getName() + " v" + version;
+	}
+}
+
+// What the server sends to bring a client's roster from one version to another. Normally
+// this carries just the deltas after the client's version. If the client's version is too
+// old for the deltas the server still remembers, it carries the whole roster instead.
+class RosterUpdate implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	long fromVersion;
+	long toVersion;
+
+	// Either the deltas...
+	RosterDelta[] deltas;
+
+	// ...or the full snapshot, the ids and the chatters in the same order.
+	long[] ids;
+	ChatterInfo[] chatters;
+
+	public static RosterUpdate deltas(long fromVersion, long toVersion, RosterDelta[] deltas) {
+
+		RosterUpdate update = new RosterUpdate();
+		update.fromVersion = fromVersion;
+		update.toVersion   = toVersion;
+		update.deltas      = deltas;
+		return update;
+	}
+
+	public static RosterUpdate snapshot(long toVersion, long[] ids, ChatterInfo[] chatters) {
+
+		RosterUpdate update = new RosterUpdate();
+		update.fromVersion = 0;
+		update.toVersion   = toVersion;
+		update.ids         = ids;
+		update.chatters    = chatters;
+		return update;
+	}
+
+	public boolean isSnapshot() {
+		return deltas == null;
+	}
+
+	public long getFromVersion() {
+		return fromVersion;
+	}
+
+	public long getToVersion() {
+		return toVersion;
+	}
+
+	public RosterDelta[] getDeltas() {
+		return deltas;
+	}
+
+	public long[] getIds() {
+		return ids;
+	}
+
+	public ChatterInfo[] getChatters() {
+		return chatters;
+	}
+
+	public String toString() {
+		if (isSnapshot()) {
+			return "Roster snapshot v" + toVersion + " (" + chatters.length + " chatters)";
+		}
+		return "Roster deltas v" + fromVersion + " to v" + toVersion;
+	}
+}
+
+// A message in a chat room on the server. The sender, the sequence number and the time
+// are filled in by the server when it relays the message.
+class RoomMessage implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	long roomId;
+	long seq;
+	long timestamp;
+	String sender;
+	String text;
+
+	public RoomMessage(long roomId, String text) {
+		this.roomId = roomId;
+		this.text   = text;
+	}
+
+	public RoomMessage(long roomId, long seq, long timestamp, String sender, String text) {
+		this.roomId    = roomId;
+		this.seq       = seq;
+		this.timestamp = timestamp;
+		this.sender    = sender;
+		this.text      = text;
+	}
+
+	public long getRoomId() {
+		return roomId;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	public String getSender() {
+		return sender;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public String toString() {
+		return "Room " + roomId + " #" + seq + " " + sender + "> " + text;
+	}
+}
+
+// Asks for the history of a relayed room: the messages with a seq between afterSeq and
+// beforeSeq, both left out. If afterSeq is given, the first limit messages after it,
+// otherwise the last limit messages before beforeSeq.
+class HistoryRequest implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	// For beforeSeq, to get the latest messages.
+	static final long LATEST = Long.MAX_VALUE;
+
+	long roomId;
+	long afterSeq;
+	long beforeSeq;
+	int limit;
+
+	public HistoryRequest(long roomId, long afterSeq, long beforeSeq, int limit) {
+		this.roomId    = roomId;
+		this.afterSeq  = afterSeq;
+		this.beforeSeq = beforeSeq;
+		this.limit     = limit;
+	}
+
+	public long getRoomId() {
+		return roomId;
+	}
+
+	public long getAfterSeq() {
+		return afterSeq;
+	}
+
+	public long getBeforeSeq() {
+		return beforeSeq;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+}
+
+// One page of the answer to a HistoryRequest, the oldest message first. The answer comes
+// in as many pages as it takes; the last one says so.
+class HistoryPage implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	long roomId;
+	RoomMessage[] messages;
+	boolean last;
+
+	public HistoryPage(long roomId, RoomMessage[] messages, boolean last) {
+		this.roomId   = roomId;
+		this.messages = messages;
+		this.last     = last;
+	}
+
+	public long getRoomId() {
+		return roomId;
+	}
+
+	public RoomMessage[] getMessages() {
+		return messages;
+	}
+
+	public boolean isLast() {
+		return last;
+	}
+}
@@ -0,0 +1,44 @@
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+// Creates the threads used for handling the connections, either platform threads or virtual
+// threads. Virtual threads only exist from Java 21 on, so the factory for them is looked up
+// through reflection; on older runtimes the virtual mode falls back to platform threads.
+class ConnectionThreads {
+
+	// The virtual thread factory, or null if this runtime has none.
+	static ThreadFactory virtualFactory = lookupVirtualFactory();
+
+	static ThreadFactory lookupVirtualFactory() {
+
+		try {
+			// Same as Thread.ofVirtual().factory()
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+
+	public static boolean virtualThreadsAvailable() {
+		return virtualFactory != null;
+	}
+
+	// Returns a new thread, not yet started.
+	public static Thread newThread(Runnable r, String name, boolean virtual) {
+
+		Thread t;
+		if (virtual && virtualFactory != null) {
+			t = virtualFactory.newThread(r);
+			t.setName(name);
+		}
+		else {
+			t = new Thread(r, name);
+		}
+		return t;
+	}
+}
@@ -0,0 +1,169 @@
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+
+// What the client shows of the conversations. The prompts, the sender prefixes and the texts
+// are put together in one char buffer, encoded into one byte buffer, and written out as one
+// write when the renderer is flushed; both buffers are kept, so showing a line allocates
+// nothing. The texts received in a burst are added as they are processed and flushed once
+// the burst is over, at the end of the round of the chatter or the server connection, so a
+// busy room is written a screenful at a time rather than a line at a time.
+//
+// Anything that has to show up in order with the texts goes through here too; println()
+// is for the odd line which is written out right away. A text is always added in one call,
+// render() or echo(), so the threads showing texts at the same time never get their
+// prompts and lines mixed up.
+class ConsoleRenderer {
+
+	static final ConsoleRenderer console = new ConsoleRenderer(System.out);
+
+	static final int SIZE = 8192;
+
+	PrintStream out;
+	CharsetEncoder encoder;
+	CharBuffer chars;
+	ByteBuffer bytes;
+
+	public ConsoleRenderer(PrintStream out) {
+
+		this.out = out;
+		encoder  = Charset.defaultCharset().newEncoder()
+		                  .onMalformedInput(CodingErrorAction.REPLACE)
+		                  .onUnmappableCharacter(CodingErrorAction.REPLACE);
+		chars    = CharBuffer.allocate(SIZE);
+		bytes    = ByteBuffer.allocate((int) (SIZE * encoder.maxBytesPerChar()));
+	}
+
+	// Takes the line being typed off the screen, before the same text is shown as sent.
+	public synchronized void erase(int length) {
+
+		append('\r');
+		for (int i=0; i<length; i++) {
+			append('\b');
+		}
+	}
+
+	// The name of who the text is from, like "alice> ".
+	public synchronized void prompt(String name) {
+
+		append(name);
+		append('>');
+		append(' ');
+	}
+
+	// A text as received, "sender> text".
+	public synchronized void render(String sender, CharSequence text) {
+
+		prompt(sender);
+		line(text);
+	}
+
+	// A text as sent, in place of the line it was typed on, written out right away.
+	public synchronized void echo(String sender, CharSequence text) {
+
+		erase(text.length());
+		render(sender, text);
+		flush();
+	}
+
+	public synchronized void line(CharSequence text) {
+
+		append(text);
+		append('\n');
+	}
+
+	// A history line, "[seq] sender> text".
+	public synchronized void line(long seq, String sender, CharSequence text) {
+
+		append('[');
+		append(seq);
+		append(']');
+		append(' ');
+		render(sender, text);
+	}
+
+	public synchronized void println(CharSequence text) {
+
+		line(text);
+		flush();
+	}
+
+	// Like println(), without the end of the line, for a prompt the input goes after.
+	public synchronized void print(CharSequence text) {
+
+		append(text);
+		flush();
+	}
+
+	// Writes out everything added since the last flush, in one write.
+	public synchronized void flush() {
+
+		if (chars.position() == 0) {
+			return;
+		}
+		encode();
+		out.flush();
+	}
+
+	void append(char c) {
+
+		if (!chars.hasRemaining()) {
+			encode();
+		}
+		chars.put(c);
+	}
+
+	void append(CharSequence s) {
+
+		int length = s.length();
+		for (int i=0; i<length; ) {
+			if (!chars.hasRemaining()) {
+				encode();
+			}
+			int end = i + Math.min(chars.remaining(), length - i);
+			for (; i<end; i++) {
+				chars.put(s.charAt(i));
+			}
+		}
+	}
+
+	// The digits are put in from the right, so the number needs no string of its own.
+	void append(long value) {
+
+		if (value < 0) {
+			append('-');
+		}
+		long rest = value;
+		int digits = 1;
+		while ((rest /= 10) != 0) {
+			digits++;
+		}
+		if (chars.remaining() < digits) {
+			encode();
+		}
+		int end = chars.position() + digits;
+		rest = value;
+		for (int i=end - 1; i>=chars.position(); i--) {
+			chars.put(i, (char) ('0' + Math.abs(rest % 10)));
+			rest /= 10;
+		}
+		chars.position(end);
+	}
+
+	// Encodes what is in the char buffer and writes it. A surrogate pair cut in half by a
+	// full buffer keeps its first half for the next time.
+	void encode() {
+
+		chars.flip();
+		while (true) {
+			CoderResult result = encoder.encode(chars, bytes, false);
+			out.write(bytes.array(), 0, bytes.position());
+			bytes.clear();
+			if (result.isUnderflow()) {
+				break;
+			}
+		}
+		chars.compact();
+	}
+}
@@ -0,0 +1,56 @@
+
+import java.io.*;
+import java.util.concurrent.*;
+
+// Hosts all the direct conversations of a chat client. However many chats there are, the
+// sockets to the other chatters are all handled by one event loop, and the chatters do
+// their work on a small fixed pool of workers whenever a peer has sent something or a text
+// has been typed. So a client in twenty chats has the same three threads as a client in
+// one, and they all sleep while nothing is being said. A worker never waits on a peer:
+// the chatters take what a command needs from the peer frame by frame as it comes in, and
+// hold back what has to wait for an acknowledgement, so a slow or dead peer only ever
+// holds up its own chat.
+class ConversationHost {
+
+	// The number of workers running the chatters, set with the chat.chatWorkers system
+	// property.
+	static final int WORKERS = Integer.getInteger("chat.chatWorkers", 2);
+
+	EventLoop loop;
+	ExecutorService workers;
+
+	public ConversationHost(String name) throws IOException {
+
+		loop = new EventLoop(name + "-chats");
+		workers = Executors.newFixedThreadPool(WORKERS, new ThreadFactory() {
+
+			int count = 0;
+
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-chat-worker-" + (count++));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public EventLoop getLoop() {
+		return loop;
+	}
+
+	public Executor getWorkers() {
+		return workers;
+	}
+}
+
+// A conversation the chat client takes part in, either directly with the other chatters
+// or relayed through a room on the server.
+interface Conversation extends CommandlineInterface {
+
+	long getConversationId();
+
+	ChatRequest getChatRequest();
+
+	// Leave the conversation for good.
+	void leave();
+}
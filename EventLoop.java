@@ -0,0 +1,662 @@
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+// The selector based event loop used by all the server modes. Each loop runs on its
+// own thread and owns a selector with a set of channels registered on it. The loop only does
+// raw socket I/O: bytes read from a channel are handed over to the ChannelConnection, which
+// decides what to do with them, and bytes queued by other threads are written out when the
+// channel becomes writable. The loop thread sleeps in select() while nothing happens, so idle
+// connections cost no CPU at all.
+class EventLoop implements Runnable {
+
+	// The selector for all the channels owned by this loop.
+	Selector selector;
+
+	// The thread running this loop.
+	Thread runner;
+
+	// Work handed over by other threads. Channel registrations and interest changes have
+	// to happen on the loop thread, so they are queued here and the selector is woken up.
+	AbstractQueue<Runnable> tasks;
+
+	public EventLoop(String name) throws IOException {
+
+		selector   = Selector.open();
+		tasks      = new ConcurrentLinkedQueue<Runnable>();
+
+		runner = new Thread(this, name);
+		runner.start();
+	}
+
+	// Run a task on the loop thread.
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	public boolean inLoop() {
+		return Thread.currentThread() == runner;
+	}
+
+	// Start accepting connections on the given server channel. Every accepted channel is
+	// handed over to the acceptor.
+	public void registerAcceptor(final ServerSocketChannel ssc, final ChannelAcceptor acceptor) {
+
+		execute(new Runnable() {
+			public void run() {
+				try {
+					ssc.configureBlocking(false);
+					ssc.register(selector, SelectionKey.OP_ACCEPT, acceptor);
+				}
+				catch (Exception e) {
+					Log.warn( "Error: ", e.getMessage() );
+				}
+			}
+		});
+	}
+
+	// Start reading from the connection's channel.
+	public void register(final ChannelConnection conn) {
+
+		execute(new Runnable() {
+			public void run() {
+				try {
+					conn.getChannel().configureBlocking(false);
+					conn.setKey(conn.getChannel().register(selector, SelectionKey.OP_READ, conn));
+				}
+				catch (Exception e) {
+					conn.close();
+				}
+			}
+		});
+	}
+
+	public void join() throws InterruptedException {
+		runner.join();
+	}
+
+	private void runTasks() {
+
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	public void run() {
+
+		while (true) {
+
+			try {
+
+				selector.select();
+				runTasks();
+
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+
+					SelectionKey key = it.next();
+					it.remove();
+
+					if (!key.isValid()) {
+						continue;
+					}
+
+					if (key.isAcceptable()) {
+						ServerSocketChannel ssc = (ServerSocketChannel) key.channel();
+						SocketChannel sc = ssc.accept();
+						if (sc != null) {
+							((ChannelAcceptor) key.attachment()).accepted(sc);
+						}
+						continue;
+					}
+
+					ChannelConnection conn = (ChannelConnection) key.attachment();
+					if (key.isReadable()) {
+						conn.readFromChannel();
+					}
+					if (key.isValid() && key.isWritable()) {
+						conn.writeToChannel();
+					}
+				}
+			}
+			catch (Exception e) {
+				Log.warn( "Error: ", e.getMessage() );
+			}
+		}
+	}
+}
+
+// A fixed set of event loops. Channels are spread over the loops in a round robin fashion.
+class EventLoopGroup {
+
+	EventLoop[] loops;
+	int next = 0;
+
+	public EventLoopGroup(String name, int count) throws IOException {
+
+		loops = new EventLoop[count];
+		for (int i=0; i<count; i++) {
+			loops[i] = new EventLoop(name + "-" + i);
+		}
+	}
+
+	public synchronized EventLoop next() {
+
+		EventLoop loop = loops[next];
+		next = (next + 1) % loops.length;
+		return loop;
+	}
+
+	public void join() throws InterruptedException {
+		for (EventLoop loop:loops) {
+			loop.join();
+		}
+	}
+}
+
+// Callback for newly accepted channels. Runs on the loop thread, so it should not block.
+interface ChannelAcceptor {
+
+	void accepted(SocketChannel sc) throws Exception;
+}
+
+// Callback for connections whenever there is something new to look at: either more bytes
+// have arrived or the other end has closed the channel. Runs on the loop thread, so the
+// listener is expected to hand the real work to some other thread.
+interface ChannelListener {
+
+	void channelReady();
+}
+
+// The glue between a socket channel owned by an event loop and the stream based code
+// processing the commands. The input side is a ChannelInputBuffer filled by the loop, the
+// output side is a ChannelOutputStream drained by the loop.
+class ChannelConnection {
+
+	SocketChannel channel;
+	EventLoop loop;
+	SelectionKey key;
+	ChannelListener listener;
+
+	ChannelInputBuffer in;
+	ChannelOutputStream out;
+
+	// Held while the pending buffers are written to the channel, by the loop or by the
+	// thread flushing.
+	ReentrantLock writing = new ReentrantLock();
+
+	// When this many bytes are waiting to be written, the connection stops processing its
+	// queued commands until the client has taken some of them. Set with chat.outboundBytes.
+	static final long MAX_PENDING = Long.getLong("chat.outboundBytes", 4 * 1024 * 1024);
+
+	static final int READ_SIZE = 16 * 1024;
+
+	public ChannelConnection(SocketChannel channel, EventLoop loop, ChannelListener listener) {
+
+		this.channel  = channel;
+		this.loop     = loop;
+		this.listener = listener;
+
+		in  = new ChannelInputBuffer();
+		out = new ChannelOutputStream(this);
+		BatchedOutputStream.configure(channel.socket());
+	}
+
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	public void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	public OutputStream getOutputStream() {
+		return out;
+	}
+
+	// Returns true when no more bytes will ever be read from this connection.
+	public boolean isInputFinished() {
+		return in.isFinished();
+	}
+
+	public int available() {
+		return in.available();
+	}
+
+	public long getPendingBytes() {
+		return out.getPendingBytes();
+	}
+
+	public boolean isBackedUp() {
+		return out.getPendingBytes() >= MAX_PENDING;
+	}
+
+	// Called on the loop thread when the channel is readable. The bytes are read into a
+	// pooled buffer, which the input side gives back once they have all been read.
+	public void readFromChannel() throws IOException {
+
+		ByteBuffer buffer = BufferPool.acquire(READ_SIZE);
+		int n;
+		try {
+			n = channel.read(buffer);
+		}
+		catch (IOException e) {
+			n = -1;
+		}
+
+		if (n > 0) {
+			Metrics.bytesIn.add(n);
+			buffer.flip();
+			in.append(buffer);
+		}
+		else {
+			BufferPool.release(buffer);
+		}
+		if (n < 0) {
+			close();
+		}
+		listener.channelReady();
+	}
+
+	// Called on the loop thread when the channel is writable.
+	public void writeToChannel() throws IOException {
+
+		boolean backedUp = isBackedUp();
+		writing.lock();
+		try {
+			if (out.writePending(channel)) {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+		catch (IOException e) {
+			close();
+			listener.channelReady();
+			return;
+		}
+		finally {
+			writing.unlock();
+		}
+
+		// The queued commands were left waiting for this.
+		if (backedUp && !isBackedUp()) {
+			listener.channelReady();
+		}
+	}
+
+	// Writes what has been queued on the output stream right away, on the thread flushing,
+	// as far as the channel takes it without blocking. The loop is only asked to write
+	// the rest, or all of it if it is writing already. With a thread per connection the
+	// loop is one thread among many, and waking it up for every flush would make every
+	// write wait for it.
+	public void flushNow() {
+
+		if (writing.tryLock()) {
+			boolean done;
+			try {
+				done = out.writePending(channel);
+			}
+			catch (IOException e) {
+				close();
+				listener.channelReady();
+				return;
+			}
+			finally {
+				writing.unlock();
+			}
+			if (done) {
+				return;
+			}
+		}
+		requestWrite();
+	}
+
+	// Ask the loop to write out whatever has been queued on the output stream.
+	public void requestWrite() {
+
+		loop.execute(new Runnable() {
+			public void run() {
+				if (key != null && key.isValid()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			}
+		});
+	}
+
+	// Gives back the bytes read from the client that were never processed. Called by the
+	// owner of the connection once it is done with it.
+	public void discardInput() {
+		in.close();
+	}
+
+	public void close() {
+
+		in.finish();
+		try {
+			if (key != null) {
+				key.cancel();
+			}
+			channel.close();
+		}
+		catch (IOException e) { }
+
+		// On the loop, so that nothing is being written from the buffers any more.
+		loop.execute(new Runnable() {
+			public void run() {
+				writing.lock();
+				try {
+					out.discard();
+				}
+				finally {
+					writing.unlock();
+				}
+			}
+		});
+	}
+}
+
+// The input side of a channel connection. The event loop appends the bytes it reads, and the
+// thread processing the commands reads them with the usual blocking stream semantics. So the
+// object streams can be layered on top of this without knowing about the selector at all.
+// A lock rather than synchronized, so that a virtual thread waiting for bytes does not pin
+// its carrier thread.
+class ChannelInputBuffer extends InputStream {
+
+	// The buffers the loop has read into, each one given back to the pool once it has
+	// been read, or when the stream is closed with some of it still unread.
+	ArrayDeque<ByteBuffer> chunks = new ArrayDeque<ByteBuffer>();
+	int available = 0;
+	boolean finished = false;
+	boolean closed = false;
+
+	ReentrantLock lock = new ReentrantLock();
+	Condition arrived = lock.newCondition();
+
+	public void append(ByteBuffer bytes) {
+
+		lock.lock();
+		try {
+			if (closed) {
+				BufferPool.release(bytes);
+				return;
+			}
+			chunks.add(bytes);
+			available += bytes.remaining();
+			arrived.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// Nobody is going to read any more; the unread buffers go back to the pool, and so
+	// does whatever the loop still appends.
+	public void close() {
+
+		lock.lock();
+		try {
+			closed   = true;
+			finished = true;
+			for (ByteBuffer chunk:chunks) {
+				BufferPool.release(chunk);
+			}
+			chunks.clear();
+			available = 0;
+			arrived.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public void finish() {
+
+		lock.lock();
+		try {
+			finished = true;
+			arrived.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public boolean isFinished() {
+
+		lock.lock();
+		try {
+			return finished && available == 0;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int available() {
+
+		lock.lock();
+		try {
+			return available;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int read() throws IOException {
+
+		lock.lock();
+		try {
+			if (!waitForBytes()) {
+				return -1;
+			}
+			ByteBuffer chunk = chunks.getFirst();
+			int b = chunk.get() & 0xff;
+			consumed(chunk, 1);
+			return b;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+
+		if (len == 0) {
+			return 0;
+		}
+
+		lock.lock();
+		try {
+			if (!waitForBytes()) {
+				return -1;
+			}
+
+			int copied = 0;
+			while (copied < len && !chunks.isEmpty()) {
+
+				ByteBuffer chunk = chunks.getFirst();
+				int n = Math.min(len - copied, chunk.remaining());
+				chunk.get(b, off + copied, n);
+				copied += n;
+				consumed(chunk, n);
+			}
+			return copied;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// Wait for the loop to give us something. Returns false at the end of the stream.
+	boolean waitForBytes() throws IOException {
+
+		while (available == 0) {
+			if (finished) {
+				return false;
+			}
+			try {
+				arrived.await();
+			}
+			catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+		}
+		return true;
+	}
+
+	void consumed(ByteBuffer chunk, int n) {
+
+		available -= n;
+		if (!chunk.hasRemaining()) {
+			chunks.removeFirst();
+			BufferPool.release(chunk);
+		}
+	}
+}
+
+// The output side of a channel connection. Writes never block: the bytes are collected and
+// handed to the event loop when the buffer fills up or the connection flushes, which it does
+// once it has processed everything there was for now. A flush writes what the channel takes
+// right away, and the loop writes the rest as the channel accepts it, so a round of commands
+// goes out in one write rather than one for every object written.
+class ChannelOutputStream extends OutputStream {
+
+	ChannelConnection conn;
+	AbstractQueue<ByteBuffer> pending = new ConcurrentLinkedQueue<ByteBuffer>();
+	AtomicLong pendingBytes = new AtomicLong(0);
+
+	// What has been written since the last flush, in a buffer from the pool. Taken on the
+	// first write, so an idle connection holds none.
+	ByteBuffer current;
+
+	public ChannelOutputStream(ChannelConnection conn) {
+		this.conn = conn;
+	}
+
+	public synchronized void write(int b) throws IOException {
+
+		if (!conn.getChannel().isOpen()) {
+			throw new SocketException("Connection closed");
+		}
+
+		if (current == null) {
+			current = BufferPool.acquire(BatchedOutputStream.SIZE);
+		}
+		else if (!current.hasRemaining()) {
+			handOver();
+			conn.requestWrite();
+			current = BufferPool.acquire(BatchedOutputStream.SIZE);
+		}
+		current.put((byte) b);
+		pendingBytes.incrementAndGet();
+	}
+
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+
+		if (!conn.getChannel().isOpen()) {
+			throw new SocketException("Connection closed");
+		}
+
+		pendingBytes.addAndGet(len);
+		while (len > 0) {
+			if (current == null) {
+				current = BufferPool.acquire(BatchedOutputStream.SIZE);
+			}
+			else if (!current.hasRemaining()) {
+				handOver();
+				conn.requestWrite();
+				current = BufferPool.acquire(BatchedOutputStream.SIZE);
+			}
+			int n = Math.min(len, current.remaining());
+			current.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	public void flush() throws IOException {
+
+		synchronized (this) {
+			if (current != null && current.position() > 0) {
+				handOver();
+			}
+		}
+		if (!pending.isEmpty()) {
+			conn.flushNow();
+		}
+	}
+
+	// Queues a buffer shared with other connections behind what has been written so far.
+	// The buffer is written as it is, so it must be a duplicate of its own. Being read
+	// only, it is never given to the pool.
+	public synchronized void writeShared(ByteBuffer shared) throws IOException {
+
+		if (!conn.getChannel().isOpen()) {
+			throw new SocketException("Connection closed");
+		}
+
+		pendingBytes.addAndGet(shared.remaining());
+		if (current != null && current.position() > 0) {
+			handOver();
+		}
+		pending.add(shared);
+		conn.requestWrite();
+	}
+
+	// Queues what has been collected for the loop, which gives the buffer back once it has
+	// been written.
+	void handOver() {
+
+		current.flip();
+		pending.add(current);
+		current = null;
+	}
+
+	public long getPendingBytes() {
+		return pendingBytes.get();
+	}
+
+	// Gives the buffers of a closed connection back. Done on the loop thread.
+	public synchronized void discard() {
+
+		ByteBuffer buffer;
+		while ((buffer = pending.poll()) != null) {
+			BufferPool.release(buffer);
+		}
+		if (current != null) {
+			BufferPool.release(current);
+			current = null;
+		}
+		pendingBytes.set(0);
+	}
+
+	// Write as much as the channel accepts. Returns true when everything has been written.
+	public boolean writePending(SocketChannel channel) throws IOException {
+
+		ByteBuffer buffer;
+		while ((buffer = pending.peek()) != null) {
+			int n = channel.write(buffer);
+			pendingBytes.addAndGet(-n);
+			Metrics.bytesOut.add(n);
+			Metrics.socketWrites.increment();
+			if (buffer.hasRemaining()) {
+				return false;
+			}
+			pending.remove();
+			BufferPool.release(buffer);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,538 @@
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// The inboxes of the chatters who are not connected. Whatever is sent to them while they
+// are away, the chat requests and the messages of the rooms they are in, is kept in a file
+// per chatter and sent to them in batches when they register again.
+//
+// All the files are handled by one thread. The connection threads only queue the work, so
+// a slow disk never holds up the live messages. What is written in one go is synced in one
+// go, once for all the inboxes it touched.
+//
+// An inbox keeps at most chat.inboxMax entries; when it is full, the oldest entry goes.
+// The queue in front of the thread holds at most chat.inboxQueue tasks; when the disk is
+// that far behind, the messages for the inboxes are dropped and counted as inbox.dropped.
+//
+// A backlog stays in the file until the connection has written it to the client; if the
+// client goes away before that, it gets the backlog again the next time.
+class InboxStore implements Runnable {
+
+	// The most files kept open at the same time.
+	static final int OPEN_FILES = 256;
+
+	// The most entries sent to the client in one write, and the most bytes.
+	static final int BATCH_ENTRIES = 512;
+	static final int BATCH_BYTES = 256 * 1024;
+
+	static final int QUEUE = Integer.getInteger("chat.inboxQueue", 65536);
+
+	ChatServer cs;
+	File dir;
+	int maxEntries;
+
+	LinkedBlockingDeque<InboxTask> tasks;
+	Thread thread;
+
+	// Everything below belongs to the store thread.
+
+	// The inboxes in use, the least recently used first. The ones falling off the end
+	// are closed, and opened again from their file when they are needed.
+	LinkedHashMap<String, Inbox> open;
+
+	// The inboxes written to since the last sync.
+	Set<Inbox> dirty = new HashSet<Inbox>();
+
+	public InboxStore(ChatServer cs, File dir, int maxEntries) throws IOException {
+
+		this.cs = cs;
+		this.dir = dir;
+		this.maxEntries = maxEntries;
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can not create " + dir);
+		}
+
+		open = new LinkedHashMap<String, Inbox>(16, 0.75f, true) {
+			protected boolean removeEldestEntry(Map.Entry<String, Inbox> eldest) {
+				if (size() > OPEN_FILES) {
+					sync(eldest.getValue());
+					dirty.remove(eldest.getValue());
+					eldest.getValue().close();
+					return true;
+				}
+				return false;
+			}
+		};
+
+		tasks  = new LinkedBlockingDeque<InboxTask>(QUEUE);
+		thread = new Thread(this, "inbox_store");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// The store as set up with the system properties, or null if it is turned off with
+	// chat.inbox=false.
+	public static InboxStore openDefault(ChatServer cs) {
+
+		if (!Boolean.parseBoolean(System.getProperty("chat.inbox", "true"))) {
+			return null;
+		}
+		try {
+			return new InboxStore(cs, new File(System.getProperty("chat.inboxDir", "chatinbox")),
+			                      Integer.getInteger("chat.inboxMax", 50000));
+		}
+		catch (IOException e) {
+			Log.warn( "Inboxes not available: ", e.getMessage() );
+			return null;
+		}
+	}
+
+	// Keep the message for the chatter. Never waits; the message is dropped if the queue
+	// is full.
+	public void append(String name, EncodedMessage m) {
+
+		if (!tasks.offer(new InboxTask(name, m, null))) {
+			Metrics.inboxDropped.increment();
+		}
+	}
+
+	// Send the chatter everything kept for it, on the connection it has just registered.
+	// There is one of these per registration, so rather than being dropped it waits for
+	// room in the queue.
+	public void deliver(String name, ChatServerConnectionManager ch) {
+		put(new InboxTask(name, null, ch));
+	}
+
+	// The connection has written the chatter's backlog up to the mark, so those entries
+	// can go.
+	public void delivered(String name, int mark) {
+		put(new InboxTask(name, mark));
+	}
+
+	void put(InboxTask task) {
+
+		try {
+			tasks.put(task);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public void run() {
+
+		while (true) {
+
+			try {
+				run(tasks.take());
+
+				// Whatever else is waiting goes with it, and is synced with it.
+				InboxTask task;
+				int n = 0;
+				while (n++ < 4096 && (task = tasks.poll()) != null) {
+					run(task);
+				}
+				syncDirty();
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			catch (Exception e) {
+				Log.error( "Inbox error", e );
+			}
+		}
+	}
+
+	void run(InboxTask task) throws IOException {
+
+		if (task.deliverTo != null) {
+			drain(task.name, task.deliverTo);
+		}
+		else if (task.m == null) {
+			Inbox inbox = getInbox(task.name);
+			inbox.delivered(task.mark);
+			dirty.add(inbox);
+		}
+		else {
+			store(task.name, task.m);
+		}
+	}
+
+	void store(String name, EncodedMessage m) throws IOException {
+
+		Inbox inbox = getInbox(name);
+		inbox.append(m.getFrames(), maxEntries);
+		dirty.add(inbox);
+	}
+
+	// Sends the chatter its backlog, then hands it back its rooms.
+	void drain(String name, ChatServerConnectionManager ch) throws IOException {
+
+		// The client has to know the rooms before their messages come.
+		List<ChatRoom> rooms = cs.getRooms().getOfflineRooms(name);
+		for (ChatRoom room:rooms) {
+			ch.queueMessage(new EncodedMessage(ClientCommand.CHAT_REQUEST, room.getChatRequest()));
+		}
+
+		File file = Inbox.file(dir, name);
+		if (open.containsKey(name) || file.exists()) {
+
+			Inbox inbox = getInbox(name);
+			long entries = inbox.getCount();
+			if (inbox.getEvicted() > 0) {
+				Log.info( "Inbox of " + name + " dropped " + inbox.getEvicted() + " old entries" );
+			}
+			int mark = inbox.drainTo(ch, BATCH_ENTRIES, BATCH_BYTES);
+			if (entries > 0) {
+				ch.queueCommand(new InboxReceipt(this, name, mark));
+			}
+			Log.info( "Sent " + entries + " kept entries to " + name );
+		}
+
+		// Whatever was queued for the chatter while we were reading goes straight to the
+		// connection. Each room is switched over holding it, so nothing can be relayed
+		// to the inbox in between; only the queue is looked at then, the files are not.
+		for (ChatRoom room:rooms) {
+			synchronized (room) {
+				forwardQueued(name, ch);
+				cs.getRooms().comeOnline(room, ch, name);
+			}
+		}
+		forwardQueued(name, ch);
+	}
+
+	// Takes the messages queued for the chatter off the queue and queues them on its
+	// connection instead, in their order. The rest of the queue is left as it is.
+	void forwardQueued(String name, ChatServerConnectionManager ch) {
+
+		Iterator<InboxTask> it = tasks.iterator();
+		while (it.hasNext()) {
+			InboxTask task = it.next();
+			if (task.m != null && task.name.equals(name)) {
+				it.remove();
+				ch.queueMessage(task.m);
+			}
+		}
+	}
+
+	Inbox getInbox(String name) throws IOException {
+
+		Inbox inbox = open.get(name);
+		if (inbox == null) {
+			inbox = new Inbox(Inbox.file(dir, name));
+			open.put(name, inbox);
+		}
+		return inbox;
+	}
+
+	void syncDirty() {
+
+		for (Inbox inbox:dirty) {
+			sync(inbox);
+		}
+		dirty.clear();
+	}
+
+	void sync(Inbox inbox) {
+
+		try {
+			inbox.force();
+		}
+		catch (IOException e) {
+			Log.warn( "Inbox sync failed: ", e.getMessage() );
+		}
+	}
+}
+
+class InboxTask {
+
+	String name;
+	EncodedMessage m;
+	ChatServerConnectionManager deliverTo;
+	int mark;
+
+	public InboxTask(String name, EncodedMessage m, ChatServerConnectionManager deliverTo) {
+		this.name      = name;
+		this.m         = m;
+		this.deliverTo = deliverTo;
+	}
+
+	// The backlog has been written up to the mark.
+	public InboxTask(String name, int mark) {
+		this.name = name;
+		this.mark = mark;
+	}
+}
+
+// Queued on the connection after the batches of a backlog. By the time it is processed the
+// batches have been written to the client, and the inbox is told it can let them go.
+class InboxReceipt implements ServerCommandInterface {
+
+	InboxStore store;
+	String name;
+	int mark;
+
+	public InboxReceipt(InboxStore store, String name, int mark) {
+		this.store = store;
+		this.name  = name;
+		this.mark  = mark;
+	}
+
+	public void process(ChatServerConnectionManager ch) throws Exception {
+		store.delivered(name, mark);
+	}
+
+	public String toString() {
+		return "InboxReceipt";
+	}
+}
+
+// One chatter's inbox file. It starts with a header
+//
+//   long head | int count | int removed
+//
+// followed by the entries, each an int length and the frames of a message as the binary
+// wire sends them. The entries before the head have been dropped; the file is compacted
+// when they take up more than half of it. Removed counts the entries dropped so far, round
+// and round as an int; a backlog sent to the client is marked with that count, so the
+// entries it had can be found again even after some of them were evicted.
+class Inbox {
+
+	static final int HEADER = 16;
+	static final long COMPACT_BYTES = 1024 * 1024;
+
+	File file;
+	FileChannel channel;
+	long head;
+	int count;
+	long end;
+	int removed;
+
+	// The entries dropped since the inbox was opened.
+	long evicted = 0;
+
+	ByteBuffer header = ByteBuffer.allocate(HEADER);
+	ByteBuffer length = ByteBuffer.allocate(4);
+
+	// The file of a chatter, named after the bytes of the name so that any name will do.
+	static File file(File dir, String name) {
+
+		StringBuilder sb = new StringBuilder();
+		for (byte b:name.getBytes(StandardCharsets.UTF_8)) {
+			sb.append(String.format("%02x", b));
+		}
+		return new File(dir, sb.toString() + ".inbox");
+	}
+
+	public Inbox(File file) throws IOException {
+
+		this.file = file;
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		if (channel.size() < HEADER) {
+			head  = HEADER;
+			count = 0;
+			end   = HEADER;
+			channel.truncate(HEADER);
+			writeHeader();
+			return;
+		}
+
+		header.clear();
+		readFully(header, 0);
+		head = header.getLong(0);
+		removed = header.getInt(12);
+
+		// The header is written after the entry, so the entries are counted again, and
+		// whatever is left of an entry that was being written is cut off.
+		long position = head;
+		long size = channel.size();
+		count = 0;
+		while (position + 4 <= size) {
+			int n = readLength(position);
+			if (n <= 0 || position + 4 + n > size) {
+				break;
+			}
+			position += 4 + n;
+			count++;
+		}
+		end = position;
+		if (end < size) {
+			channel.truncate(end);
+		}
+		writeHeader();
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public long getEvicted() {
+		return evicted;
+	}
+
+	public void append(byte[] frames, int maxEntries) throws IOException {
+
+		ByteBuffer entry = ByteBuffer.allocate(4 + frames.length);
+		entry.putInt(frames.length);
+		entry.put(frames);
+		entry.flip();
+		while (entry.hasRemaining()) {
+			channel.write(entry, end + entry.position());
+		}
+		end += 4 + frames.length;
+		count++;
+
+		// Full, drop the oldest.
+		while (count > maxEntries) {
+			head += 4 + readLength(head);
+			count--;
+			removed++;
+			evicted++;
+		}
+
+		if (head - HEADER > COMPACT_BYTES && head - HEADER > (end - HEADER) / 2) {
+			compact();
+		}
+		writeHeader();
+	}
+
+	// Sends all the entries to the connection in batches, and returns the mark to pass to
+	// delivered() once they are written. The entries stay until then.
+	public int drainTo(ChatServerConnectionManager ch, int batchEntries, int batchBytes) throws IOException {
+
+		ByteArrayOutputStream batch = new ByteArrayOutputStream(batchBytes + 1024);
+		int entries = 0;
+
+		ByteBuffer buffer = ByteBuffer.allocate(batchBytes);
+		long position = head;
+		while (position < end) {
+
+			int n = readLength(position);
+			if (n > buffer.capacity()) {
+				buffer = ByteBuffer.allocate(n);
+			}
+			buffer.clear();
+			buffer.limit(n);
+			readFully(buffer, position + 4);
+			batch.write(buffer.array(), 0, n);
+			entries++;
+			position += 4 + n;
+
+			if (entries >= batchEntries || batch.size() >= batchBytes) {
+				ch.queueCommand(MessageDelivery.backlog(EncodedMessage.fromFrames(batch.toByteArray())));
+				batch.reset();
+				entries = 0;
+			}
+		}
+		if (entries > 0) {
+			ch.queueCommand(MessageDelivery.backlog(EncodedMessage.fromFrames(batch.toByteArray())));
+		}
+		return getMark();
+	}
+
+	// The mark of what is in the inbox now.
+	public int getMark() {
+		return removed + count;
+	}
+
+	// Drops the entries up to the mark, those of them which are still here. Once the inbox
+	// is empty the file is cut back to the header.
+	public void delivered(int mark) throws IOException {
+
+		int n = Math.min(mark - removed, count);
+		if (n <= 0) {
+			return;
+		}
+		for (int i=0; i<n; i++) {
+			head += 4 + readLength(head);
+		}
+		count   -= n;
+		removed += n;
+
+		if (count == 0) {
+			head = HEADER;
+			end  = HEADER;
+			channel.truncate(HEADER);
+		}
+		else if (head - HEADER > COMPACT_BYTES && head - HEADER > (end - HEADER) / 2) {
+			compact();
+		}
+		writeHeader();
+	}
+
+	// Moves the entries after the head to the start of the file.
+	void compact() throws IOException {
+
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+		                                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer h = ByteBuffer.allocate(HEADER);
+			h.putLong(0, HEADER);
+			h.putInt(8, count);
+			h.putInt(12, removed);
+
+			// The entries follow the header, where the write leaves the channel.
+			while (h.hasRemaining()) {
+				out.write(h);
+			}
+
+			long position = head;
+			while (position < end) {
+				position += channel.transferTo(position, end - position, out);
+			}
+			out.force(true);
+		}
+
+		channel.close();
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+		end  = HEADER + (end - head);
+		head = HEADER;
+	}
+
+	void writeHeader() throws IOException {
+
+		header.clear();
+		header.putLong(0, head);
+		header.putInt(8, count);
+		header.putInt(12, removed);
+		while (header.hasRemaining()) {
+			channel.write(header, header.position());
+		}
+	}
+
+	int readLength(long position) throws IOException {
+
+		length.clear();
+		readFully(length, position);
+		return length.getInt(0);
+	}
+
+	void readFully(ByteBuffer buffer, long position) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("Inbox " + file + " is cut short");
+			}
+		}
+	}
+
+	public void force() throws IOException {
+		channel.force(false);
+	}
+
+	public void close() {
+
+		try {
+			channel.close();
+		}
+		catch (IOException e) { }
+	}
+}
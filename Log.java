@@ -0,0 +1,272 @@
+
+import java.io.*;
+import java.time.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+// How much is logged, set with the chat.logLevel system property. Everything at the level
+// and above it is logged; OFF logs nothing.
+enum LogLevel {
+	DEBUG,
+	INFO,
+	WARN,
+	ERROR,
+	OFF;
+
+	public static LogLevel getDefault() {
+		return LogLevel.valueOf(System.getProperty("chat.logLevel", "info").toUpperCase());
+	}
+}
+
+// The log of the chat, for everything that is not meant for the user. The threads doing the
+// work never write to the console themselves: a line which is logged at all is formatted on
+// the calling thread and put into a ring buffer, and a writer thread of its own writes the
+// lines out in batches. A line below the level costs one comparison and no allocation, as
+// long as it is logged with one of the overloads taking its argument, rather than a string
+// concatenated beforehand.
+//
+// If the writer falls behind so far that the buffer is full, lines are dropped rather than
+// making the caller wait, and the number dropped is logged once there is room again.
+//
+// The lines go to the console, or to the file named by chat.logOutput.
+class Log {
+
+	static final LogLevel LEVEL = LogLevel.getDefault();
+
+	static final LogBuffer buffer = new LogBuffer(Integer.getInteger("chat.logBuffer", 8192),
+	                                              System.getProperty("chat.logOutput"));
+
+	public static boolean isEnabled(LogLevel level) {
+		return level.ordinal() >= LEVEL.ordinal();
+	}
+
+	public static boolean isDebug() {
+		return LogLevel.DEBUG.ordinal() >= LEVEL.ordinal();
+	}
+
+	public static void debug(String text) {
+		if (isDebug()) {
+			buffer.add(LogLevel.DEBUG, text);
+		}
+	}
+
+	public static void debug(String text, Object arg) {
+		if (isDebug()) {
+			buffer.add(LogLevel.DEBUG, text + arg);
+		}
+	}
+
+	public static void debug(String text, long arg) {
+		if (isDebug()) {
+			buffer.add(LogLevel.DEBUG, text + arg);
+		}
+	}
+
+	public static void info(String text) {
+		if (isEnabled(LogLevel.INFO)) {
+			buffer.add(LogLevel.INFO, text);
+		}
+	}
+
+	public static void info(String text, Object arg) {
+		if (isEnabled(LogLevel.INFO)) {
+			buffer.add(LogLevel.INFO, text + arg);
+		}
+	}
+
+	public static void info(String text, long arg) {
+		if (isEnabled(LogLevel.INFO)) {
+			buffer.add(LogLevel.INFO, text + arg);
+		}
+	}
+
+	public static void warn(String text) {
+		if (isEnabled(LogLevel.WARN)) {
+			buffer.add(LogLevel.WARN, text);
+		}
+	}
+
+	public static void warn(String text, Object arg) {
+		if (isEnabled(LogLevel.WARN)) {
+			buffer.add(LogLevel.WARN, text + arg);
+		}
+	}
+
+	// An error, with the stack trace of what caused it.
+	public static void error(String text, Throwable t) {
+
+		if (isEnabled(LogLevel.ERROR)) {
+			StringWriter sw = new StringWriter();
+			sw.write(text);
+			sw.write(": ");
+			t.printStackTrace(new PrintWriter(sw));
+			buffer.add(LogLevel.ERROR, sw.toString());
+		}
+	}
+
+	// Waits until everything logged so far has been written.
+	public static void flush() {
+		buffer.flush();
+	}
+}
+
+// The ring buffer between the logging threads and the writer. The slots are claimed by the
+// loggers in order with a compare and set on the tail, filled in, and then published by
+// setting the slot's sequence number, which is what the writer waits for. The writer frees
+// a slot by moving the head past it. Nothing is allocated for the slots after this.
+class LogBuffer implements Runnable {
+
+	int capacity;
+	int mask;
+
+	// What is in the slots, and the sequence number each slot was last published with.
+	long[] times;
+	LogLevel[] levels;
+	String[] threads;
+	String[] texts;
+	AtomicLongArray published;
+
+	AtomicLong tail = new AtomicLong(0);
+	volatile long head = 0;
+	LongAdder dropped = new LongAdder();
+
+	String output;
+	Thread writer;
+	volatile boolean parked = false;
+
+	public LogBuffer(int size, String output) {
+
+		capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+		mask     = capacity - 1;
+		times    = new long[capacity];
+		levels   = new LogLevel[capacity];
+		threads  = new String[capacity];
+		texts    = new String[capacity];
+		published = new AtomicLongArray(capacity);
+		for (int i=0; i<capacity; i++) {
+			published.set(i, -1);
+		}
+		this.output = output;
+
+		writer = new Thread(this, "log_writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread("log_flush") {
+			public void run() {
+				flush();
+			}
+		});
+	}
+
+	public void add(LogLevel level, String text) {
+
+		long seq;
+		while (true) {
+			seq = tail.get();
+			if (seq - head >= capacity) {
+				dropped.increment();
+				return;
+			}
+			if (tail.compareAndSet(seq, seq + 1)) {
+				break;
+			}
+		}
+
+		int i = (int) (seq & mask);
+		times[i]   = System.currentTimeMillis();
+		levels[i]  = level;
+		threads[i] = Thread.currentThread().getName();
+		texts[i]   = text;
+		published.set(i, seq);
+
+		if (parked) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	public void flush() {
+
+		long until = tail.get();
+		long deadline = System.currentTimeMillis() + 1000;
+		while (head < until && System.currentTimeMillis() < deadline) {
+			LockSupport.unpark(writer);
+			try {
+				Thread.sleep(1);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	public void run() {
+
+		StringBuilder sb = new StringBuilder(64 * 1024);
+		ZoneId zone = ZoneId.systemDefault();
+		PrintStream file = null;
+		if (output != null) {
+			try {
+				file = new PrintStream(new FileOutputStream(output, true));
+			}
+			catch (IOException e) {
+				System.err.println( "Could not open the log " + output + ": " + e.getMessage() );
+			}
+		}
+
+		while (true) {
+
+			// Everything published so far, in one write.
+			long seq = head;
+			while (sb.length() < 60 * 1024) {
+				int i = (int) (seq & mask);
+				if (published.get(i) != seq) {
+					break;
+				}
+				format(sb, zone, times[i], levels[i], threads[i], texts[i]);
+				texts[i] = null;
+				seq++;
+				head = seq;
+			}
+
+			long n = dropped.sumThenReset();
+			if (n > 0) {
+				format(sb, zone, System.currentTimeMillis(), LogLevel.WARN, "log_writer", n + " log lines dropped");
+			}
+
+			if (sb.length() > 0) {
+				PrintStream out = (file != null) ? file : System.out;
+				out.print(sb);
+				out.flush();
+				sb.setLength(0);
+				continue;
+			}
+
+			parked = true;
+			if (published.get((int) (head & mask)) != head) {
+				LockSupport.parkNanos(10 * 1000 * 1000);
+			}
+			parked = false;
+		}
+	}
+
+	static void format(StringBuilder sb, ZoneId zone, long time, LogLevel level, String thread, String text) {
+
+		LocalTime t = LocalTime.ofInstant(Instant.ofEpochMilli(time), zone);
+		pad(sb, t.getHour(), 2).append(':');
+		pad(sb, t.getMinute(), 2).append(':');
+		pad(sb, t.getSecond(), 2).append('.');
+		pad(sb, t.getNano() / 1000000, 3).append(' ');
+		sb.append(level).append(" [").append(thread).append("] ").append(text).append('\n');
+	}
+
+	static StringBuilder pad(StringBuilder sb, int value, int digits) {
+
+		for (int limit = 10; digits > 1; digits--, limit *= 10) {
+			if (value < limit) {
+				sb.append('0');
+			}
+		}
+		return sb.append(value);
+	}
+}
@@ -0,0 +1,194 @@
+
+import java.util.*;
+import java.util.concurrent.*;
+
+// The index of the conversations in the message log. Every record in the log points back
+// at the record before it in the same conversation, so a conversation can be read
+// backwards without looking at anything else in the log. The index knows where each
+// conversation ends, and where every INDEX_EVERY-th record of it is, so that reading can
+// start close to any seq.
+//
+// Reading the latest page of a conversation is one hash lookup and one step back per
+// message, however long the log is and however many other conversations are in it.
+class MessageHistory {
+
+	// Every this many records of a conversation are indexed by their seq, set with the
+	// chat.historyIndexEvery system property.
+	static final int INDEX_EVERY = Integer.getInteger("chat.historyIndexEvery", 64);
+
+	MessageLog log;
+	ConcurrentHashMap<Long, ConversationIndex> conversations = new ConcurrentHashMap<Long, ConversationIndex>();
+	volatile long maxConversationId = 0;
+
+	public MessageHistory(MessageLog log) {
+		this.log = log;
+	}
+
+	// Called by the log for every record, after the record has been written.
+	void add(long conversation, long seq, long offset) {
+
+		ConversationIndex index = conversations.get(conversation);
+		if (index == null) {
+			index = new ConversationIndex();
+			conversations.put(conversation, index);
+		}
+		index.add(seq, offset);
+
+		if (conversation > maxConversationId) {
+			maxConversationId = conversation;
+		}
+	}
+
+	// The offset of the conversation's last record, or -1 if there is none.
+	long getLastOffset(long conversation) {
+
+		ConversationIndex index = conversations.get(conversation);
+		return (index == null) ? -1 : index.getLastOffset();
+	}
+
+	public long getMaxConversationId() {
+		return maxConversationId;
+	}
+
+	public int size() {
+		return conversations.size();
+	}
+
+	// Finds the records the request asks for and returns their offsets, the oldest first.
+	// Only the seqs are looked at; the records are read when they are sent.
+	public long[] find(HistoryRequest request, int maxLimit) {
+
+		ConversationIndex index = conversations.get(request.getRoomId());
+		int limit = Math.min(request.getLimit(), maxLimit);
+		if (index == null || limit <= 0) {
+			return new long[0];
+		}
+
+		long after = Math.max(0, request.getAfterSeq());
+		long upper = request.getBeforeSeq() - 1;
+		if (after > 0 && after + limit < upper) {
+			upper = after + limit;
+		}
+
+		long offset = index.findFrom(upper);
+		while (offset != -1 && log.seqAt(offset) > upper) {
+			offset = log.previous(offset);
+		}
+
+		long[] found = new long[limit];
+		int n = 0;
+		while (offset != -1 && n < limit && log.seqAt(offset) > after) {
+			found[n++] = offset;
+			offset = log.previous(offset);
+		}
+
+		long[] res = new long[n];
+		for (int i=0; i<n; i++) {
+			res[i] = found[n - 1 - i];
+		}
+		return res;
+	}
+
+	public RoomMessage read(long offset) {
+		return log.read(offset);
+	}
+}
+
+// Where a conversation is in the log: its last record, and every INDEX_EVERY-th record by
+// seq. The seqs of a conversation only go up in the log, so the indexed ones are sorted.
+class ConversationIndex {
+
+	long lastSeq = 0;
+	long lastOffset = -1;
+	long count = 0;
+
+	long[] seqs = new long[4];
+	long[] offsets = new long[4];
+	int size = 0;
+
+	public synchronized void add(long seq, long offset) {
+
+		if (count % MessageHistory.INDEX_EVERY == 0) {
+			if (size == seqs.length) {
+				seqs    = Arrays.copyOf(seqs, size * 2);
+				offsets = Arrays.copyOf(offsets, size * 2);
+			}
+			seqs[size]    = seq;
+			offsets[size] = offset;
+			size++;
+		}
+		count++;
+		lastSeq    = seq;
+		lastOffset = offset;
+	}
+
+	public synchronized long getLastOffset() {
+		return lastOffset;
+	}
+
+	// The offset of the first indexed record with a seq of at least the given one, or the
+	// last record if there is none. Reading back from there gets to the seq in at most
+	// INDEX_EVERY steps.
+	public synchronized long findFrom(long seq) {
+
+		if (seq >= lastSeq) {
+			return lastOffset;
+		}
+
+		int low = 0;
+		int high = size - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (seqs[mid] < seq) {
+				low = mid + 1;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+		return (low < size) ? offsets[low] : lastOffset;
+	}
+}
+
+// Sends the answer to a history request one page at a time. Each page is a command of its
+// own on the connection, which queues the next page when it is done, so a long history
+// never holds up the rest of what the connection has to send, and only one page is ever
+// in memory.
+class HistoryStream implements ServerCommandInterface {
+
+	// Messages per page, and the most messages one request can get, set with the
+	// chat.historyPage and chat.historyMax system properties.
+	static final int PAGE = Integer.getInteger("chat.historyPage", 100);
+	static final int MAX = Integer.getInteger("chat.historyMax", 10000);
+
+	MessageHistory history;
+	long roomId;
+	long[] offsets;
+	int next = 0;
+
+	public HistoryStream(MessageHistory history, long roomId, long[] offsets) {
+		this.history = history;
+		this.roomId  = roomId;
+		this.offsets = offsets;
+	}
+
+	public void process(ChatServerConnectionManager ch) throws Exception {
+
+		int n = Math.min(PAGE, offsets.length - next);
+		RoomMessage[] messages = new RoomMessage[n];
+		for (int i=0; i<n; i++) {
+			messages[i] = history.read(offsets[next + i]);
+		}
+		next += n;
+
+		boolean last = (next >= offsets.length);
+		ch.getWire().writeMessage(new EncodedMessage(ClientCommand.HISTORY_PAGE, new HistoryPage(roomId, messages, last)));
+		if (!last) {
+			ch.queueCommand(this);
+		}
+	}
+
+	public String toString() {
+		return "HistoryStream";
+	}
+}
@@ -0,0 +1,472 @@
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+// How often the message log makes sure what it has written is on the disk, set with the
+// chat.logSync system property.
+// NONE     - never, the operating system writes the pages out when it likes.
+// INTERVAL - at most every chat.logSyncMillis, after something has been written.
+// BATCH    - after every batch of appends, so a message is on the disk before the writer
+//            looks at the next batch. The appends waiting meanwhile all go in the next
+//            batch, so there is one sync for all of them.
+enum LogSyncPolicy {
+	NONE,
+	INTERVAL,
+	BATCH;
+
+	public static LogSyncPolicy getDefault() {
+		return LogSyncPolicy.valueOf(System.getProperty("chat.logSync", "interval").toUpperCase());
+	}
+}
+
+// The log of every message relayed through the server. The connection threads only put the
+// message on a queue; one writer thread takes whatever has piled up, writes it all into the
+// memory mapped segment and syncs as the policy says.
+//
+// The log is a directory of segments, each a file named after the log offset of its first
+// byte. A record is
+//
+//   int length | int crc | long conversation | long seq | long timestamp | long previous |
+//   short sender length | sender | int text length | text
+//
+// where the length and the crc are of what follows them, and previous is the offset of the
+// conversation's record before this one, or -1. The segments are mapped at their full size
+// up front, so the end of a segment is the first record with a zero length, or one that
+// does not check out if the server went down halfway through writing it.
+//
+// The conversations are indexed as the records are written, and the index is built again
+// from the segments when the server starts. See MessageHistory.
+class MessageLog implements Runnable {
+
+	static final int HEADER = 8;
+
+	// Appends waiting for the writer. When the writer falls this far behind, the appends
+	// wait for it.
+	static final int QUEUE = Integer.getInteger("chat.logQueue", 64 * 1024);
+
+	// The most appends written in one go.
+	static final int MAX_BATCH = 4096;
+
+	File dir;
+	long segmentBytes;
+	LogSyncPolicy policy;
+	long syncMillis;
+
+	BlockingQueue<RoomMessage> queue;
+	Thread writer;
+	volatile boolean running = true;
+
+	// Only the writer thread writes to the segment. Every segment stays mapped, by its
+	// base offset, for the history to read.
+	LogSegment active;
+	ConcurrentSkipListMap<Long, ByteBuffer> segments = new ConcurrentSkipListMap<Long, ByteBuffer>();
+	long lastSync;
+	boolean dirty = false;
+
+	MessageHistory history = new MessageHistory(this);
+
+	// What has been written, and what of it is known to be on the disk.
+	volatile long appended = 0;
+	volatile long endOffset = 0;
+	volatile long syncedOffset = 0;
+
+	public MessageLog(File dir, long segmentBytes, LogSyncPolicy policy, long syncMillis) throws IOException {
+
+		this.dir          = dir;
+		this.segmentBytes = segmentBytes;
+		this.policy       = policy;
+		this.syncMillis   = syncMillis;
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Can not create " + dir);
+		}
+
+		recover();
+
+		queue  = new ArrayBlockingQueue<RoomMessage>(QUEUE);
+		writer = new Thread(this, "message_log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	// The log as set up with the system properties, or null if it is turned off with
+	// chat.log=false.
+	public static MessageLog openDefault() {
+
+		if (!Boolean.parseBoolean(System.getProperty("chat.log", "true"))) {
+			return null;
+		}
+		try {
+			return new MessageLog(new File(System.getProperty("chat.logDir", "chatlog")),
+			                      Long.getLong("chat.logSegmentBytes", 64L * 1024 * 1024),
+			                      LogSyncPolicy.getDefault(),
+			                      Long.getLong("chat.logSyncMillis", 1000));
+		}
+		catch (IOException e) {
+			Log.warn( "Message log not available: ", e.getMessage() );
+			return null;
+		}
+	}
+
+	// Maps all the segments, indexes what is in them and opens the last one for writing
+	// at the end of what was written to it.
+	void recover() throws IOException {
+
+		long[] bases = segmentBases();
+		if (bases.length == 0) {
+			active = LogSegment.create(dir, 0, segmentBytes);
+			segments.put(active.getBase(), active.getBuffer());
+			return;
+		}
+
+		long start = System.currentTimeMillis();
+		for (int i=0; i<bases.length; i++) {
+
+			ByteBuffer buffer;
+			if (i == bases.length - 1) {
+				active = LogSegment.open(dir, bases[i]);
+				buffer = active.getBuffer();
+			}
+			else {
+				buffer = LogSegment.map(dir, bases[i]);
+			}
+			segments.put(bases[i], buffer);
+
+			int position = 0;
+			while (true) {
+				int length = LogSegment.checkRecord(buffer, position);
+				if (length < 0) {
+					break;
+				}
+				history.add(buffer.getLong(position + HEADER), buffer.getLong(position + HEADER + 8), bases[i] + position);
+				position += HEADER + length;
+			}
+
+			if (i == bases.length - 1) {
+				buffer.position(position);
+				endOffset = bases[i] + position;
+			}
+		}
+		syncedOffset = endOffset;
+		Log.info( "Message log at " + endOffset + " in " + bases.length + " segments, " +
+		          history.size() + " conversations indexed in " + (System.currentTimeMillis() - start) + " ms" );
+	}
+
+	// The base offsets of the segments in the directory, in order.
+	long[] segmentBases() {
+
+		String[] names = dir.list();
+		ArrayList<Long> bases = new ArrayList<Long>();
+		for (String name:names) {
+			if (name.endsWith(".log")) {
+				try {
+					bases.add(Long.parseLong(name.substring(0, name.length() - 4)));
+				}
+				catch (NumberFormatException e) { }
+			}
+		}
+		Collections.sort(bases);
+
+		long[] res = new long[bases.size()];
+		for (int i=0; i<res.length; i++) {
+			res[i] = bases.get(i);
+		}
+		return res;
+	}
+
+	// Queues the message for the writer. Waits only if the writer is a whole queue behind.
+	public void append(RoomMessage msg) {
+
+		if (!queue.offer(msg)) {
+			try {
+				queue.put(msg);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	// The highest conversation id in the log, so the server never hands out an id which
+	// is in there already.
+	public long getMaxConversationId() {
+		return history.getMaxConversationId();
+	}
+
+	public MessageHistory getHistory() {
+		return history;
+	}
+
+	public long getAppended() {
+		return appended;
+	}
+
+	public long getEndOffset() {
+		return endOffset;
+	}
+
+	public long getSyncedOffset() {
+		return syncedOffset;
+	}
+
+	public void run() {
+
+		ArrayList<RoomMessage> batch = new ArrayList<RoomMessage>(MAX_BATCH);
+		try {
+			while (running || !queue.isEmpty()) {
+
+				RoomMessage first = queue.poll(syncMillis, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					queue.drainTo(batch, MAX_BATCH - 1);
+					for (RoomMessage msg:batch) {
+						write(msg);
+					}
+					appended += batch.size();
+					endOffset = active.getBase() + active.getBuffer().position();
+					batch.clear();
+					dirty = true;
+				}
+
+				if (dirty && shouldSync()) {
+					sync();
+				}
+			}
+			if (dirty) {
+				sync();
+			}
+		}
+		catch (Exception e) {
+			Log.error( "Message log stopped", e );
+		}
+	}
+
+	boolean shouldSync() {
+
+		switch (policy) {
+			case BATCH:
+				return true;
+			case INTERVAL:
+				return System.currentTimeMillis() - lastSync >= syncMillis;
+			default:
+				return false;
+		}
+	}
+
+	void sync() {
+
+		if (policy != LogSyncPolicy.NONE) {
+			active.force();
+		}
+		lastSync = System.currentTimeMillis();
+		syncedOffset = endOffset;
+		dirty = false;
+	}
+
+	void write(RoomMessage msg) throws IOException {
+
+		byte[] sender = senderBytes(msg.getSender());
+		byte[] text   = bytes(msg.getText());
+		int length = 8 + 8 + 8 + 8 + 2 + sender.length + 4 + text.length;
+
+		if (active.getBuffer().remaining() < HEADER + length) {
+			roll(HEADER + length);
+		}
+
+		ByteBuffer buffer = active.getBuffer();
+		int start = buffer.position();
+		buffer.position(start + HEADER);
+		buffer.putLong(msg.getRoomId());
+		buffer.putLong(msg.getSeq());
+		buffer.putLong(msg.getTimestamp());
+		buffer.putLong(history.getLastOffset(msg.getRoomId()));
+		buffer.putShort((short) sender.length);
+		buffer.put(sender);
+		buffer.putInt(text.length);
+		buffer.put(text);
+
+		// The length goes in last, so a record is never seen before all of it is there.
+		buffer.putInt(start + 4, LogSegment.crc(buffer, start + HEADER, length));
+		buffer.putInt(start, length);
+
+		history.add(msg.getRoomId(), msg.getSeq(), active.getBase() + start);
+	}
+
+	// Closes the active segment and starts a new one after it, big enough for the record.
+	void roll(int needed) throws IOException {
+
+		long base = active.getBase() + active.getBuffer().position();
+		active.force();
+		active.close();
+
+		active = LogSegment.create(dir, base, Math.max(segmentBytes, needed));
+		segments.put(active.getBase(), active.getBuffer());
+	}
+
+	// Reads the record at the offset. Only offsets handed out by the history will do.
+	public RoomMessage read(long offset) {
+
+		Map.Entry<Long, ByteBuffer> segment = segments.floorEntry(offset);
+		ByteBuffer buffer = segment.getValue();
+		int position = (int) (offset - segment.getKey()) + HEADER;
+
+		long conversation = buffer.getLong(position);
+		long seq          = buffer.getLong(position + 8);
+		long timestamp    = buffer.getLong(position + 16);
+		position += 32;
+
+		String sender = string(buffer, position + 2, buffer.getShort(position));
+		position += 2 + buffer.getShort(position);
+		String text = string(buffer, position + 4, buffer.getInt(position));
+
+		return new RoomMessage(conversation, seq, timestamp, sender, text);
+	}
+
+	// The offset of the conversation's record before the one at the offset, or -1.
+	public long previous(long offset) {
+
+		Map.Entry<Long, ByteBuffer> segment = segments.floorEntry(offset);
+		return segment.getValue().getLong((int) (offset - segment.getKey()) + HEADER + 24);
+	}
+
+	// The seq of the record at the offset.
+	public long seqAt(long offset) {
+
+		Map.Entry<Long, ByteBuffer> segment = segments.floorEntry(offset);
+		return segment.getValue().getLong((int) (offset - segment.getKey()) + HEADER + 8);
+	}
+
+	static String string(ByteBuffer buffer, int position, int length) {
+
+		byte[] b = new byte[length];
+		ByteBuffer view = buffer.duplicate();
+		view.position(position);
+		view.get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	static byte[] bytes(String s) {
+		return (s == null) ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	// The length of the sender is kept in a short, so a longer one is cut, at the start of
+	// a character rather than in the middle of one. The text has an int length and is
+	// always kept whole.
+	static byte[] senderBytes(String s) {
+
+		byte[] b = bytes(s);
+		if (b.length > Short.MAX_VALUE) {
+			int length = Short.MAX_VALUE;
+			while (length > 0 && (b[length] & 0xc0) == 0x80) {
+				length--;
+			}
+			b = Arrays.copyOf(b, length);
+		}
+		return b;
+	}
+
+	// Writes out what is queued and stops the writer.
+	public void close() {
+
+		running = false;
+		try {
+			writer.join();
+		}
+		catch (InterruptedException e) { }
+		active.close();
+	}
+}
+
+// One segment file of the message log, mapped into memory as a whole.
+class LogSegment {
+
+	long base;
+	FileChannel channel;
+	MappedByteBuffer buffer;
+
+	LogSegment(long base, FileChannel channel, long size) throws IOException {
+
+		this.base    = base;
+		this.channel = channel;
+		this.buffer  = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+	}
+
+	static File file(File dir, long base) {
+		return new File(dir, String.format("%020d.log", base));
+	}
+
+	static LogSegment create(File dir, long base, long size) throws IOException {
+
+		FileChannel channel = FileChannel.open(file(dir, base).toPath(),
+			StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		return new LogSegment(base, channel, size);
+	}
+
+	// Maps a segment which is not written to any more.
+	static ByteBuffer map(File dir, long base) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(file(dir, base).toPath(), StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+		static LogSegment open(File dir, long base) throws IOException {
+
+		FileChannel channel = FileChannel.open(file(dir, base).toPath(),
+			StandardOpenOption.READ, StandardOpenOption.WRITE);
+		return new LogSegment(base, channel, channel.size());
+	}
+
+	// Returns the length of the record at the position, or -1 if there is no whole and
+	// intact record there.
+	static int checkRecord(ByteBuffer buffer, int position) {
+
+		if (position + MessageLog.HEADER > buffer.limit()) {
+			return -1;
+		}
+		int length = buffer.getInt(position);
+		if (length <= 0 || length > buffer.limit() - position - MessageLog.HEADER) {
+			return -1;
+		}
+		if (buffer.getInt(position + 4) != crc(buffer, position + MessageLog.HEADER, length)) {
+			return -1;
+		}
+		return length;
+	}
+
+	static int crc(ByteBuffer buffer, int position, int length) {
+
+		ByteBuffer body = buffer.duplicate();
+		body.limit(position + length);
+		body.position(position);
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		return (int) crc.getValue();
+	}
+
+	public long getBase() {
+		return base;
+	}
+
+	public MappedByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	public void force() {
+		buffer.force();
+	}
+
+	public void close() {
+
+		try {
+			channel.close();
+		}
+		catch (IOException e) { }
+	}
+}
@@ -0,0 +1,356 @@
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import javax.management.*;
+
+// The numbers of a running chat: how often each command is processed and how long it takes,
+// the bytes in and out, the connections and whatever the server adds as gauges. Recording
+// never takes a lock; the counters are LongAdders and the histograms are arrays of atomic
+// counters, so the connection threads never wait on each other for them.
+//
+// The numbers can be read over JMX, as the attributes of the MBean "chat:type=Metrics", and
+// are dumped every chat.metricsSeconds seconds if that is set, to the file named by
+// chat.metricsFile or else to the console.
+class Metrics {
+
+	// The commands, by who processes them.
+	static final CommandMetrics SERVER  = new CommandMetrics("server");
+	static final CommandMetrics CLIENT  = new CommandMetrics("client");
+	static final CommandMetrics CHATTER = new CommandMetrics("chatter");
+
+	static final LongAdder bytesIn  = new LongAdder();
+	static final LongAdder bytesOut = new LongAdder();
+	static final LongAdder connectionsOpened = new LongAdder();
+	static final LongAdder connectionsClosed = new LongAdder();
+
+	// The writes to the sockets, so the batching can be told by bytes.out / socket.writes.
+	static final LongAdder socketWrites = new LongAdder();
+
+	// What the server did about the clients which do not keep up; see OverflowPolicy.
+	static final LongAdder queueDropped = new LongAdder();
+	static final LongAdder slowDisconnects = new LongAdder();
+	static final LongAdder rosterCoalesced = new LongAdder();
+
+	// The messages for the inboxes dropped because the inbox thread was too far behind.
+	static final LongAdder inboxDropped = new LongAdder();
+
+	static final ConcurrentSkipListMap<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+
+	static {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), new ObjectName("chat:type=Metrics"));
+		}
+		catch (Exception e) {
+			Log.warn( "Metrics not available over JMX: ", e.getMessage() );
+		}
+
+		long seconds = Long.getLong("chat.metricsSeconds", 0);
+		if (seconds > 0) {
+			startDump(seconds, System.getProperty("chat.metricsFile"));
+		}
+	}
+
+	// Adds a value which is looked at only when the metrics are read.
+	public static void gauge(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	public static void connectionOpened() {
+		connectionsOpened.increment();
+	}
+
+	public static void connectionClosed() {
+		connectionsClosed.increment();
+	}
+
+	// All the metrics by name, sorted. The latencies are in microseconds.
+	public static SortedMap<String, Number> snapshot() {
+
+		TreeMap<String, Number> values = new TreeMap<String, Number>();
+		values.put("bytes.in", bytesIn.sum());
+		values.put("bytes.out", bytesOut.sum());
+		values.put("connections.opened", connectionsOpened.sum());
+		values.put("connections.active", connectionsOpened.sum() - connectionsClosed.sum());
+		values.put("socket.writes", socketWrites.sum());
+		values.put("queues.dropped", queueDropped.sum());
+		values.put("queues.slowDisconnects", slowDisconnects.sum());
+		values.put("inbox.dropped", inboxDropped.sum());
+		values.put("queues.rosterCoalesced", rosterCoalesced.sum());
+
+		SERVER.snapshot(values);
+		CLIENT.snapshot(values);
+		CHATTER.snapshot(values);
+
+		for (Map.Entry<String, Gauge> e:gauges.entrySet()) {
+			values.put(e.getKey(), e.getValue().value());
+		}
+		return values;
+	}
+
+	public static void dump(PrintStream out) {
+
+		StringBuilder sb = new StringBuilder();
+		sb.append("metrics at ").append(new Date()).append('\n');
+		for (Map.Entry<String, Number> e:snapshot().entrySet()) {
+			sb.append("  ").append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+		}
+		out.print(sb);
+		out.flush();
+	}
+
+	static void startDump(long seconds, final String file) {
+
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "metrics_dump");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		timer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				if (file == null) {
+					dump(System.out);
+					return;
+				}
+				try (PrintStream out = new PrintStream(new FileOutputStream(file, true))) {
+					dump(out);
+				}
+				catch (IOException e) { }
+			}
+		}, seconds, seconds, TimeUnit.SECONDS);
+	}
+}
+
+// A value read when the metrics are.
+interface Gauge {
+	long value();
+}
+
+// The counts and latencies of the commands of one side of the protocol. Enum commands are
+// kept by the constant; the other commands, which are objects made for the one use, by
+// their class.
+class CommandMetrics {
+
+	String prefix;
+	ConcurrentHashMap<Object, CommandStats> stats = new ConcurrentHashMap<Object, CommandStats>();
+
+	public CommandMetrics(String prefix) {
+		this.prefix = prefix;
+	}
+
+	public void record(Object command, long nanos, boolean failed) {
+
+		Object key = (command instanceof Enum) ? command : command.getClass();
+		CommandStats s = stats.get(key);
+		if (s == null) {
+			String name = (command instanceof Enum) ? ((Enum<?>) command).name() : command.getClass().getSimpleName();
+			stats.putIfAbsent(key, new CommandStats(name));
+			s = stats.get(key);
+		}
+		s.record(nanos, failed);
+	}
+
+	void snapshot(Map<String, Number> values) {
+
+		for (CommandStats s:stats.values()) {
+			String name = prefix + "." + s.name + ".";
+			values.put(name + "count", s.count.sum());
+			values.put(name + "failed", s.failed.sum());
+			s.latency.snapshot(name + "latency", values);
+		}
+	}
+}
+
+class CommandStats {
+
+	String name;
+	LongAdder count = new LongAdder();
+	LongAdder failed = new LongAdder();
+	LatencyHistogram latency = new LatencyHistogram();
+
+	public CommandStats(String name) {
+		this.name = name;
+	}
+
+	public void record(long nanos, boolean failed) {
+
+		count.increment();
+		if (failed) {
+			this.failed.increment();
+		}
+		latency.record(nanos);
+	}
+}
+
+// A histogram of nanosecond latencies. Every power of two is split into 8 buckets, so a
+// value is known to within an eighth of itself, which is plenty for telling a 50us command
+// from a 5ms one. Recording is one atomic increment.
+class LatencyHistogram {
+
+	static final int SUB_BITS = 3;
+	static final int SUB = 1 << SUB_BITS;
+
+	AtomicLongArray buckets = new AtomicLongArray(64 * SUB);
+	LongAdder total = new LongAdder();
+	LongAccumulator max = new LongAccumulator(new LongBinaryOperator() {
+		public long applyAsLong(long a, long b) {
+			return Math.max(a, b);
+		}
+	}, 0);
+
+	static int bucket(long value) {
+
+		if (value < SUB) {
+			return (int) Math.max(0, value);
+		}
+		int exp = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB - 1);
+		return (exp - SUB_BITS + 1) * SUB + sub;
+	}
+
+	// The highest value which goes in the bucket.
+	static long upperBound(int bucket) {
+
+		if (bucket < SUB) {
+			return bucket;
+		}
+		int exp = bucket / SUB + SUB_BITS - 1;
+		long sub = bucket % SUB;
+		return ((SUB + sub + 1) << (exp - SUB_BITS)) - 1;
+	}
+
+	public void record(long nanos) {
+
+		buckets.incrementAndGet(bucket(nanos));
+		total.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	// The value below which the given fraction of the values are, as a bucket's upper bound.
+	long percentile(long[] counts, long count, double fraction) {
+
+		long rank = (long) Math.ceil(fraction * count);
+		long seen = 0;
+		for (int i=0; i<counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0) {
+				return Math.min(upperBound(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	void snapshot(String name, Map<String, Number> values) {
+
+		long[] counts = new long[buckets.length()];
+		long count = 0;
+		for (int i=0; i<counts.length; i++) {
+			counts[i] = buckets.get(i);
+			count += counts[i];
+		}
+
+		values.put(name + ".meanMicros", (count == 0) ? 0 : total.sum() / count / 1000);
+		values.put(name + ".p50Micros", percentile(counts, count, 0.50) / 1000);
+		values.put(name + ".p99Micros", percentile(counts, count, 0.99) / 1000);
+		values.put(name + ".p999Micros", percentile(counts, count, 0.999) / 1000);
+		values.put(name + ".maxMicros", max.get() / 1000);
+	}
+}
+
+// The metrics as an MBean. The attributes are whatever the snapshot has, so commands show
+// up once they have been processed.
+class MetricsMBean implements DynamicMBean {
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+
+		Number value = Metrics.snapshot().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+
+		SortedMap<String, Number> snapshot = Metrics.snapshot();
+		AttributeList list = new AttributeList();
+		for (String a:attributes) {
+			if (snapshot.containsKey(a)) {
+				list.add(new Attribute(a, snapshot.get(a)));
+			}
+		}
+		return list;
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("The metrics are read only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	public Object invoke(String action, Object[] params, String[] signature) throws MBeanException {
+		throw new MBeanException(new UnsupportedOperationException(action));
+	}
+
+	public MBeanInfo getMBeanInfo() {
+
+		SortedMap<String, Number> snapshot = Metrics.snapshot();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+		int i = 0;
+		for (Map.Entry<String, Number> e:snapshot.entrySet()) {
+			attributes[i++] = new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(), true, false, false);
+		}
+		return new MBeanInfo(getClass().getName(), "Chat metrics", attributes, null, null, null);
+	}
+}
+
+// An input stream adding what is read to the bytes in.
+class MeteredInputStream extends FilterInputStream {
+
+	public MeteredInputStream(InputStream in) {
+		super(in);
+	}
+
+	public int read() throws IOException {
+
+		int b = in.read();
+		if (b >= 0) {
+			Metrics.bytesIn.increment();
+		}
+		return b;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+
+		int n = in.read(b, off, len);
+		if (n > 0) {
+			Metrics.bytesIn.add(n);
+		}
+		return n;
+	}
+}
+
+// An output stream adding what is written to the bytes out.
+class MeteredOutputStream extends FilterOutputStream {
+
+	public MeteredOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	public void write(int b) throws IOException {
+		out.write(b);
+		Metrics.bytesOut.increment();
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		Metrics.bytesOut.add(len);
+	}
+}
@@ -0,0 +1,168 @@
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+// The read side of a connection done by one thread of its own. The reader thread is the
+// only one reading the socket; it decodes whole objects off the wire and puts them in the
+// inbound queue. Everybody else reads the queue, so the connection is ready exactly when a
+// decoded object is waiting, whatever the wire has buffered underneath.
+//
+// It is a wire itself, so the commands reading what follows them work as before. Writing
+// goes straight to the wire underneath. The reader thread never flushes what has been
+// written; whoever reads from the queue does, before waiting on it.
+class ReadPipeline implements ChatWire, Runnable {
+
+	// How many decoded objects can wait for the handler. When the queue is full the
+	// reader stops reading, and TCP holds back the other end.
+	static final int CAPACITY = Integer.getInteger("chat.inboundObjects", 1024);
+
+	// Stand-ins for a null object and for the end of the connection, which the queue can
+	// not hold as such.
+	static final Object NULL = new Object();
+	static final Object END = new Object();
+
+	ChatWire wire;
+	BlockingQueue<Object> inbound;
+	WorkSignal signal;
+	Thread reader;
+	volatile boolean flushBeforeRead = true;
+
+	// Why the reader stopped. Handed to whoever reads past the end.
+	volatile IOException failure;
+	volatile boolean finished = false;
+
+	public ReadPipeline(ChatWire wire, String name, WorkSignal signal) {
+
+		this.wire   = wire;
+		this.signal = signal;
+		inbound = new LinkedBlockingQueue<Object>(CAPACITY);
+		wire.setFlushBeforeRead(false);
+
+		reader = new Thread(this, name);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	public void run() {
+
+		try {
+			while (true) {
+				Object o = wire.readObject();
+				inbound.put((o == null) ? NULL : o);
+				signal.signal();
+			}
+		}
+		catch (InterruptedException e) {
+			failure = new InterruptedIOException("Reader interrupted");
+		}
+		catch (ClassNotFoundException e) {
+			failure = new StreamCorruptedException("Unknown class " + e.getMessage());
+		}
+		catch (IOException e) {
+			failure = e;
+		}
+
+		try {
+			inbound.put(END);
+		}
+		catch (InterruptedException e) { }
+		signal.signal();
+	}
+
+	public Object readObject() throws IOException {
+
+		if (finished) {
+			throw failure;
+		}
+		if (flushBeforeRead && inbound.isEmpty()) {
+			wire.flush();
+		}
+
+		Object o;
+		try {
+			o = inbound.take();
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while reading");
+		}
+
+		if (o == END) {
+			finished = true;
+			throw failure;
+		}
+		return (o == NULL) ? null : o;
+	}
+
+	// The number of decoded objects waiting. The end of the connection counts as one, so
+	// that it gets read and noticed.
+	public int available() {
+		return finished ? 1 : inbound.size();
+	}
+
+	public boolean hasFrame() {
+		return available() > 0;
+	}
+
+	public void writeObject(Object o) throws IOException {
+		wire.writeObject(o);
+	}
+
+	public void writeMessage(EncodedMessage m) throws IOException {
+		wire.writeMessage(m);
+	}
+
+	public void flush() throws IOException {
+		wire.flush();
+	}
+
+	public void setFlushBeforeRead(boolean flushBeforeRead) {
+		this.flushBeforeRead = flushBeforeRead;
+	}
+
+	public WireFormat getFormat() {
+		return wire.getFormat();
+	}
+
+	public long getRetainedBytes() {
+		return wire.getRetainedBytes();
+	}
+}
+
+// Wakes up a thread waiting for work from any of its sources. A signal given while the
+// thread is busy is not lost; its next wait returns right away, and it goes looking again.
+// A lock rather than synchronized, so that a virtual thread waiting here does not pin its
+// carrier thread.
+class WorkSignal {
+
+	ReentrantLock lock = new ReentrantLock();
+	Condition signalled = lock.newCondition();
+	boolean pending = false;
+
+	public void signal() {
+
+		lock.lock();
+		try {
+			pending = true;
+			signalled.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	// Waits for a signal given since the last wait returned.
+	public void await() throws InterruptedException {
+
+		lock.lock();
+		try {
+			while (!pending) {
+				signalled.await();
+			}
+			pending = false;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+
+// The client side of a chat room relayed through the server. There is no connection of its
+// own: the messages go to the server over the client's server connection, and the server
+// sends back the messages of the other members the same way.
+class RelayChatter implements Conversation {
+
+	ChatClientConnectionManager cccm;
+	ChatRequest cr;
+	long roomId;
+	long conversationId;
+
+	// The oldest message of the history shown so far, for "/more" to go on from.
+	long oldestShown = HistoryRequest.LATEST;
+
+	public RelayChatter(ChatClientConnectionManager cccm, ChatRequest cr) {
+
+		this.cccm   = cccm;
+		this.cr     = cr;
+		this.roomId = cr.getRoomId();
+		this.conversationId = cccm.getChatClient().newConversationId();
+		ConsoleRenderer.console.println( "<joined room " + roomId + " started by " + cr.getSourceChatter().getName() + ">" );
+	}
+
+	public long getConversationId() {
+		return conversationId;
+	}
+
+	public long getRoomId() {
+		return roomId;
+	}
+
+	public ChatRequest getChatRequest() {
+		return cr;
+	}
+
+	public void setToFocus() {
+
+	}
+
+	public void setOutOfFocus() {
+
+	}
+
+	public void processInput(String line, client clientObj) {
+
+		// "/history [n]" shows the last n messages, "/more" the n before those.
+		if (line.startsWith("/history") || line.startsWith("/more")) {
+			String[] args = line.split("\\s+");
+			int n = 20;
+			try {
+				if (args.length > 1) {
+					n = Integer.parseInt(args[1]);
+				}
+			}
+			catch (NumberFormatException e) { }
+			if (line.startsWith("/history")) {
+				oldestShown = HistoryRequest.LATEST;
+			}
+			cccm.queueCommand(new ServerRequest(ServerCommand.GET_HISTORY, new HistoryRequest(roomId, 0, oldestShown, n)));
+			return;
+		}
+
+		cccm.queueCommand(new ServerRequest(ServerCommand.ROOM_MESSAGE, new RoomMessage(roomId, line)));
+
+		ConsoleRenderer.console.echo(cccm.getChatClient().whoAmI().getName(), line);
+	}
+
+	// A message from another member, relayed by the server. It is shown once the server
+	// connection has nothing more to process; see ChatClientConnectionManager.run().
+	public void recieve(RoomMessage msg) {
+
+		ConsoleRenderer.console.render(msg.getSender(), msg.getText());
+	}
+
+	public void showHistory(HistoryPage page) {
+
+		for (RoomMessage msg:page.getMessages()) {
+			ConsoleRenderer.console.line(msg.getSeq(), msg.getSender(), msg.getText());
+		}
+		if (page.getMessages().length > 0 && page.getMessages()[0].getSeq() < oldestShown) {
+			oldestShown = page.getMessages()[0].getSeq();
+		}
+		if (page.isLast()) {
+			ConsoleRenderer.console.line( "<end of history>" );
+		}
+	}
+
+	public void leave() {
+		cccm.queueCommand(new ServerRequest(ServerCommand.LEAVE_ROOM, Long.valueOf(roomId)));
+	}
+}
+
+// A server command with the object that goes with it, queued on the client connection to
+// be sent by its thread. Used for the commands which need no answer from the server.
+class ServerRequest implements ClientCommandInterface {
+
+	ServerCommand sc;
+	Object payload;
+
+	public ServerRequest(ServerCommand sc, Object payload) {
+		this.sc      = sc;
+		this.payload = payload;
+	}
+
+	public void process(ChatClientConnectionManager cccm) throws Exception {
+		cccm.sendServerCommand(sc);
+		cccm.getWire().writeObject(payload);
+	}
+}
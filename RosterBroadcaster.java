@@ -0,0 +1,67 @@
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Tells the connections about roster changes. When lots of clients connect at once, every
+// REGISTER changes the roster, and asking every connection to update for every change would
+// queue N*N commands. Instead, the first change schedules a flush after a short interval and
+// the changes until then are collapsed into it. On top of that, each connection has at most
+// one update outstanding; the update sends all the changes since the client's version anyway.
+class RosterBroadcaster {
+
+	ChatServer cs;
+
+	// How long to wait for more changes before telling the connections. Zero flushes
+	// right away, still with at most one update outstanding per connection.
+	long flushMillis;
+
+	// Set while a flush is scheduled.
+	AtomicBoolean flushScheduled;
+
+	ScheduledExecutorService scheduler;
+
+	public RosterBroadcaster(ChatServer cs, long flushMillis) {
+
+		this.cs = cs;
+		this.flushMillis = flushMillis;
+		this.flushScheduled = new AtomicBoolean(false);
+
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "roster_broadcaster");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	// Called whenever the roster has changed.
+	public void rosterChanged() {
+
+		if (flushMillis <= 0) {
+			flush();
+			return;
+		}
+
+		if (flushScheduled.compareAndSet(false, true)) {
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					// Clear the flag first, so a change during the flush schedules
+					// another one rather than getting lost.
+					flushScheduled.set(false);
+					flush();
+				}
+			}, flushMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	// Ask every connection to send its client the roster changes.
+	public void flush() {
+
+		for (Registration r:cs.registry.getRegistrations()) {
+			if (!r.isRemote()) {
+				r.getChatServerConnectionManager().queueRosterUpdate();
+			}
+		}
+	}
+}
@@ -0,0 +1,955 @@
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+
+// The formats the objects can be sent in over a connection.
+// OBJECT - plain Java object serialization, as the first versions of the chat did it.
+// BINARY - length prefixed frames with an opcode byte and hand written codecs. Smaller,
+//          faster, and it can only ever decode the types listed in WireCodec.
+enum WireFormat {
+	OBJECT,
+	BINARY;
+
+	// The format new connections to the server ask for, set with the chat.wire system
+	// property. A server in the selector mode only takes BINARY.
+	public static WireFormat getDefault() {
+		return WireFormat.valueOf(System.getProperty("chat.wire", "binary").toUpperCase());
+	}
+}
+
+// A connection's way of sending and receiving the objects of the chat protocol: the
+// commands, ChatterInfo, ChatRequest, texts and so on. The commands are written the same
+// way whatever the format is underneath.
+interface ChatWire {
+
+	void writeObject(Object o) throws IOException;
+	Object readObject() throws IOException, ClassNotFoundException;
+
+	// Writes all the objects of the message, with nothing else written in between.
+	void writeMessage(EncodedMessage m) throws IOException;
+
+	// Sends whatever has been written and is still held back by the stream underneath.
+	void flush() throws IOException;
+
+	// Whether a read which would have to wait flushes first, so that the other end is not
+	// left waiting for something still held back here. On unless turned off; a wire read
+	// by a thread which does not write must not flush, since it could block on a full
+	// socket while the other end is blocked writing to us.
+	void setFlushBeforeRead(boolean flushBeforeRead);
+
+	// The number of bytes that can be read without blocking, including what the wire
+	// has buffered already.
+	int available() throws IOException;
+
+	// Whether a whole object has arrived, so that readObject() will not have to wait for
+	// the rest of it. Where the wire can not tell, it is enough that some of it is there.
+	boolean hasFrame() throws IOException;
+
+	WireFormat getFormat();
+
+	// The number of bytes written since the wire last let go of what it has sent. For an
+	// object stream, everything written since the last reset is still referenced by the
+	// stream's handle table on both ends, so this is the memory the connection holds on to.
+	long getRetainedBytes();
+}
+
+// Sets up the wire of a new connection. The connecting side asks for a format, the
+// accepting side looks at the first bytes to find out which one it is: an object stream
+// always starts with its magic 0xACED, a binary wire with the bytes 'C' 'W' and the
+// version. So the clients using plain object streams still work as before.
+class WireProtocols {
+
+	static final int MAGIC_0 = 'C';
+	static final int MAGIC_1 = 'W';
+
+	// The version of the binary wire. It goes up with every change to WireCodec, a new
+	// type or a change to how one is encoded, so that two ends with different codecs
+	// refuse each other when they connect rather than misread each other's frames later.
+	// 1 - the first binary wire.
+	// 2 - a chat request carries its room id; room messages and the history frames.
+	// 3 - the commands are sent by the ids in WireCodec rather than their ordinals.
+	// 4 - FORWARDED_TEXT, the initiator of a chat passing on the texts of the others.
+	static final int VERSION = 4;
+
+	public static ChatWire connect(Socket connection, WireFormat format) throws IOException {
+		return connect(connection.getInputStream(), connection.getOutputStream(), format);
+	}
+
+	public static ChatWire connect(InputStream in, OutputStream out, WireFormat format) throws IOException {
+
+		if (format == WireFormat.OBJECT) {
+			return new ObjectStreamWire(in, out);
+		}
+
+		out.write(new byte[] { MAGIC_0, MAGIC_1, VERSION });
+		out.flush();
+
+		if (in.read() != MAGIC_0 || in.read() != MAGIC_1) {
+			throw new StreamCorruptedException("Binary wire not accepted by the other end");
+		}
+		int version = in.read();
+		if (version != VERSION) {
+			throw new StreamCorruptedException("Binary wire version " + VERSION + " not accepted by the other end, it has " + version);
+		}
+		return new BinaryWire(in, out);
+	}
+
+	public static ChatWire accept(Socket connection) throws IOException {
+		return accept(connection.getInputStream(), connection.getOutputStream());
+	}
+
+	public static ChatWire accept(InputStream in, OutputStream out) throws IOException {
+		return accept(in, out, true);
+	}
+
+	// Where the connection is served by a shared pool, the object streams are refused:
+	// there is no telling whether a whole object has arrived, so a thread of the pool
+	// could end up waiting in the middle of one for a slow client.
+	public static ChatWire accept(InputStream in, OutputStream out, boolean objectStreams) throws IOException {
+
+		PushbackInputStream pin = new PushbackInputStream(in, 2);
+		int b0 = pin.read();
+		int b1 = pin.read();
+		if (b0 == -1 || b1 == -1) {
+			throw new EOFException();
+		}
+
+		if (b0 == MAGIC_0 && b1 == MAGIC_1) {
+
+			// The answer is the version this end has, so that the other end can tell
+			// why it is refused.
+			int version = pin.read();
+			out.write(new byte[] { MAGIC_0, MAGIC_1, VERSION });
+			out.flush();
+			if (version != VERSION) {
+				throw new StreamCorruptedException("Unknown binary wire version " + version);
+			}
+			return new BinaryWire(pin, out);
+		}
+
+		// Anything else had better be an object stream.
+		if (!objectStreams) {
+			throw new StreamCorruptedException("Object streams are not accepted here, only the binary wire");
+		}
+		pin.unread(new byte[] { (byte) b0, (byte) b1 });
+		return new ObjectStreamWire(pin, out);
+	}
+}
+
+// When an object stream is reset. An object stream remembers every object written to it, so
+// that writing the same object again sends just a back reference. On a connection that lives
+// for days this is a leak on both ends, and an object changed after it was sent arrives with
+// its old contents when it is sent again. Resetting makes both ends forget.
+//
+// The limits are set with the chat.resetObjects and chat.resetBytes system properties. A
+// limit of 1 object resets after every object, so every object is always sent in full.
+class StreamResetPolicy {
+
+	int maxObjects;
+	long maxBytes;
+
+	public StreamResetPolicy(int maxObjects, long maxBytes) {
+		this.maxObjects = maxObjects;
+		this.maxBytes   = maxBytes;
+	}
+
+	public static StreamResetPolicy getDefault() {
+		return new StreamResetPolicy(Integer.getInteger("chat.resetObjects", 256),
+		                             Long.getLong("chat.resetBytes", 1024 * 1024));
+	}
+
+	public boolean shouldReset(int objects, long bytes) {
+		return objects >= maxObjects || bytes >= maxBytes;
+	}
+}
+
+// An output stream counting the bytes written through it.
+class CountingOutputStream extends FilterOutputStream {
+
+	long count = 0;
+
+	public CountingOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	public void write(int b) throws IOException {
+		out.write(b);
+		count++;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		count += len;
+	}
+
+	public long getCount() {
+		return count;
+	}
+}
+
+// The wire using Java object serialization. The output stream is reset as the reset
+// policy says.
+class ObjectStreamWire implements ChatWire {
+
+	InputStream in;
+	ObjectOutputStream oos;
+	ObjectInputStream ois;
+
+	CountingOutputStream counter;
+	StreamResetPolicy policy;
+
+	// What has been written since the last reset.
+	int objectsSinceReset = 0;
+	long countAtReset = 0;
+
+	volatile boolean flushBeforeRead = true;
+
+	public ObjectStreamWire(InputStream in, OutputStream out) throws IOException {
+
+		this(in, out, StreamResetPolicy.getDefault());
+	}
+
+	public ObjectStreamWire(InputStream in, OutputStream out, StreamResetPolicy policy) throws IOException {
+
+		// The output stream first, its header is what the other end waits for.
+		this.in = in;
+		this.policy = policy;
+		counter = new CountingOutputStream(out);
+		oos = new ObjectOutputStream(counter);
+		oos.flush();
+		ois = new ObjectInputStream(in);
+		countAtReset = counter.getCount();
+	}
+
+	// The reset goes before the object rather than after it, so that the reset marker is
+	// never left alone in the stream for a reader to wait on.
+	public synchronized void writeObject(Object o) throws IOException {
+
+		if (policy.shouldReset(objectsSinceReset, counter.getCount() - countAtReset)) {
+			oos.reset();
+			objectsSinceReset = 0;
+			countAtReset = counter.getCount();
+		}
+
+		oos.writeObject(o);
+		objectsSinceReset++;
+	}
+
+	public synchronized void writeMessage(EncodedMessage m) throws IOException {
+
+		for (Object o:m.getObjects()) {
+			writeObject(o);
+		}
+	}
+
+	public synchronized long getRetainedBytes() {
+		return counter.getCount() - countAtReset;
+	}
+
+	public synchronized int getRetainedObjects() {
+		return objectsSinceReset;
+	}
+
+	public synchronized void flush() throws IOException {
+		oos.flush();
+	}
+
+	public void setFlushBeforeRead(boolean flushBeforeRead) {
+		this.flushBeforeRead = flushBeforeRead;
+	}
+
+	// Reading is locked apart from writing, so that hasFrame() never looks at the stream
+	// while another thread is in the middle of reading it.
+	public Object readObject() throws IOException, ClassNotFoundException {
+
+		if (flushBeforeRead && !hasFrame()) {
+			flush();
+		}
+		synchronized (ois) {
+			return ois.readObject();
+		}
+	}
+
+	// The object input stream does not read ahead of the object it is reading, so
+	// what is available is what the underlying stream has.
+	public int available() throws IOException {
+		return in.available();
+	}
+
+	// There is no telling where an object ends without reading it, so this is true as
+	// soon as any of it is there, and readObject() may still wait for the rest. The
+	// object input stream may hold some bytes of its own too. Which is why only the
+	// connections with a thread of their own take object streams.
+	public boolean hasFrame() throws IOException {
+
+		synchronized (ois) {
+			return in.available() > 0 || ois.available() > 0;
+		}
+	}
+
+	public WireFormat getFormat() {
+		return WireFormat.OBJECT;
+	}
+}
+
+// The binary wire. Every object goes in its own frame:
+//
+//   int length | byte opcode | payload
+//
+// where the length counts the opcode and the payload. The frame is built in memory and
+// written with one call, and read completely before it is decoded, so a broken payload can
+// never make the reader lose track of the frames.
+class BinaryWire implements ChatWire {
+
+	// Frames bigger than this are refused.
+	static final int MAX_FRAME = 16 * 1024 * 1024;
+
+	DataInputStream in;
+	OutputStream out;
+
+	// The frame being built. Reused for every frame.
+	FrameBuffer frame;
+	DataOutputStream frameData;
+
+	// The frame being decoded. Reused too, as long as the frames are not too big.
+	static final int MAX_REUSED = 64 * 1024;
+	byte[] payload;
+	FrameInput payloadIn;
+	DataInputStream payloadData;
+
+	volatile boolean flushBeforeRead = true;
+
+	public BinaryWire(InputStream in, OutputStream out) {
+
+		this.in  = new DataInputStream(new BufferedInputStream(in));
+		this.out = out;
+
+		frame     = new FrameBuffer();
+		frameData = new DataOutputStream(frame);
+
+		payload     = new byte[256];
+		payloadIn   = new FrameInput();
+		payloadData = new DataInputStream(payloadIn);
+	}
+
+	public synchronized void writeObject(Object o) throws IOException {
+
+		frame.reset();
+		frameData.writeInt(0);
+		WireCodec.encode(o, frameData);
+		frameData.flush();
+		frame.setLength(0);
+		frame.writeTo(out);
+	}
+
+	// The frames of the message are encoded once for all the wires it goes to.
+	// A shared message going to a channel is queued as it is, without even a copy.
+	public synchronized void writeMessage(EncodedMessage m) throws IOException {
+
+		if (m.isShared() && out instanceof ChannelOutputStream) {
+			((ChannelOutputStream) out).writeShared(m.getBuffer());
+			return;
+		}
+		byte[] frames = m.getFrames();
+		out.write(frames, 0, frames.length);
+	}
+
+	public synchronized void flush() throws IOException {
+		out.flush();
+	}
+
+	public void setFlushBeforeRead(boolean flushBeforeRead) {
+		this.flushBeforeRead = flushBeforeRead;
+	}
+
+	// Decodes the frames written by encodeFrames().
+	public static Object[] decodeFrames(byte[] frames) throws IOException {
+
+		ArrayList<Object> objects = new ArrayList<Object>();
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(frames));
+		while (data.available() > 0) {
+			int length = data.readInt();
+			if (length < 1 || length > data.available()) {
+				throw new StreamCorruptedException("Bad frame length " + length);
+			}
+			byte[] payload = new byte[length];
+			data.readFully(payload);
+			objects.add(WireCodec.decode(new DataInputStream(new ByteArrayInputStream(payload))));
+		}
+		return objects.toArray();
+	}
+
+	// Encodes the objects as frames, back to back.
+	public static byte[] encodeFrames(Object[] objects) throws IOException {
+
+		FrameBuffer buffer = new FrameBuffer();
+		DataOutputStream data = new DataOutputStream(buffer);
+		for (Object o:objects) {
+			int start = buffer.size();
+			data.writeInt(0);
+			WireCodec.encode(o, data);
+			data.flush();
+			buffer.setLength(start);
+		}
+		return buffer.toByteArray();
+	}
+
+	// Reading is locked apart from writing, so that hasFrame() never peeks while another
+	// thread is in the middle of a frame.
+	public Object readObject() throws IOException {
+
+		if (flushBeforeRead && in.available() == 0) {
+			flush();
+		}
+
+		synchronized (in) {
+
+			int length = in.readInt();
+			if (length < 1 || length > MAX_FRAME) {
+				throw new StreamCorruptedException("Bad frame length " + length);
+			}
+
+			byte[] bytes = payload;
+			if (length > payload.length) {
+				bytes = new byte[length];
+				if (length <= MAX_REUSED) {
+					payload = bytes;
+				}
+			}
+			in.readFully(bytes, 0, length);
+			payloadIn.reset(bytes, length);
+			return WireCodec.decode(payloadData);
+		}
+	}
+
+	public int available() throws IOException {
+		return in.available();
+	}
+
+	// Peeks at the length of the next frame and checks that all of it is there. A bad
+	// length counts as a frame, so that readObject() gets to complain about it.
+	public boolean hasFrame() throws IOException {
+
+		synchronized (in) {
+
+			if (in.available() < 4) {
+				return false;
+			}
+			in.mark(4);
+			int length = in.readInt();
+			in.reset();
+			if (length < 1 || length > MAX_FRAME) {
+				return true;
+			}
+			return in.available() >= 4 + length;
+		}
+	}
+
+	public WireFormat getFormat() {
+		return WireFormat.BINARY;
+	}
+
+	// Nothing is kept once a frame has been written.
+	public long getRetainedBytes() {
+		return 0;
+	}
+}
+
+// A byte array output stream which can fill in the frame length once the frame is built.
+class FrameBuffer extends ByteArrayOutputStream {
+
+	public FrameBuffer() {
+		super(256);
+	}
+
+	// Fills in the length of the frame starting at the given position, which is the
+	// last frame in the buffer.
+	public void setLength(int start) {
+
+		int length = count - start - 4;
+		buf[start]     = (byte) (length >>> 24);
+		buf[start + 1] = (byte) (length >>> 16);
+		buf[start + 2] = (byte) (length >>> 8);
+		buf[start + 3] = (byte) length;
+	}
+}
+
+// The input side of FrameBuffer: a byte array input stream which can be pointed at the
+// next frame.
+class FrameInput extends ByteArrayInputStream {
+
+	public FrameInput() {
+		super(new byte[0]);
+	}
+
+	public void reset(byte[] bytes, int length) {
+
+		buf   = bytes;
+		pos   = 0;
+		count = length;
+		mark  = 0;
+	}
+}
+
+// A message of one or more objects, encoded once and written to any number of wires. The
+// binary frames are built the first time a binary wire asks for them and shared from then
+// on. An object stream has to serialize the objects itself, since what it writes depends
+// on what it has written before.
+//
+// A shared message is one that goes to many connections at once, like the full roster. Its
+// frames are kept in a read-only direct buffer as well, which the channels queue as it is;
+// see getBuffer().
+class EncodedMessage {
+
+	Object[] objects;
+	byte[] frames;
+	boolean shared;
+	ByteBuffer buffer;
+
+	public EncodedMessage(Object... objects) {
+		this.objects = objects;
+	}
+
+	public static EncodedMessage shared(Object... objects) {
+
+		EncodedMessage m = new EncodedMessage(objects);
+		m.shared = true;
+		return m;
+	}
+
+	public boolean isShared() {
+		return shared;
+	}
+
+	public boolean isChatRequest() {
+		return objects != null && objects.length > 0 && objects[0] == ClientCommand.CHAT_REQUEST;
+	}
+
+	// A message which was encoded before, for instance read back from the disk. The
+	// objects are decoded only if an object stream asks for them.
+	public static EncodedMessage fromFrames(byte[] frames) {
+
+		EncodedMessage m = new EncodedMessage();
+		m.objects = null;
+		m.frames = frames;
+		return m;
+	}
+
+	public synchronized Object[] getObjects() throws IOException {
+
+		if (objects == null) {
+			objects = BinaryWire.decodeFrames(frames);
+		}
+		return objects;
+	}
+
+	// The frames must not be modified; every wire writes the same array.
+	public synchronized byte[] getFrames() throws IOException {
+
+		if (frames == null) {
+			frames = BinaryWire.encodeFrames(objects);
+		}
+		return frames;
+	}
+
+	// The frames in a direct buffer, filled once. Every caller gets a duplicate of its own,
+	// with its own position, so any number of channels can be writing it at the same time.
+	public synchronized ByteBuffer getBuffer() throws IOException {
+
+		if (buffer == null) {
+			byte[] f = getFrames();
+			ByteBuffer b = ByteBuffer.allocateDirect(f.length);
+			b.put(f);
+			b.flip();
+			buffer = b.asReadOnlyBuffer();
+		}
+		return buffer.duplicate();
+	}
+}
+
+// The encoders and decoders of the binary wire, one opcode per type. The commands are sent
+// as their enum's opcode followed by the id given to them below, so the enums can be
+// reordered freely; a new command gets the next free id, and the id of a command that is
+// removed is not used again. Only the types below can be sent; anything else is refused,
+// on both ends, and so is an opcode or a command this end does not know. Any change here
+// needs a new WireProtocols.VERSION.
+class WireCodec {
+
+	static final byte NULL               = 0;
+	static final byte SERVER_COMMAND     = 1;
+	static final byte CLIENT_COMMAND     = 2;
+	static final byte CHATTER_COMMAND    = 3;
+	static final byte CHATTER_INFO       = 10;
+	static final byte CHATTER_INFO_ARRAY = 11;
+	static final byte CHAT_REQUEST       = 12;
+	static final byte TEXT               = 13;
+	static final byte LONG               = 14;
+	static final byte ROSTER_UPDATE      = 15;
+	static final byte ROOM_MESSAGE       = 16;
+	static final byte HISTORY_REQUEST    = 17;
+	static final byte HISTORY_PAGE       = 18;
+
+	// The commands by their ids.
+	static final CommandIds<ServerCommand> SERVER_COMMANDS = new CommandIds<ServerCommand>(ServerCommand.class, new ServerCommand[] {
+		ServerCommand.REGISTER,              // 0
+		ServerCommand.UNREGISTER,            // 1
+		ServerCommand.GET_MEMBERS,           // 2
+		ServerCommand.ASK_CLIENT_TO_UPDATE,  // 3
+		ServerCommand.SYNC_MEMBERS,          // 4
+		ServerCommand.FORWARD_CHAT_REQUEST,  // 5
+		null,                                // 6, was INCOMING_CHAT_REQUEST
+		ServerCommand.ROOM_MESSAGE,          // 7
+		ServerCommand.LEAVE_ROOM,            // 8
+		ServerCommand.GET_HISTORY            // 9
+	});
+
+	static final CommandIds<ClientCommand> CLIENT_COMMANDS = new CommandIds<ClientCommand>(ClientCommand.class, new ClientCommand[] {
+		ClientCommand.ACKNOWLEDGEMENT,       // 0
+		ClientCommand.UPDATE_MEMBERS,        // 1
+		ClientCommand.ROSTER_UPDATE,         // 2
+		ClientCommand.INITIATE_CHAT,         // 3
+		ClientCommand.CHAT_REQUEST,          // 4
+		ClientCommand.EXIT,                  // 5
+		ClientCommand.ROOM_MESSAGE,          // 6
+		ClientCommand.HISTORY_PAGE           // 7
+	});
+
+	static final CommandIds<ChatterCommand> CHATTER_COMMANDS = new CommandIds<ChatterCommand>(ChatterCommand.class, new ChatterCommand[] {
+		ChatterCommand.ACKNOWLEDGEMENT,      // 0
+		ChatterCommand.REGISTER_INCOMING,    // 1
+		ChatterCommand.DO_REGISTER,          // 2
+		ChatterCommand.SEND_TEXT,            // 3
+		ChatterCommand.RECIEVE_TEXT,         // 4
+		ChatterCommand.TEXT_FRAME,           // 5
+		ChatterCommand.ACK_UP_TO,            // 6
+		ChatterCommand.FORWARDED_TEXT        // 7
+	});
+
+	public static void encode(Object o, DataOutputStream out) throws IOException {
+
+		if (o == null) {
+			out.writeByte(NULL);
+		}
+		else if (o instanceof ServerCommand) {
+			out.writeByte(SERVER_COMMAND);
+			out.writeByte(SERVER_COMMANDS.id((ServerCommand) o));
+		}
+		else if (o instanceof ClientCommand) {
+			out.writeByte(CLIENT_COMMAND);
+			out.writeByte(CLIENT_COMMANDS.id((ClientCommand) o));
+		}
+		else if (o instanceof ChatterCommand) {
+			out.writeByte(CHATTER_COMMAND);
+			out.writeByte(CHATTER_COMMANDS.id((ChatterCommand) o));
+		}
+		else if (o instanceof ChatterInfo) {
+			out.writeByte(CHATTER_INFO);
+			writeChatterInfo((ChatterInfo) o, out);
+		}
+		else if (o instanceof ChatterInfo[]) {
+			out.writeByte(CHATTER_INFO_ARRAY);
+			writeChatterInfoArray((ChatterInfo[]) o, out);
+		}
+		else if (o instanceof ChatRequest) {
+			out.writeByte(CHAT_REQUEST);
+			writeChatRequest((ChatRequest) o, out);
+		}
+		else if (o instanceof String) {
+			out.writeByte(TEXT);
+			writeString((String) o, out);
+		}
+		else if (o instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong(((Long) o).longValue());
+		}
+		else if (o instanceof RosterUpdate) {
+			out.writeByte(ROSTER_UPDATE);
+			writeRosterUpdate((RosterUpdate) o, out);
+		}
+		else if (o instanceof RoomMessage) {
+			out.writeByte(ROOM_MESSAGE);
+			writeRoomMessage((RoomMessage) o, out);
+		}
+		else if (o instanceof HistoryRequest) {
+			out.writeByte(HISTORY_REQUEST);
+			writeHistoryRequest((HistoryRequest) o, out);
+		}
+		else if (o instanceof HistoryPage) {
+			out.writeByte(HISTORY_PAGE);
+			writeHistoryPage((HistoryPage) o, out);
+		}
+		else {
+			throw new NotSerializableException("No binary codec for " + o.getClass().getName());
+		}
+	}
+
+	public static Object decode(DataInputStream in) throws IOException {
+
+		byte opcode = in.readByte();
+		switch (opcode) {
+
+			case NULL:
+				return null;
+			case SERVER_COMMAND:
+				return SERVER_COMMANDS.get(in.readUnsignedByte());
+			case CLIENT_COMMAND:
+				return CLIENT_COMMANDS.get(in.readUnsignedByte());
+			case CHATTER_COMMAND:
+				return CHATTER_COMMANDS.get(in.readUnsignedByte());
+			case CHATTER_INFO:
+				return readChatterInfo(in);
+			case CHATTER_INFO_ARRAY:
+				return readChatterInfoArray(in);
+			case CHAT_REQUEST:
+				return readChatRequest(in);
+			case TEXT:
+				return readString(in);
+			case LONG:
+				return Long.valueOf(in.readLong());
+			case ROSTER_UPDATE:
+				return readRosterUpdate(in);
+			case ROOM_MESSAGE:
+				return readRoomMessage(in);
+			case HISTORY_REQUEST:
+				return readHistoryRequest(in);
+			case HISTORY_PAGE:
+				return readHistoryPage(in);
+			default:
+				throw new StreamCorruptedException("Unknown opcode " + opcode);
+		}
+	}
+
+	// Strings are written as UTF-8 with an int length, -1 for null. Unlike writeUTF,
+	// this has no 64k limit.
+	static void writeString(String s, DataOutputStream out) throws IOException {
+
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	static String readString(DataInputStream in) throws IOException {
+
+		int length = in.readInt();
+		if (length == -1) {
+			return null;
+		}
+		if (length < 0 || length > in.available()) {
+			throw new StreamCorruptedException("Bad string length " + length);
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	// Array lengths can never be more than the bytes left in the frame.
+	static int readLength(DataInputStream in) throws IOException {
+
+		int length = in.readInt();
+		if (length < 0 || length > in.available()) {
+			throw new StreamCorruptedException("Bad array length " + length);
+		}
+		return length;
+	}
+
+	static void writeChatterInfo(ChatterInfo ci, DataOutputStream out) throws IOException {
+
+		writeString(ci.getName(), out);
+		writeString(ci.getPassword(), out);
+		writeString(ci.getAddress(), out);
+	}
+
+	static ChatterInfo readChatterInfo(DataInputStream in) throws IOException {
+
+		ChatterInfo ci = new ChatterInfo(readString(in), readString(in));
+		ci.setAddress(readString(in));
+		return ci;
+	}
+
+	static void writeChatterInfoArray(ChatterInfo[] chatters, DataOutputStream out) throws IOException {
+
+		out.writeInt(chatters.length);
+		for (ChatterInfo ci:chatters) {
+			writeChatterInfo(ci, out);
+		}
+	}
+
+	static ChatterInfo[] readChatterInfoArray(DataInputStream in) throws IOException {
+
+		ChatterInfo[] chatters = new ChatterInfo[readLength(in)];
+		for (int i=0; i<chatters.length; i++) {
+			chatters[i] = readChatterInfo(in);
+		}
+		return chatters;
+	}
+
+	static void writeChatRequest(ChatRequest cr, DataOutputStream out) throws IOException {
+
+		out.writeInt(cr.getPortAddress());
+		out.writeLong(cr.getRoomId());
+		writeChatterInfo(cr.getSourceChatter(), out);
+		writeChatterInfoArray(cr.getTargetChatters(), out);
+	}
+
+	static ChatRequest readChatRequest(DataInputStream in) throws IOException {
+
+		int port = in.readInt();
+		long roomId = in.readLong();
+		ChatterInfo source = readChatterInfo(in);
+		ChatterInfo[] targets = readChatterInfoArray(in);
+		ChatRequest cr = new ChatRequest(source, targets, port);
+		cr.setRoomId(roomId);
+		return cr;
+	}
+
+	static void writeRoomMessage(RoomMessage msg, DataOutputStream out) throws IOException {
+
+		out.writeLong(msg.getRoomId());
+		out.writeLong(msg.getSeq());
+		out.writeLong(msg.getTimestamp());
+		writeString(msg.getSender(), out);
+		writeString(msg.getText(), out);
+	}
+
+	static RoomMessage readRoomMessage(DataInputStream in) throws IOException {
+
+		long roomId    = in.readLong();
+		long seq       = in.readLong();
+		long timestamp = in.readLong();
+		return new RoomMessage(roomId, seq, timestamp, readString(in), readString(in));
+	}
+
+	static void writeHistoryRequest(HistoryRequest request, DataOutputStream out) throws IOException {
+
+		out.writeLong(request.getRoomId());
+		out.writeLong(request.getAfterSeq());
+		out.writeLong(request.getBeforeSeq());
+		out.writeInt(request.getLimit());
+	}
+
+	static HistoryRequest readHistoryRequest(DataInputStream in) throws IOException {
+
+		long roomId    = in.readLong();
+		long afterSeq  = in.readLong();
+		long beforeSeq = in.readLong();
+		return new HistoryRequest(roomId, afterSeq, beforeSeq, in.readInt());
+	}
+
+	static void writeHistoryPage(HistoryPage page, DataOutputStream out) throws IOException {
+
+		out.writeLong(page.getRoomId());
+		out.writeBoolean(page.isLast());
+		out.writeInt(page.getMessages().length);
+		for (RoomMessage msg:page.getMessages()) {
+			writeRoomMessage(msg, out);
+		}
+	}
+
+	static HistoryPage readHistoryPage(DataInputStream in) throws IOException {
+
+		long roomId  = in.readLong();
+		boolean last = in.readBoolean();
+		RoomMessage[] messages = new RoomMessage[readLength(in)];
+		for (int i=0; i<messages.length; i++) {
+			messages[i] = readRoomMessage(in);
+		}
+		return new HistoryPage(roomId, messages, last);
+	}
+
+	static void writeRosterUpdate(RosterUpdate update, DataOutputStream out) throws IOException {
+
+		out.writeLong(update.getFromVersion());
+		out.writeLong(update.getToVersion());
+		out.writeBoolean(update.isSnapshot());
+
+		if (update.isSnapshot()) {
+			long[] ids = update.getIds();
+			out.writeInt(ids.length);
+			for (int i=0; i<ids.length; i++) {
+				out.writeLong(ids[i]);
+				writeChatterInfo(update.getChatters()[i], out);
+			}
+		}
+		else {
+			RosterDelta[] deltas = update.getDeltas();
+			out.writeInt(deltas.length);
+			for (RosterDelta d:deltas) {
+				out.writeByte(d.getType());
+				out.writeLong(d.getVersion());
+				out.writeLong(d.getId());
+				writeChatterInfo(d.getChatter(), out);
+			}
+		}
+	}
+
+	static RosterUpdate readRosterUpdate(DataInputStream in) throws IOException {
+
+		long fromVersion = in.readLong();
+		long toVersion   = in.readLong();
+		boolean snapshot = in.readBoolean();
+		int count        = readLength(in);
+
+		if (snapshot) {
+			long[] ids = new long[count];
+			ChatterInfo[] chatters = new ChatterInfo[count];
+			for (int i=0; i<count; i++) {
+				ids[i]      = in.readLong();
+				chatters[i] = readChatterInfo(in);
+			}
+			return RosterUpdate.snapshot(toVersion, ids, chatters);
+		}
+
+		RosterDelta[] deltas = new RosterDelta[count];
+		for (int i=0; i<count; i++) {
+			int type     = in.readByte();
+			long version = in.readLong();
+			long id      = in.readLong();
+			deltas[i]    = new RosterDelta(type, version, id, readChatterInfo(in));
+		}
+		return RosterUpdate.deltas(fromVersion, toVersion, deltas);
+	}
+}
+
+// The ids of one enum's commands on the binary wire. The array has the commands at their
+// ids, with null for an id no longer in use.
+class CommandIds<E extends Enum<E>> {
+
+	E[] byId;
+	int[] ids;
+
+	public CommandIds(Class<E> type, E[] byId) {
+
+		this.byId = byId;
+		ids = new int[type.getEnumConstants().length];
+		Arrays.fill(ids, -1);
+		for (int i=0; i<byId.length; i++) {
+			if (byId[i] != null) {
+				ids[byId[i].ordinal()] = i;
+			}
+		}
+	}
+
+	public int id(E command) throws IOException {
+
+		int id = ids[command.ordinal()];
+		if (id < 0) {
+			throw new NotSerializableException("No binary wire id for " + command);
+		}
+		return id;
+	}
+
+	public E get(int id) throws IOException {
+
+		if (id >= byId.length || byId[id] == null) {
+			throw new StreamCorruptedException("Unknown command " + id);
+		}
+		return byId[id];
+	}
+}
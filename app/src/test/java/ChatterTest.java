@@ -0,0 +1,139 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A chat of three: alice starts it, and bob and carol join. The joining chatters are played
+// by wires of their own, so that what the initiator sends them can be checked frame by frame.
+class ChatterTest {
+
+	ChatterInfo alice = new ChatterInfo("alice", "");
+	ChatterInfo bob   = new ChatterInfo("bob", "");
+	ChatterInfo carol = new ChatterInfo("carol", "");
+
+	Chatter chatter;
+	int port;
+	List<Socket> sockets = new ArrayList<Socket>();
+
+	@BeforeEach
+	void start() throws Exception {
+
+		ChatRequest cr = new ChatRequest(alice, new ChatterInfo[] { bob, carol }, 0);
+		chatter = new Chatter(1, alice, cr, new ConversationHost("test"));
+		port = chatter.listener.socket().getLocalPort();
+	}
+
+	@AfterEach
+	void stop() throws Exception {
+
+		chatter.shutdown();
+		for (Socket s:sockets) {
+			s.close();
+		}
+	}
+
+	ChatWire connect() throws Exception {
+
+		Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+		s.setSoTimeout(5000);
+		sockets.add(s);
+		return WireProtocols.connect(s, WireFormat.BINARY);
+	}
+
+	// Registers the way a joining chatter does, and returns once all three acknowledgements
+	// are in.
+	ChatWire join(ChatterInfo ci) throws Exception {
+
+		ChatWire wire = connect();
+		wire.writeObject(ChatterCommand.REGISTER_INCOMING);
+		wire.flush();
+		assertEquals(ChatterCommand.ACKNOWLEDGEMENT, wire.readObject());
+		wire.writeObject(ci);
+		wire.flush();
+		assertEquals(ChatterCommand.ACKNOWLEDGEMENT, wire.readObject());
+		assertEquals(ChatterCommand.ACKNOWLEDGEMENT, wire.readObject());
+		return wire;
+	}
+
+	@Test
+	void textsArePassedOnToTheOtherJoiners() throws Exception {
+
+		ChatWire b = join(bob);
+		ChatWire c = join(carol);
+
+		// Streamed.
+		b.writeObject(ChatterCommand.TEXT_FRAME);
+		b.writeObject(Long.valueOf(1));
+		b.writeObject("hello from bob");
+		b.flush();
+
+		assertEquals(ChatterCommand.FORWARDED_TEXT, c.readObject());
+		assertEquals("bob", c.readObject());
+		assertEquals("hello from bob", c.readObject());
+
+		// The old way, with the text after the acknowledgement.
+		c.writeObject(ChatterCommand.RECIEVE_TEXT);
+		c.flush();
+		assertEquals(ChatterCommand.ACKNOWLEDGEMENT, c.readObject());
+		c.writeObject("hello from carol");
+		c.flush();
+
+		assertEquals(ChatterCommand.FORWARDED_TEXT, b.readObject());
+		assertEquals("carol", b.readObject());
+		assertEquals("hello from carol", b.readObject());
+
+		// Nobody gets their own text back; the next thing bob sees is alice's.
+		chatter.processInput("hello from alice", null);
+		assertEquals(ChatterCommand.TEXT_FRAME, b.readObject());
+		b.readObject();
+		assertEquals("hello from alice", b.readObject());
+		assertEquals(ChatterCommand.TEXT_FRAME, c.readObject());
+		c.readObject();
+		assertEquals("hello from alice", c.readObject());
+	}
+
+	@Test
+	void nothingIsSentBeforeTheRegistration() throws Exception {
+
+		ChatWire b = connect();
+		while (chatter.peers.isEmpty()) {
+			Thread.sleep(10);
+		}
+		chatter.processInput("too early", null);
+
+		b.writeObject(ChatterCommand.REGISTER_INCOMING);
+		b.writeObject(bob);
+		b.flush();
+		for (int i=0; i<3; i++) {
+			assertEquals(ChatterCommand.ACKNOWLEDGEMENT, b.readObject());
+		}
+		assertEquals(ChatterCommand.TEXT_FRAME, b.readObject());
+		b.readObject();
+		assertEquals("too early", b.readObject());
+	}
+
+	@Test
+	void aTextBeforeTheRegistrationIsRefused() throws Exception {
+
+		ChatWire b = connect();
+		b.writeObject(ChatterCommand.TEXT_FRAME);
+		b.writeObject(Long.valueOf(1));
+		b.writeObject("who is this");
+		b.flush();
+
+		// Dropped, rather than taken for a registration.
+		try {
+			Object o = b.readObject();
+			fail("Expected the connection to be closed, got " + o);
+		}
+		catch (IOException e) { }
+
+		join(carol);
+		assertEquals(1, chatter.peers.size());
+	}
+}
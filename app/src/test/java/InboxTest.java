@@ -0,0 +1,181 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// An inbox file as the server leaves it: the header, then the entries after the head. The
+// entries are read back from the file itself, so that the format is what is checked.
+class InboxTest {
+
+	File dir;
+	File file;
+
+	@BeforeEach
+	void createDir() throws IOException {
+
+		dir  = Files.createTempDirectory("chatinbox").toFile();
+		file = Inbox.file(dir, "carol");
+	}
+
+	@AfterEach
+	void deleteDir() {
+
+		for (File f:dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	static byte[] entry(int number, int size) {
+
+		byte[] b = new byte[size];
+		Arrays.fill(b, (byte) number);
+		ByteBuffer.wrap(b).putInt(0, number);
+		return b;
+	}
+
+	// The numbers of the entries after the head, checking that the header counts them.
+	List<Integer> read() throws IOException {
+
+		ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+		long head = bytes.getLong(0);
+		int count = bytes.getInt(8);
+
+		ArrayList<Integer> numbers = new ArrayList<Integer>();
+		bytes.position((int) head);
+		while (bytes.hasRemaining()) {
+			int length = bytes.getInt();
+			numbers.add(bytes.getInt(bytes.position()));
+			bytes.position(bytes.position() + length);
+		}
+		assertEquals(count, numbers.size());
+		return numbers;
+	}
+
+	@Test
+	void entriesSurviveReopening() throws IOException {
+
+		Inbox inbox = new Inbox(file);
+		for (int i=1; i<=3; i++) {
+			inbox.append(entry(i, 100), 10);
+		}
+		inbox.close();
+
+		assertEquals(Arrays.asList(1, 2, 3), read());
+
+		inbox = new Inbox(file);
+		try {
+			assertEquals(3, inbox.getCount());
+			inbox.append(entry(4, 100), 10);
+		}
+		finally {
+			inbox.close();
+		}
+		assertEquals(Arrays.asList(1, 2, 3, 4), read());
+	}
+
+	@Test
+	void entryCutShortIsDropped() throws IOException {
+
+		Inbox inbox = new Inbox(file);
+		inbox.append(entry(1, 100), 10);
+		inbox.append(entry(2, 100), 10);
+		inbox.close();
+		long size = file.length();
+
+		// The length of a third entry made it to the disk, but only some of the entry.
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.seek(size);
+			raf.writeInt(100);
+			raf.write(entry(3, 40));
+		}
+
+		inbox = new Inbox(file);
+		try {
+			assertEquals(2, inbox.getCount());
+		}
+		finally {
+			inbox.close();
+		}
+		assertEquals(size, file.length());
+		assertEquals(Arrays.asList(1, 2), read());
+	}
+
+	@Test
+	void entriesStayUntilDelivered() throws IOException {
+
+		Inbox inbox = new Inbox(file);
+		try {
+			for (int i=1; i<=5; i++) {
+				inbox.append(entry(i, 100), 4);
+			}
+			// Sent to the client with 2 to 5 in it; 6 comes in, and 2 is evicted for it,
+			// before the client has been written to.
+			int mark = inbox.getMark();
+			inbox.append(entry(6, 100), 4);
+			assertEquals(Arrays.asList(3, 4, 5, 6), read());
+
+			inbox.delivered(mark);
+			assertEquals(1, inbox.getCount());
+		}
+		finally {
+			inbox.close();
+		}
+		assertEquals(Arrays.asList(6), read());
+
+		// What is removed is counted across reopening.
+		inbox = new Inbox(file);
+		try {
+			int mark = inbox.getMark();
+			inbox.delivered(mark - 1);
+			assertEquals(1, inbox.getCount());
+			inbox.delivered(mark);
+			assertEquals(0, inbox.getCount());
+		}
+		finally {
+			inbox.close();
+		}
+		assertEquals(Inbox.HEADER, file.length());
+	}
+
+	@Test
+	void fullInboxDropsTheOldestAndCompacts() throws IOException {
+
+		// Enough is dropped to compact the file more than once.
+		int size = 64 * 1024;
+		Inbox inbox = new Inbox(file);
+		try {
+			for (int i=1; i<=60; i++) {
+				inbox.append(entry(i, size), 10);
+			}
+			assertEquals(10, inbox.getCount());
+			assertEquals(50, inbox.getEvicted());
+		}
+		finally {
+			inbox.close();
+		}
+
+		List<Integer> numbers = read();
+		assertEquals(Arrays.asList(51, 52, 53, 54, 55, 56, 57, 58, 59, 60), numbers);
+
+		// The dropped entries in front of the head never take more than half the file
+		// for long; what is left of them is less than the compaction threshold.
+		long head = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).getLong(0);
+		assertTrue(head - Inbox.HEADER <= Inbox.COMPACT_BYTES + size + 4);
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+
+		inbox = new Inbox(file);
+		try {
+			assertEquals(10, inbox.getCount());
+		}
+		finally {
+			inbox.close();
+		}
+	}
+}
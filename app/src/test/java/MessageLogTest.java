@@ -0,0 +1,291 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// The message log as the server finds it on the disk: the records written before are read
+// back, a record the server did not finish writing is where the log ends, and the history
+// of a conversation is paged through the back pointers, across the segments too.
+class MessageLogTest {
+
+	File dir;
+
+	@BeforeEach
+	void createDir() throws IOException {
+		dir = Files.createTempDirectory("chatlog").toFile();
+	}
+
+	@AfterEach
+	void deleteDir() {
+
+		for (File f:dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	MessageLog open(long segmentBytes) throws IOException {
+		return new MessageLog(dir, segmentBytes, LogSyncPolicy.NONE, 10);
+	}
+
+	// Writes the messages, and closes the log once they are all on the disk.
+	void write(long segmentBytes, RoomMessage... messages) throws IOException {
+
+		MessageLog log = open(segmentBytes);
+		for (RoomMessage msg:messages) {
+			log.append(msg);
+		}
+		log.close();
+	}
+
+	static RoomMessage message(long room, long seq) {
+		return new RoomMessage(room, seq, 1000 + seq, "alice", "text " + room + "/" + seq);
+	}
+
+	static RoomMessage[] messages(long room, int count) {
+
+		RoomMessage[] res = new RoomMessage[count];
+		for (int i=0; i<count; i++) {
+			res[i] = message(room, i + 1);
+		}
+		return res;
+	}
+
+	static long[] seqs(MessageLog log, long[] offsets) {
+
+		long[] res = new long[offsets.length];
+		for (int i=0; i<offsets.length; i++) {
+			res[i] = log.read(offsets[i]).getSeq();
+		}
+		return res;
+	}
+
+	static long[] range(long from, long to) {
+
+		long[] res = new long[(int) (to - from + 1)];
+		for (int i=0; i<res.length; i++) {
+			res[i] = from + i;
+		}
+		return res;
+	}
+
+	// The length, as it is in the file, of the record written for the message.
+	static int recordBytes(RoomMessage msg) {
+		return MessageLog.HEADER + 8 + 8 + 8 + 8 + 2 + MessageLog.senderBytes(msg.getSender()).length + 4 +
+		       MessageLog.bytes(msg.getText()).length;
+	}
+
+	// Overwrites bytes of the single segment at the offset.
+	void poke(long offset, byte[] bytes) throws IOException {
+
+		File segment = LogSegment.file(dir, 0);
+		try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(bytes), offset);
+		}
+	}
+
+	@Test
+	void recordsAreReadBackAfterReopening() throws IOException {
+
+		write(1024 * 1024, message(7, 1), message(8, 1), message(7, 2));
+
+		MessageLog log = open(1024 * 1024);
+		try {
+			assertEquals(2, log.getHistory().size());
+			assertEquals(8, log.getMaxConversationId());
+
+			long[] offsets = log.getHistory().find(new HistoryRequest(7, 0, HistoryRequest.LATEST, 10), 100);
+			assertEquals(2, offsets.length);
+
+			RoomMessage first = log.read(offsets[0]);
+			assertEquals(7, first.getRoomId());
+			assertEquals(1, first.getSeq());
+			assertEquals(1001, first.getTimestamp());
+			assertEquals("alice", first.getSender());
+			assertEquals("text 7/1", first.getText());
+			assertEquals("text 7/2", log.read(offsets[1]).getText());
+		}
+		finally {
+			log.close();
+		}
+	}
+
+	@Test
+	void historyIsPagedAfterReopening() throws IOException {
+
+		// Two conversations in between each other, more records than are indexed, so
+		// the pages are found by stepping back from the index.
+		ArrayList<RoomMessage> all = new ArrayList<RoomMessage>();
+		for (int i=1; i<=300; i++) {
+			all.add(message(1, i));
+			all.add(message(2, i));
+		}
+		write(1024 * 1024, all.toArray(new RoomMessage[all.size()]));
+
+		MessageLog log = open(1024 * 1024);
+		try {
+			MessageHistory history = log.getHistory();
+
+			// The latest page.
+			long[] page = history.find(new HistoryRequest(1, 0, HistoryRequest.LATEST, 50), 100);
+			assertArrayEquals(range(251, 300), seqs(log, page));
+
+			// And the one before it, the way a client pages back.
+			page = history.find(new HistoryRequest(1, 0, 251, 50), 100);
+			assertArrayEquals(range(201, 250), seqs(log, page));
+
+			// Forwards from a seq.
+			page = history.find(new HistoryRequest(1, 100, HistoryRequest.LATEST, 30), 100);
+			assertArrayEquals(range(101, 130), seqs(log, page));
+
+			// The limit of the server wins over the one asked for.
+			page = history.find(new HistoryRequest(2, 0, HistoryRequest.LATEST, 1000), 100);
+			assertArrayEquals(range(201, 300), seqs(log, page));
+
+			// Nothing for an unknown conversation.
+			assertEquals(0, history.find(new HistoryRequest(3, 0, HistoryRequest.LATEST, 10), 100).length);
+		}
+		finally {
+			log.close();
+		}
+	}
+
+	@Test
+	void tornRecordEndsTheLog() throws IOException {
+
+		RoomMessage[] written = messages(5, 3);
+		write(1024 * 1024, written);
+
+		// A bit of the last text flipped, as if the server went down while the page
+		// was only partly on the disk.
+		long third = recordBytes(written[0]) + recordBytes(written[1]);
+		poke(third + recordBytes(written[2]) - 1, new byte[] { 'X' });
+
+		MessageLog log = open(1024 * 1024);
+		try {
+			assertEquals(third, log.getEndOffset());
+			long[] page = log.getHistory().find(new HistoryRequest(5, 0, HistoryRequest.LATEST, 10), 100);
+			assertArrayEquals(range(1, 2), seqs(log, page));
+
+			// The next record goes where the torn one was.
+			log.append(message(5, 3));
+		}
+		finally {
+			log.close();
+		}
+
+		log = open(1024 * 1024);
+		try {
+			long[] page = log.getHistory().find(new HistoryRequest(5, 0, HistoryRequest.LATEST, 10), 100);
+			assertArrayEquals(range(1, 3), seqs(log, page));
+			assertEquals(third, page[2]);
+		}
+		finally {
+			log.close();
+		}
+	}
+
+	@Test
+	void zeroedRecordEndsTheLog() throws IOException {
+
+		RoomMessage[] written = messages(5, 3);
+		write(1024 * 1024, written);
+
+		// The second record never made it to the disk, but the third did.
+		long second = recordBytes(written[0]);
+		poke(second, new byte[recordBytes(written[1])]);
+
+		MessageLog log = open(1024 * 1024);
+		try {
+			assertEquals(second, log.getEndOffset());
+			long[] page = log.getHistory().find(new HistoryRequest(5, 0, HistoryRequest.LATEST, 10), 100);
+			assertArrayEquals(range(1, 1), seqs(log, page));
+		}
+		finally {
+			log.close();
+		}
+	}
+
+	@Test
+	void longTextIsKeptWhole() throws IOException {
+
+		// Well over the 32767 bytes a short length could hold, with characters of two
+		// bytes in it, so that any cut would be likely to split one.
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < 40000) {
+			sb.append("text \u00e9\u00e8 ");
+		}
+		String text = sb.toString();
+
+		// A sender too long for its short length is cut at a character.
+		StringBuilder name = new StringBuilder();
+		while (name.length() < 20000) {
+			name.append('\u00e9');
+		}
+
+		write(1024 * 1024, new RoomMessage(4, 1, 1001, "alice", text),
+		                   new RoomMessage(4, 2, 1002, name.toString(), "short"));
+
+		MessageLog log = open(1024 * 1024);
+		try {
+			long[] page = log.getHistory().find(new HistoryRequest(4, 0, HistoryRequest.LATEST, 10), 100);
+			assertEquals(2, page.length);
+			assertEquals(text, log.read(page[0]).getText());
+
+			String sender = log.read(page[1]).getSender();
+			assertEquals(Short.MAX_VALUE / 2, sender.length());
+			assertEquals(name.substring(0, sender.length()), sender);
+			assertEquals("short", log.read(page[1]).getText());
+		}
+		finally {
+			log.close();
+		}
+	}
+
+	@Test
+	void recordWhichDoesNotFitGoesToTheNextSegment() throws IOException {
+
+		// Segments with room for a bit more than two records each, so that every third
+		// one rolls over, with the space left in the segment unused.
+		RoomMessage[] written = messages(9, 10);
+		long segmentBytes = recordBytes(written[0]) * 2 + recordBytes(written[0]) / 2;
+		write(segmentBytes, written);
+
+		MessageLog log = open(segmentBytes);
+		try {
+			assertEquals(5, log.segmentBases().length);
+			long[] page = log.getHistory().find(new HistoryRequest(9, 0, HistoryRequest.LATEST, 100), 100);
+			assertArrayEquals(range(1, 10), seqs(log, page));
+
+			// The back pointers lead from one segment into the one before.
+			page = log.getHistory().find(new HistoryRequest(9, 0, 6, 3), 100);
+			assertArrayEquals(range(3, 5), seqs(log, page));
+			assertEquals(5, log.read(page[2]).getSeq());
+
+			// A record bigger than a whole segment gets a segment of its own.
+			char[] big = new char[(int) segmentBytes * 2];
+			Arrays.fill(big, 'b');
+			log.append(new RoomMessage(9, 11, 1011, "alice", new String(big)));
+		}
+		finally {
+			log.close();
+		}
+
+		log = open(segmentBytes);
+		try {
+			long[] page = log.getHistory().find(new HistoryRequest(9, 9, HistoryRequest.LATEST, 100), 100);
+			assertArrayEquals(range(10, 11), seqs(log, page));
+			assertEquals(segmentBytes * 2, log.read(page[1]).getText().length());
+		}
+		finally {
+			log.close();
+		}
+	}
+}
@@ -0,0 +1,258 @@
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import bench.Fixtures;
+import bench.Workload;
+
+// The workloads of the benchmarks, set up with the chat's own classes. Public, since the
+// benchmarks load it by name.
+//
+// Everything the chat prints or logs is thrown away, so that writing to the console is not
+// what gets measured. The message log and the inboxes are turned off, so that the servers
+// started here leave nothing on the disk.
+public class ChatFixtures implements Fixtures {
+
+	static final int ROSTER = 100;
+	static final String TEXT = "Shall we meet at the usual place at seven?";
+
+	public ChatFixtures() {
+
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		System.setProperty("chat.log", "false");
+		System.setProperty("chat.inbox", "false");
+	}
+
+	static ChatterInfo[] chatters(int count) {
+
+		ChatterInfo[] chatters = new ChatterInfo[count];
+		for (int i=0; i<count; i++) {
+			chatters[i] = new ChatterInfo("chatter" + i, "secret" + i);
+			chatters[i].setAddress("10.0." + ((i >> 8) & 0xff) + "." + (i & 0xff));
+		}
+		return chatters;
+	}
+
+	// The object to write, and how. A text goes through TextChatObject, as in a chat.
+	static Object sample(String object) {
+
+		if (object.equals("CHATTERS")) {
+			return chatters(ROSTER);
+		}
+		if (object.equals("CHAT_REQUEST")) {
+			ChatterInfo[] c = chatters(3);
+			return new ChatRequest(c[0], new ChatterInfo[] { c[1], c[2] }, 3001);
+		}
+		return new TextChatObject(TEXT);
+	}
+
+	static void write(Object o, ChatWire wire) throws Exception {
+
+		if (o instanceof TextChatObject) {
+			((TextChatObject) o).send(wire);
+		}
+		else {
+			wire.writeObject(o);
+		}
+	}
+
+	static Object read(Object o, ChatWire wire) throws Exception {
+
+		if (o instanceof TextChatObject) {
+			TextChatObject tco = new TextChatObject("");
+			tco.recieve(wire);
+			return tco;
+		}
+		return wire.readObject();
+	}
+
+	// A wire reading back what it writes. The object stream resets before every object, so
+	// every object is written in full, as it is the first time it is sent on a connection.
+	static ChatWire loopback(String format, MemoryPipe pipe) throws IOException {
+
+		if (WireFormat.valueOf(format) == WireFormat.OBJECT) {
+			return new ObjectStreamWire(pipe.in, pipe.out, new StreamResetPolicy(1, Long.MAX_VALUE));
+		}
+		return new BinaryWire(pipe.in, pipe.out);
+	}
+
+	public Workload encode(String format, String object) throws Exception {
+
+		final MemoryPipe pipe = new MemoryPipe();
+		final ChatWire wire = loopback(format, pipe);
+		final Object o = sample(object);
+
+		return new Workload() {
+
+			public Object run() throws Exception {
+				write(o, wire);
+				pipe.clear();
+				return wire;
+			}
+
+			public void close() { }
+		};
+	}
+
+	public Workload roundTrip(String format, String object) throws Exception {
+
+		final MemoryPipe pipe = new MemoryPipe();
+		final ChatWire wire = loopback(format, pipe);
+		final Object o = sample(object);
+
+		return new Workload() {
+
+			public Object run() throws Exception {
+				write(o, wire);
+				return read(o, wire);
+			}
+
+			public void close() { }
+		};
+	}
+
+	public Workload dispatch(String format, int chatters) throws Exception {
+
+		ChatServer cs = new ChatServer();
+		for (ChatterInfo ci:chatters(chatters)) {
+			cs.addChatter(ci, null);
+		}
+
+		// The connection manager gets a loopback connection and an event loop of its own,
+		// and runs on a thread like in the threaded mode.
+		ServerSocketChannel ssc = ServerSocketChannel.open();
+		ssc.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		final Socket socket = new Socket(InetAddress.getLoopbackAddress(), ssc.socket().getLocalPort());
+		socket.setTcpNoDelay(true);
+		SocketChannel channel = ssc.accept();
+		ssc.close();
+
+		new ChatServerConnectionManager(cs, channel, new EventLoop("bench-loop"), false);
+		final ChatWire wire = WireProtocols.connect(socket, WireFormat.valueOf(format));
+
+		return new Workload() {
+
+			public Object run() throws Exception {
+				wire.writeObject(ServerCommand.GET_MEMBERS);
+				wire.readObject();
+				return wire.readObject();
+			}
+
+			public void close() throws Exception {
+				socket.close();
+			}
+		};
+	}
+
+	public Workload lookup(int registrations) throws Exception {
+
+		final ChatServer cs = new ChatServer();
+		final String[] names = new String[registrations];
+		ChatterInfo[] chatters = chatters(registrations);
+		for (int i=0; i<registrations; i++) {
+			cs.addChatter(chatters[i], null);
+			names[i] = chatters[i].getName();
+		}
+		Collections.shuffle(Arrays.asList(names), new Random(42));
+
+		return new Workload() {
+
+			int next = 0;
+
+			public Object run() {
+				if (++next == names.length) {
+					next = 0;
+				}
+				return cs.getChatterByName(names[next]);
+			}
+
+			public void close() { }
+		};
+	}
+
+	static int registered(Chatter chatter) {
+
+		int count = 0;
+		for (ChatPeer peer:chatter.peers) {
+			if (peer.isRegistered()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public Workload fanOut(int peers) throws Exception {
+
+		ChatterInfo[] c = chatters(peers + 1);
+		ChatterInfo[] targets = Arrays.copyOfRange(c, 1, c.length);
+		final Chatter chatter = new Chatter(1, c[0], new ChatRequest(c[0], targets, 0), new ConversationHost("bench"));
+		int port = chatter.listener.socket().getLocalPort();
+
+		// Every peer reads on a thread of its own and counts the texts it has got.
+		final AtomicLong received = new AtomicLong();
+		final List<Socket> sockets = new ArrayList<Socket>();
+		for (int i=0; i<peers; i++) {
+
+			Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+			s.setTcpNoDelay(true);
+			sockets.add(s);
+			final ChatWire wire = WireProtocols.connect(s, WireFormat.getDefault());
+
+			// Nothing is sent to a peer before it has registered. The acknowledgements
+			// are not waited for; the reader passes over them.
+			wire.writeObject(ChatterCommand.REGISTER_INCOMING);
+			wire.writeObject(c[i + 1]);
+			wire.flush();
+
+			Thread reader = new Thread("peer-" + i) {
+				public void run() {
+					try {
+						while (true) {
+							if (wire.readObject() == ChatterCommand.TEXT_FRAME) {
+								wire.readObject();
+								wire.readObject();
+								received.incrementAndGet();
+							}
+						}
+					}
+					catch (Exception e) { }
+				}
+			};
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		while (registered(chatter) < peers) {
+			Thread.sleep(10);
+		}
+		final int count = peers;
+		final TextChatObject text = new TextChatObject(TEXT);
+
+		return new Workload() {
+
+			long sent = 0;
+
+			public Object run() throws Exception {
+
+				// On the chatter's worker, which also hands what it wrote to the event
+				// loop; the peers are only ever written to by the worker.
+				chatter.sendChatObject(text);
+				sent += count;
+				while (received.get() < sent) {
+					Thread.onSpinWait();
+				}
+				return text;
+			}
+
+			public void close() throws Exception {
+				chatter.shutdown();
+				for (Socket s:sockets) {
+					s.close();
+				}
+			}
+		};
+	}
+}
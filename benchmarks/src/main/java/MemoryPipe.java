@@ -0,0 +1,60 @@
+
+import java.io.*;
+
+// A stream reading back what has been written to it, all on the one thread. A wire on
+// both ends of it writes an object and reads it back without anything in between.
+class MemoryPipe {
+
+	byte[] buffer = new byte[64 * 1024];
+	int readPos = 0;
+	int writePos = 0;
+
+	InputStream in = new InputStream() {
+
+		public int read() throws IOException {
+			return (readPos == writePos) ? -1 : (buffer[readPos++] & 0xff);
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+
+			if (readPos == writePos) {
+				return -1;
+			}
+			int n = Math.min(len, writePos - readPos);
+			System.arraycopy(buffer, readPos, b, off, n);
+			readPos += n;
+			return n;
+		}
+
+		public int available() {
+			return writePos - readPos;
+		}
+	};
+
+	OutputStream out = new OutputStream() {
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+
+			// Everything read so far is dropped before the buffer grows.
+			if (writePos + len > buffer.length) {
+				System.arraycopy(buffer, readPos, buffer, 0, writePos - readPos);
+				writePos -= readPos;
+				readPos = 0;
+				if (writePos + len > buffer.length) {
+					buffer = java.util.Arrays.copyOf(buffer, Math.max(buffer.length * 2, writePos + len));
+				}
+			}
+			System.arraycopy(b, off, buffer, writePos, len);
+			writePos += len;
+		}
+	};
+
+	// Forgets what has been written and not read.
+	public void clear() {
+		readPos = writePos;
+	}
+}
@@ -0,0 +1,40 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// A command going through a server connection: the client sends GET_MEMBERS, the
+// connection's thread reads it, ServerCommand.process answers with the acknowledgement and
+// the roster, and the client reads both. The connection is a pair of in-memory pipes, so
+// what is measured is the chat and not the network.
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+
+	@Param({"OBJECT", "BINARY"})
+	public String format;
+
+	@Param({"10"})
+	public int chatters;
+
+	Workload dispatch;
+
+	@Setup
+	public void setUp() throws Exception {
+		dispatch = Fixtures.load().dispatch(format, chatters);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		dispatch.close();
+	}
+
+	@Benchmark
+	public Object getMembers() throws Exception {
+		return dispatch.run();
+	}
+}
@@ -0,0 +1,36 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// A text sent by the initiator of a direct chat to all the other chatters. The peers are
+// real sockets on the loopback, each read by a thread of its own, and a text counts as sent
+// once every peer has read it.
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+
+	@Param({"1", "10", "100"})
+	public int peers;
+
+	Workload fanOut;
+
+	@Setup
+	public void setUp() throws Exception {
+		fanOut = Fixtures.load().fanOut(peers);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		fanOut.close();
+	}
+
+	@Benchmark
+	public Object fanOut() throws Exception {
+		return fanOut.run();
+	}
+}
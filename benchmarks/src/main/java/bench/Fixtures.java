@@ -0,0 +1,22 @@
+package bench;
+
+// Sets up the workloads. Implemented by ChatFixtures in the unnamed package.
+public interface Fixtures {
+
+	// Writes the object to a wire of the given format, and reads it back.
+	Workload encode(String format, String object) throws Exception;
+	Workload roundTrip(String format, String object) throws Exception;
+
+	// Sends GET_MEMBERS to a server connection and reads the answer.
+	Workload dispatch(String format, int chatters) throws Exception;
+
+	// Looks up registered chatters by name.
+	Workload lookup(int registrations) throws Exception;
+
+	// Sends a text to all the peers of a chat and waits until all of them have it.
+	Workload fanOut(int peers) throws Exception;
+
+	static Fixtures load() throws Exception {
+		return (Fixtures) Class.forName("ChatFixtures").getConstructor().newInstance();
+	}
+}
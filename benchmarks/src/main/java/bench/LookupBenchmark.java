@@ -0,0 +1,35 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// ChatServer.getChatterByName with more and more chatters registered. Every call looks up
+// the next of the registered names.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+	@Param({"10", "1000", "100000"})
+	public int registrations;
+
+	Workload lookup;
+
+	@Setup
+	public void setUp() throws Exception {
+		lookup = Fixtures.load().lookup(registrations);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		lookup.close();
+	}
+
+	@Benchmark
+	public Object getChatterByName() throws Exception {
+		return lookup.run();
+	}
+}
@@ -0,0 +1,49 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// The objects the chat sends most, written to a wire and read back, in either format.
+// CHATTERS is a roster of 100 chatters, CHAT_REQUEST a chat with 3 of them, TEXT one line
+// of a chat.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+
+	@Param({"OBJECT", "BINARY"})
+	public String format;
+
+	@Param({"CHATTERS", "CHAT_REQUEST", "TEXT"})
+	public String object;
+
+	Workload encode;
+	Workload roundTrip;
+
+	@Setup
+	public void setUp() throws Exception {
+
+		Fixtures fixtures = Fixtures.load();
+		encode    = fixtures.encode(format, object);
+		roundTrip = fixtures.roundTrip(format, object);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		encode.close();
+		roundTrip.close();
+	}
+
+	@Benchmark
+	public Object encode() throws Exception {
+		return encode.run();
+	}
+
+	@Benchmark
+	public Object roundTrip() throws Exception {
+		return roundTrip.run();
+	}
+}
@@ -0,0 +1,13 @@
+package bench;
+
+// One thing to measure, set up by the fixtures. The chat's classes are all in the unnamed
+// package, which can not be seen from a package, and JMH will not generate benchmarks in
+// the unnamed package. So the benchmarks get at the chat through this interface; the
+// implementations are in the unnamed package, next to the chat.
+public interface Workload {
+
+	// Does the work once and returns something for the benchmark to consume.
+	Object run() throws Exception;
+
+	void close() throws Exception;
+}
@@ -0,0 +1,268 @@
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+// Puts a chat server under load with any number of headless chatters, all on this machine.
+// The chatters log in at a steady rate, are put into rooms, and then every one of them
+// sends texts to its room at a steady rate. At the end it reports how long logging in
+// took, how long the texts took from the sender to the other members, and how many got
+// through per second.
+//
+// It is set up with system properties:
+//   load.users             the number of chatters (1000)
+//   load.rampPerSecond     how many log in per second (200)
+//   load.roomSize          the chatters per room (5)
+//   load.messagesPerSecond the texts each chatter sends per second (1)
+//   load.messageBytes      the length of the texts (64)
+//   load.warmupSeconds     sending before anything is measured (5)
+//   load.durationSeconds   sending while it is measured (30)
+//   load.host              the server, as host or host:port (localhost). For a cluster,
+//                          the nodes separated by commas; every chatter connects to its
+//                          home node, as the client does.
+//   load.server            start a server in this process first: threaded, virtual or
+//                          selector. By default the server must be running already.
+//   load.virtual           read the chatters' connections on virtual threads (false)
+// and the wire format with chat.wire, as for the client.
+//
+// Everything the chat prints is thrown away, so that the report is all there is on the
+// output. The exit code is 1 if any chatter failed or any text got lost, so the generator
+// can be used in a regression test.
+public class LoadGenerator {
+
+	int users         = Integer.getInteger("load.users", 1000);
+	int rampPerSecond = Integer.getInteger("load.rampPerSecond", 200);
+	int roomSize      = Integer.getInteger("load.roomSize", 5);
+	int messageRate   = Integer.getInteger("load.messagesPerSecond", 1);
+	int messageBytes  = Integer.getInteger("load.messageBytes", 64);
+	int warmup        = Integer.getInteger("load.warmupSeconds", 5);
+	int duration      = Integer.getInteger("load.durationSeconds", 30);
+	String host       = System.getProperty("load.host", "localhost");
+	boolean virtual   = Boolean.getBoolean("load.virtual");
+
+	PrintStream out;
+	String padding;
+
+	// Microseconds, up to a minute.
+	Histogram connectLatency = new ConcurrentHistogram(TimeUnit.MINUTES.toMicros(1), 3);
+	Histogram messageLatency = new ConcurrentHistogram(TimeUnit.MINUTES.toMicros(1), 3);
+
+	List<LoadSession> sessions = Collections.synchronizedList(new ArrayList<LoadSession>());
+	AtomicInteger failed = new AtomicInteger();
+	CountDownLatch loggedIn;
+	CountDownLatch inRooms;
+
+	// Texts are counted from the start of the measurement on. A text is expected by every
+	// other member of the room.
+	volatile long measureFrom = Long.MAX_VALUE;
+	volatile long measureUntil = Long.MAX_VALUE;
+	AtomicLong sent = new AtomicLong();
+	AtomicLong expected = new AtomicLong();
+	AtomicLong received = new AtomicLong();
+
+	ScheduledExecutorService timers;
+
+	public LoadGenerator(PrintStream out) {
+
+		this.out = out;
+		char[] chars = new char[Math.max(0, messageBytes - 21)];
+		Arrays.fill(chars, 'x');
+		padding = new String(chars);
+
+		loggedIn = new CountDownLatch(users);
+		inRooms  = new CountDownLatch(users - users % roomSize);
+		timers   = Executors.newScheduledThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()));
+	}
+
+	public String getPadding() {
+		return padding;
+	}
+
+	boolean measuring(long intended) {
+		return intended >= measureFrom && intended < measureUntil;
+	}
+
+	public void received(long intended) {
+
+		if (measuring(intended)) {
+			messageLatency.recordValue(Math.max(0, (System.nanoTime() - intended) / 1000));
+			received.incrementAndGet();
+		}
+	}
+
+	public void joined(LoadSession s) {
+		inRooms.countDown();
+	}
+
+	public void disconnected(LoadSession s, Exception e) {
+
+		if (measureUntil == Long.MAX_VALUE || System.nanoTime() < measureUntil) {
+			failed.incrementAndGet();
+		}
+	}
+
+	// Logs the chatters in at the ramp rate, from the timer threads. A chatter which can
+	// not log in counts as failed.
+	void logIn() throws InterruptedException {
+
+		final WireFormat format = WireFormat.getDefault();
+		long interval = TimeUnit.SECONDS.toNanos(1) / rampPerSecond;
+		HashRing ring = host.contains(",") ? new HashRing(Arrays.asList(host.split(","))) : null;
+		for (int i=0; i<users; i++) {
+
+			final LoadSession s = new LoadSession(this, "load" + i);
+			final String server = (ring == null) ? host : ring.ownerOf(s.getName());
+			sessions.add(s);
+			timers.schedule(new Runnable() {
+				public void run() {
+					try {
+						connectLatency.recordValue(s.connect(server, format, virtual) / 1000);
+					}
+					catch (Exception e) {
+						failed.incrementAndGet();
+					}
+					loggedIn.countDown();
+				}
+			}, i * interval, TimeUnit.NANOSECONDS);
+		}
+		loggedIn.await();
+	}
+
+	// The first chatter of every room asks for it. Chatters left over for a full room stay
+	// out of the rooms and just take the roster updates.
+	void makeRooms() throws Exception {
+
+		for (int i=0; i + roomSize <= users; i += roomSize) {
+			ChatterInfo[] targets = new ChatterInfo[roomSize - 1];
+			for (int j=1; j<roomSize; j++) {
+				targets[j - 1] = new ChatterInfo(sessions.get(i + j).getName(), "");
+			}
+			sessions.get(i).createRoom(targets);
+		}
+		if (!inRooms.await(60, TimeUnit.SECONDS)) {
+			out.println( "Only " + (users - inRooms.getCount()) + " chatters got into their rooms." );
+		}
+	}
+
+	// Every chatter in a room sends at the message rate, starting at a random point of its
+	// first interval so that the texts are spread out.
+	void sendTexts() throws Exception {
+
+		final long interval = TimeUnit.SECONDS.toNanos(1) / messageRate;
+		Random random = new Random(1);
+		long start = System.nanoTime();
+		measureFrom  = start + TimeUnit.SECONDS.toNanos(warmup);
+		measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(duration);
+
+		for (final LoadSession s:sessions) {
+			if (s.roomId == 0) {
+				continue;
+			}
+			s.nextSend = start + (long) (random.nextDouble() * interval);
+			timers.schedule(new Runnable() {
+				public void run() {
+
+					// Whatever was due meanwhile goes out now, each with the time it
+					// was due.
+					long now = System.nanoTime();
+					try {
+						while (s.nextSend <= now && s.nextSend < measureUntil) {
+							s.send(s.nextSend);
+							if (measuring(s.nextSend)) {
+								sent.incrementAndGet();
+								expected.addAndGet(s.others);
+							}
+							s.nextSend += interval;
+						}
+					}
+					catch (Exception e) {
+						return;
+					}
+					if (s.nextSend < measureUntil) {
+						timers.schedule(this, s.nextSend - System.nanoTime(), TimeUnit.NANOSECONDS);
+					}
+				}
+			}, s.nextSend - start, TimeUnit.NANOSECONDS);
+		}
+
+		// Report every second while it runs.
+		long lastReceived = 0;
+		while (System.nanoTime() < measureUntil) {
+			Thread.sleep(1000);
+			long r = received.get();
+			out.println( String.format("%5ds  sent %d  received %d/s  failed %d",
+			             TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start), sent.get(),
+			             r - lastReceived, failed.get()) );
+			lastReceived = r;
+		}
+
+		// Give the last texts time to arrive.
+		long drainUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (received.get() < expected.get() && System.nanoTime() < drainUntil) {
+			Thread.sleep(10);
+		}
+	}
+
+	void report() {
+
+		out.println();
+		out.println( "Chatters: " + users + ", rooms of " + roomSize + ", " + messageRate + " texts/s each, " +
+		             WireFormat.getDefault() + " wire" );
+		out.println( "Failed chatters: " + failed.get() );
+		print("Login latency (us)", connectLatency);
+		print("Message latency (us)", messageLatency);
+		out.println( "Texts sent: " + sent.get() + ", deliveries expected: " + expected.get() +
+		             ", delivered: " + received.get() + ", lost: " + (expected.get() - received.get()) );
+		out.println( "Throughput: " + (sent.get() / duration) + " texts/s sent, " +
+		             (received.get() / duration) + " deliveries/s" );
+	}
+
+	void print(String title, Histogram h) {
+
+		out.println( String.format("%-22s count %d  mean %.0f  p50 %d  p90 %d  p99 %d  p99.9 %d  max %d",
+		             title, h.getTotalCount(), h.getMean(), h.getValueAtPercentile(50), h.getValueAtPercentile(90),
+		             h.getValueAtPercentile(99), h.getValueAtPercentile(99.9), h.getMaxValue()) );
+	}
+
+	public boolean run() throws Exception {
+
+		out.println( "Logging in " + users + " chatters at " + rampPerSecond + "/s" );
+		logIn();
+		makeRooms();
+		out.println( "Sending for " + warmup + "s of warm-up and " + duration + "s measured" );
+		sendTexts();
+		report();
+
+		timers.shutdownNow();
+		for (LoadSession s:sessions) {
+			s.close();
+		}
+		return failed.get() == 0 && received.get() == expected.get();
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+		String server = System.getProperty("load.server");
+		if (server != null) {
+			final ServerMode mode = ServerMode.valueOf(server.toUpperCase());
+			Thread t = new Thread("chat_server") {
+				public void run() {
+					ChatServer.getChatServerObject(mode).listen();
+				}
+			};
+			t.setDaemon(true);
+			t.start();
+			Thread.sleep(500);
+		}
+
+		boolean ok = new LoadGenerator(out).run();
+		System.exit(ok ? 0 : 1);
+	}
+}
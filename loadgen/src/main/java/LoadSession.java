@@ -0,0 +1,143 @@
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// One headless chatter. It speaks the same protocol as ChatClientConnectionManager: it
+// registers, takes the roster updates, joins the rooms it is asked into and sends and
+// receives room messages. Nothing is printed and nothing is read from the console.
+//
+// A thread of its own reads everything the server sends, as the client's connection
+// thread does. The texts are sent from the generator's timer threads; the wire takes care
+// of those never writing over each other.
+class LoadSession implements Runnable {
+
+	LoadGenerator gen;
+	String name;
+	Socket connection;
+	ChatWire wire;
+
+	// The room this chatter is in, zero until the server has told us, and the number of
+	// other members who get what is sent to it.
+	volatile long roomId = 0;
+	int others;
+
+	// When the next text is meant to go out, on the System.nanoTime() clock.
+	long nextSend;
+
+	public LoadSession(LoadGenerator gen, String name) {
+		this.gen  = gen;
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	// Connects and registers. Returns the nanoseconds it took. The server is a host, or
+	// host:port.
+	public long connect(String server, WireFormat format, boolean virtual) throws Exception {
+
+		long start = System.nanoTime();
+
+		int colon = server.lastIndexOf(':');
+		if (colon < 0) {
+			connection = new Socket(server, 3000);
+		}
+		else {
+			connection = new Socket(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+		}
+		connection.setTcpNoDelay(true);
+		wire = WireProtocols.connect(connection, format);
+
+		wire.writeObject(ServerCommand.REGISTER);
+		wire.flush();
+		expectAcknowledgement();
+		wire.writeObject(new ChatterInfo(name, ""));
+		wire.flush();
+		expectAcknowledgement();
+
+		long took = System.nanoTime() - start;
+		ConnectionThreads.newThread(this, name + "-reader", virtual).start();
+		return took;
+	}
+
+	void expectAcknowledgement() throws Exception {
+
+		Object o = wire.readObject();
+		if (o != ClientCommand.ACKNOWLEDGEMENT) {
+			throw new ProtocolException("Expected an acknowledgement, got " + o);
+		}
+	}
+
+	// Asks the server for a room with the given chatters. The acknowledgements are read
+	// by the reader thread like everything else.
+	public void createRoom(ChatterInfo[] targets) throws Exception {
+
+		ChatRequest cr = new ChatRequest(new ChatterInfo(name, ""), targets, ChatRequest.RELAYED);
+		synchronized (wire) {
+			wire.writeObject(ServerCommand.FORWARD_CHAT_REQUEST);
+			wire.writeObject(cr);
+			wire.flush();
+		}
+	}
+
+	// Sends one text to the room. The text carries the time it was meant to be sent, so
+	// that the latency counts the time a late sender spent catching up too.
+	public void send(long intended) throws Exception {
+
+		String text = intended + " " + gen.getPadding();
+		synchronized (wire) {
+			wire.writeObject(ServerCommand.ROOM_MESSAGE);
+			wire.writeObject(new RoomMessage(roomId, text));
+			wire.flush();
+		}
+	}
+
+	public void close() {
+		try {
+			connection.close();
+		}
+		catch (IOException e) { }
+	}
+
+	public void run() {
+
+		try {
+			while (true) {
+
+				Object o = wire.readObject();
+				if (o == ClientCommand.ROSTER_UPDATE) {
+					wire.readObject();
+				}
+				else if (o == ClientCommand.UPDATE_MEMBERS) {
+					synchronized (wire) {
+						wire.writeObject(ServerCommand.GET_MEMBERS);
+						wire.flush();
+					}
+				}
+				else if (o instanceof ChatterInfo[]) {
+					// The answer to GET_MEMBERS.
+				}
+				else if (o == ClientCommand.CHAT_REQUEST) {
+					ChatRequest cr = (ChatRequest) wire.readObject();
+					others = cr.getTargetChatters().length;
+					roomId = cr.getRoomId();
+					gen.joined(this);
+				}
+				else if (o == ClientCommand.ROOM_MESSAGE) {
+					RoomMessage msg = (RoomMessage) wire.readObject();
+					String text = msg.getText();
+					gen.received(Long.parseLong(text.substring(0, text.indexOf(' '))));
+				}
+				else if (o == ClientCommand.HISTORY_PAGE) {
+					wire.readObject();
+				}
+			}
+		}
+		catch (Exception e) {
+			gen.disconnected(this, e);
+		}
+	}
+}